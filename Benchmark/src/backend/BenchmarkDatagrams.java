@@ -0,0 +1,37 @@
+package backend;
+
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+
+/**
+ * Costruzione di Datagram già "ricevuti", da passare direttamente a processMessage nei benchmark
+ */
+public final class BenchmarkDatagrams {
+
+    private BenchmarkDatagrams() {
+    }
+
+    /**
+     * @param data    Il contenuto del datagram
+     * @param address Indirizzo del mittente
+     * @param port    Porta del mittente
+     * @return Un Datagram con il contenuto e il mittente specificati, pronto per la lettura
+     */
+    public static Datagram of(byte[] data, InetAddress address, int port) {
+        Datagram datagram = new Datagram(ByteBuffer.allocate(ChatHost.MAX_DATAGRAM_SIZE));
+        datagram.buffer().put(data);
+        datagram.received(address, port, data.length);
+        return datagram;
+    }
+
+    /**
+     * Riporta il datagram all'inizio, così da poterlo decodificare di nuovo
+     *
+     * @param datagram Il datagram da riavvolgere
+     * @return Il datagram stesso
+     */
+    public static Datagram rewind(Datagram datagram) {
+        datagram.buffer().position(0);
+        return datagram;
+    }
+}
@@ -0,0 +1,62 @@
+package backend;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput di codifica e decodifica dei ChatPacket, nel formato binario e in quello della serializzazione Java.
+ * L'allocazione per operazione è riportata dal profiler GC (gc.alloc.rate.norm) avviato da benchmark.Main.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Dchat.log.level=WARNING")
+public class CodecBenchmark {
+
+    @Param({"binary", "legacy"})
+    public String format;
+
+    @Param({"16", "256"})
+    public int content_length;
+
+    private ChatPacket packet;
+    private byte[] encoded;
+
+    @Setup
+    public void setup() throws IOException {
+        ChatPacket.legacy_format = format.equals("legacy");
+        packet = new ChatPacket(ChatPacket.Type.MESSAGE, 42, "benchmark", "x".repeat(content_length));
+        encoded = ChatPacket.serialize(packet);
+    }
+
+    @TearDown
+    public void tearDown() {
+        ChatPacket.legacy_format = false;
+    }
+
+    /**
+     * Codifica in un nuovo array, come ChatPacket.serialize
+     */
+    @Benchmark
+    public byte[] serialize() throws IOException {
+        return ChatPacket.serialize(packet);
+    }
+
+    /**
+     * Codifica nel buffer riutilizzato dal thread, senza copie intermedie
+     */
+    @Benchmark
+    public ByteBuffer encode() throws IOException {
+        return ChatPacket.encode(packet);
+    }
+
+    @Benchmark
+    public ChatPacket deserialize() throws IOException, ClassNotFoundException {
+        return ChatPacket.deserialize(encoded, 0, encoded.length);
+    }
+}
@@ -0,0 +1,59 @@
+package backend;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Costo della compressione con dizionario (PacketCompressor) su un messaggio di chat tipico,
+ * cioè il lavoro aggiunto al percorso di inoltro del server quando chat.compress è attivo.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Dchat.log.level=WARNING")
+public class CompressionBenchmark {
+
+    private static final String SENTENCE = "ciao a tutti, come state? io sto bene grazie, anche voi? ";
+
+    @Param({"128", "512"})
+    public int content_length;
+
+    private byte[] encoded;
+    private Datagram compressed;
+
+    @Setup
+    public void setup() throws Exception {
+        PacketCompressor.enabled = true;
+        StringBuilder content = new StringBuilder(content_length);
+        while (content.length() < content_length)
+            content.append(SENTENCE);
+        content.setLength(content_length);
+        ByteBuffer buffer = PacketCodec.encode(new ChatPacket(ChatPacket.Type.MESSAGE, 42, "benchmark", content.toString()));
+        encoded = new byte[buffer.remaining()];
+        buffer.get(encoded);
+        ByteBuffer out = PacketCompressor.compress(ByteBuffer.wrap(encoded));
+        byte[] bytes = new byte[out.remaining()];
+        out.get(bytes);
+        compressed = BenchmarkDatagrams.of(bytes, InetAddress.getLoopbackAddress(), 6666);
+    }
+
+    @TearDown
+    public void tearDown() {
+        PacketCompressor.enabled = false;
+    }
+
+    @Benchmark
+    public ByteBuffer compress() {
+        return PacketCompressor.compress(ByteBuffer.wrap(encoded));
+    }
+
+    @Benchmark
+    public Datagram decompress() throws Exception {
+        return PacketCompressor.decompress(BenchmarkDatagrams.rewind(compressed));
+    }
+}
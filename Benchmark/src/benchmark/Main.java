@@ -0,0 +1,35 @@
+package benchmark;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Punto d'inizio per l'esecuzione dei benchmark.
+ * I risultati vengono scritti in formato JSON, per confrontarli tra una versione e l'altra,
+ * insieme all'allocazione per operazione misurata dal profiler GC.
+ */
+public class Main {
+
+    public static void main(String[] args) {
+        String result_file = args.length > 0 ? args[0] : "benchmark-results.json";
+        String include = args.length > 1 ? args[1] : ".*Benchmark.*";
+
+        Options options = new OptionsBuilder()
+                .include(include)
+                .addProfiler(GCProfiler.class)
+                .resultFormat(ResultFormatType.JSON)
+                .result(result_file)
+                .build();
+        try {
+            new Runner(options).run();
+            System.out.println("Risultati scritti in " + result_file);
+        } catch (RunnerException e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+    }
+}
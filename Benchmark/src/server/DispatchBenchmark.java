@@ -0,0 +1,83 @@
+package server;
+
+import backend.BenchmarkDatagrams;
+import backend.ChatPacket;
+import backend.Datagram;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Costo di ChatServer.processMessage per tipo di messaggio, su un NullTransport.
+ * Il client "benchmark" è registrato durante il setup e ha quindi id 1.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Dchat.log.level=WARNING")
+public class DispatchBenchmark {
+    private static final int CLIENT_PORT = 40000;
+
+    private ChatServer server;
+    private Datagram message;
+    private Datagram registration_denied;
+    private Datagram unknown_disconnect;
+    private Datagram nack;
+
+    @Setup
+    public void setup() throws IOException {
+        InetAddress client = InetAddress.getLoopbackAddress();
+        server = new ChatServer(new NullTransport(), InetAddress.getByName("224.1.1.1"), 6667);
+        server.processMessage(datagram(new ChatPacket(ChatPacket.Type.REGISTRATION_REQUEST, "benchmark"), client));
+
+        message = datagram(new ChatPacket(ChatPacket.Type.MESSAGE, 1, "messaggio di prova"), client);
+        registration_denied = datagram(new ChatPacket(ChatPacket.Type.REGISTRATION_REQUEST, "benchmark"), client);
+        unknown_disconnect = datagram(new ChatPacket(ChatPacket.Type.DISCONNECT_MESSAGE, 999), client);
+        nack = datagram(new ChatPacket(1, 1, 1), client);
+    }
+
+    @TearDown
+    public void tearDown() {
+        server.close();
+    }
+
+    private static Datagram datagram(ChatPacket packet, InetAddress address) throws IOException {
+        return BenchmarkDatagrams.of(ChatPacket.serialize(packet), address, CLIENT_PORT);
+    }
+
+    /**
+     * Messaggio di un utente registrato, inoltrato al gruppo
+     */
+    @Benchmark
+    public void message() {
+        server.processMessage(BenchmarkDatagrams.rewind(message));
+    }
+
+    /**
+     * Registrazione con un username già occupato, rifiutata
+     */
+    @Benchmark
+    public void registrationDenied() {
+        server.processMessage(BenchmarkDatagrams.rewind(registration_denied));
+    }
+
+    /**
+     * Disconnessione di un id non registrato, ignorata
+     */
+    @Benchmark
+    public void unknownDisconnect() {
+        server.processMessage(BenchmarkDatagrams.rewind(unknown_disconnect));
+    }
+
+    /**
+     * Richiesta di ritrasmissione di un pacchetto presente nel RetransmitBuffer
+     */
+    @Benchmark
+    public void nack() {
+        server.processMessage(BenchmarkDatagrams.rewind(nack));
+    }
+}
@@ -0,0 +1,79 @@
+package server;
+
+import backend.ChatHost;
+import backend.ChatPacket;
+import backend.Datagram;
+import backend.Transport;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Latenza di andata e ritorno di un messaggio attraverso un ChatServer reale su loopback:
+ * il client invia il messaggio al server e attende di riceverlo dal gruppo multicast.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Dchat.log.level=WARNING")
+public class LoopbackBenchmark {
+    private static final int GROUP_PORT = 7901;
+
+    private ChatServer server;
+    private Transport group;
+    private Datagram received;
+    private DatagramSocket client;
+    private DatagramPacket message;
+
+    @Setup
+    public void setup() throws IOException, ClassNotFoundException {
+        InetAddress group_address = InetAddress.getByName("224.1.1.9");
+        server = new ChatServer(group_address, GROUP_PORT);
+        group = Transport.open(GROUP_PORT);
+        group.joinGroup(group_address);
+        received = new Datagram(ByteBuffer.allocate(ChatHost.MAX_DATAGRAM_SIZE));
+
+        client = new DatagramSocket();
+        client.setSoTimeout(5000);
+        InetAddress server_address = InetAddress.getLoopbackAddress();
+        byte[] data = ChatPacket.serialize(new ChatPacket(ChatPacket.Type.REGISTRATION_REQUEST, "benchmark"));
+        client.send(new DatagramPacket(data, data.length, server_address, server.getLocalPort()));
+        DatagramPacket reply = new DatagramPacket(new byte[ChatHost.MAX_DATAGRAM_SIZE], ChatHost.MAX_DATAGRAM_SIZE);
+        client.receive(reply);
+        ChatPacket accepted = ChatPacket.deserialize(reply.getData(), 0, reply.getLength());
+        if (accepted.message_type != ChatPacket.Type.REGISTRATION_ACCEPTED)
+            throw new IOException("Registrazione rifiutata");
+
+        data = ChatPacket.serialize(new ChatPacket(ChatPacket.Type.MESSAGE, accepted.id, "messaggio di prova"));
+        message = new DatagramPacket(data, data.length, server_address, server.getLocalPort());
+    }
+
+    @TearDown
+    public void tearDown() {
+        client.close();
+        group.close();
+        server.close();
+    }
+
+    /**
+     * Invia un messaggio e attende il suo inoltro al gruppo, ignorando i messaggi di servizio
+     */
+    @Benchmark
+    public ChatPacket roundTrip() throws IOException, ClassNotFoundException {
+        client.send(message);
+        while (true) {
+            if (!group.receive(received))
+                continue;
+            ChatPacket packet = ChatPacket.decode(received.getData());
+            if (packet.message_type == ChatPacket.Type.MESSAGE)
+                return packet;
+        }
+    }
+}
@@ -0,0 +1,56 @@
+package server;
+
+import backend.BenchmarkDatagrams;
+import backend.ChatPacket;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Costo di ChatServer.nameAlreadyExists al variare del numero di utenti registrati
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Dchat.log.level=WARNING")
+public class NameLookupBenchmark {
+
+    @Param({"10", "1000", "100000"})
+    public int room_size;
+
+    private ChatServer server;
+    private String existing_name;
+
+    @Setup
+    public void setup() throws IOException {
+        InetAddress client = InetAddress.getLoopbackAddress();
+        server = new ChatServer(new NullTransport(), InetAddress.getByName("224.1.1.1"), 6667);
+        for (int i = 0; i < room_size; i++) {
+            byte[] data = ChatPacket.serialize(new ChatPacket(ChatPacket.Type.REGISTRATION_REQUEST, "utente" + i));
+            server.processMessage(BenchmarkDatagrams.of(data, client, 40000 + i % 20000));
+        }
+        existing_name = "UTENTE" + room_size / 2;
+    }
+
+    @TearDown
+    public void tearDown() {
+        server.close();
+    }
+
+    /**
+     * Username registrato, scritto con maiuscole diverse
+     */
+    @Benchmark
+    public boolean existing() {
+        return server.nameAlreadyExists(existing_name);
+    }
+
+    @Benchmark
+    public boolean missing() {
+        return server.nameAlreadyExists("assente");
+    }
+}
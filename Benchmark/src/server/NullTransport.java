@@ -0,0 +1,62 @@
+package server;
+
+import backend.Datagram;
+import backend.Transport;
+
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+
+/**
+ * Trasporto che scarta i datagram inviati e non riceve nulla.
+ * Permette di misurare l'elaborazione del server senza il costo del socket.
+ */
+class NullTransport implements Transport {
+    private long sent_count = 0;
+    private boolean closed = false;
+
+    @Override
+    public boolean receive(Datagram datagram) {
+        return false;
+    }
+
+    @Override
+    public void send(ByteBuffer data, InetAddress address, int port) {
+        data.position(data.limit());
+        sent_count++;
+    }
+
+    @Override
+    public void joinGroup(InetAddress group) {
+    }
+
+    @Override
+    public void setInterface(InetAddress address) {
+    }
+
+    @Override
+    public boolean usesDirectBuffers() {
+        return false;
+    }
+
+    @Override
+    public int getLocalPort() {
+        return 0;
+    }
+
+    @Override
+    public boolean isClosed() {
+        return closed;
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+    }
+
+    /**
+     * @return Numero di datagram inviati
+     */
+    long getSentCount() {
+        return sent_count;
+    }
+}
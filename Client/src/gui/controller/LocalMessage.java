@@ -2,14 +2,14 @@ package gui.controller;
 
 import javafx.fxml.FXML;
 import javafx.fxml.FXMLLoader;
-import javafx.scene.Node;
 import javafx.scene.control.Label;
 import javafx.scene.layout.VBox;
 
 import java.io.IOException;
 
 /**
- * Controller per il nodo LocalMessage
+ * Controller per il nodo LocalMessage.
+ * Il nodo viene creato una volta da ogni MessageCell e riutilizzato per i messaggi che la cella mostra.
  */
 public class LocalMessage extends VBox {
 
@@ -17,21 +17,25 @@ public class LocalMessage extends VBox {
     private Label localMessageLabel;
 
     /**
-     * Restituisce il riferimento a un nodo contenente il messaggio inserito e agganciato al nodo specificato.
-     *
-     * @param node    Il nodo padre a cui agganciarsi
-     * @param message Il corpo del messaggio
+     * Crea il nodo caricando il layout da localMessage.fxml
      */
-    public LocalMessage(Node node, String message) {
+    public LocalMessage() {
         FXMLLoader loader = new FXMLLoader(getClass().getResource("/gui/view/localMessage.fxml"));
         loader.setController(this);
-        loader.setRoot(node);
+        loader.setRoot(this);
         try {
             loader.load();
         } catch (IOException exception) {
             throw new RuntimeException(exception);
         }
+    }
 
+    /**
+     * Mostra nel nodo il messaggio
+     *
+     * @param message Il corpo del messaggio
+     */
+    public void setMessage(String message) {
         localMessageLabel.setText(message);
     }
 
@@ -2,6 +2,7 @@ package gui.controller;
 
 import backend.*;
 import client.ChatClient;
+import gui.model.ChatMessage;
 import gui.model.Model;
 import interfaces.ClientObserver;
 import javafx.application.Platform;
@@ -12,10 +13,9 @@ import javafx.fxml.FXMLLoader;
 import javafx.scene.Parent;
 import javafx.scene.Scene;
 import javafx.scene.control.Label;
+import javafx.scene.control.ListView;
 import javafx.scene.control.MenuItem;
-import javafx.scene.control.ScrollPane;
 import javafx.scene.control.TextField;
-import javafx.scene.layout.VBox;
 import javafx.scene.paint.Color;
 import javafx.scene.text.Font;
 import javafx.stage.Modality;
@@ -25,6 +25,8 @@ import java.io.IOException;
 import java.net.ConnectException;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.TimeoutException;
 
 /**
@@ -39,7 +41,7 @@ public class MainController implements ClientObserver {
     private MenuItem disconnectItem;
 
     @FXML
-    private VBox messageBox;
+    private ListView<ChatMessage> messageList;
 
     @FXML
     private TextField messageField;
@@ -57,9 +59,6 @@ public class MainController implements ClientObserver {
     @FXML
     private Label rightStatus;
 
-    @FXML
-    private ScrollPane scrollPane;
-
     private Parent dialogPane;
     private Stage dialog;
     private DialogController dialogController;
@@ -79,6 +78,7 @@ public class MainController implements ClientObserver {
     /**
      * Chiamata automaticamente una volta istanziata.
      * Carica le finestre di dialogo e effettua associa gli elementi della scena al client.
+     * La lista dei messaggi mostra model.messages tramite MessageCell, riutilizzando le celle durante lo scorrimento.
      *
      * @throws IOException
      */
@@ -87,6 +87,10 @@ public class MainController implements ClientObserver {
         dialogPane = loader.load();
         dialogController = loader.getController();
 
+        messageList.setItems(model.messages);
+        messageList.setCellFactory(list -> new MessageCell());
+        messageList.setFocusTraversable(false);
+
         connectItem.disableProperty().bind(model.client_property.isNotNull());
         disconnectItem.disableProperty().bind(model.client_property.isNull());
         messageField.disableProperty().bind(model.client_property.isNull());
@@ -109,7 +113,7 @@ public class MainController implements ClientObserver {
             dialog.initModality(Modality.WINDOW_MODAL);
             dialog.setTitle("Connetti...");
             dialog.setScene(scene);
-            dialog.initOwner(messageBox.getScene().getWindow());
+            dialog.initOwner(messageList.getScene().getWindow());
             dialogController.initializeStage();
         }
         return dialog;
@@ -128,7 +132,8 @@ public class MainController implements ClientObserver {
 
     /**
      * Apre la finestra di dialogo, attende i parametri di connessione e una volta ricevuti istanzia un oggetto ChatClient
-     * e tenta la connessione.
+     * e tenta la connessione. La registrazione avviene senza bloccare il thread di JavaFX: il risultato viene
+     * mostrato da connectionCompleted.
      *
      * @param event
      */
@@ -145,23 +150,36 @@ public class MainController implements ClientObserver {
                 int groupPort = Integer.parseInt(parameters[3]);
 
                 showLocalMessage("Tentativo di connessione al server...");
-                model.setClient(new ChatClient(groupAddress, groupPort, serverAddress, serverPort, parameters[4], this));
-                showLocalMessage("Connessione effettuata.");
-                leftStatus.textProperty().bind(Bindings.concat(model.group_address.get().getHostAddress(), ":", model.group_port.get()));
+                ChatClient.connect(groupAddress, groupPort, serverAddress, serverPort, parameters[4], this, Platform::runLater)
+                        .whenComplete((client, error) -> Platform.runLater(() -> connectionCompleted(client, error)));
             } catch (UnknownHostException e) {
                 showLocalMessage("Indirizzo sconosciuto");
             } catch (NumberFormatException e) {
                 showLocalMessage("Porta non valida");
-            } catch (TimeoutException e) {
-                showLocalMessage("Tempo scaduto.");
-            } catch (ConnectException e) {
-                showLocalMessage(e.getMessage());
-            } catch (IOException e) {
-                showLocalMessage("Errore durante la connessione");
             }
         }
     }
 
+    /**
+     * Mostra l'esito della registrazione avviata da openConnectDialog e, se è riuscita, imposta il client nel model
+     *
+     * @param client Il client registrato, null in caso di errore
+     * @param error  L'eccezione con cui è fallita la registrazione, null se è riuscita
+     */
+    private void connectionCompleted(ChatClient client, Throwable error) {
+        if (error instanceof TimeoutException) {
+            showLocalMessage("Tempo scaduto.");
+        } else if (error instanceof ConnectException) {
+            showLocalMessage(error.getMessage());
+        } else if (error != null) {
+            showLocalMessage("Errore durante la connessione");
+        } else {
+            model.setClient(client);
+            showLocalMessage("Connessione effettuata.");
+            leftStatus.textProperty().bind(Bindings.concat(model.group_address.get().getHostAddress(), ":", model.group_port.get()));
+        }
+    }
+
 
     /**
      * Effettua la disconnessione col client, se necessario, ed esce dal programma.
@@ -207,8 +225,8 @@ public class MainController implements ClientObserver {
      * @param message Il messaggio da mostrare
      */
     private void showLocalMessage(String message) {
-        messageBox.getChildren().add(new LocalMessage(messageBox, message));
-        scrollPane.setVvalue(1.0d);
+        model.addMessage(new ChatMessage(null, message));
+        messageList.scrollTo(model.messages.size() - 1);
     }
 
     /**
@@ -218,8 +236,8 @@ public class MainController implements ClientObserver {
      * @param sender  Il nome del mittente
      */
     private void showMessage(String message, String sender) {
-        messageBox.getChildren().add(new ReceivedMessage(messageBox, message, sender));
-        scrollPane.setVvalue(1.0d);
+        model.addMessage(new ChatMessage(sender, message));
+        messageList.scrollTo(model.messages.size() - 1);
     }
 
     /**
@@ -244,5 +262,24 @@ public class MainController implements ClientObserver {
         showLocalMessage(received_message.message_content);
     }
 
+    /**
+     * Metodo chiamato dal client con i messaggi ricevuti dall'ultima notifica.
+     * Li aggiunge alla lista con un'unica modifica e scorre in fondo una sola volta.
+     *
+     * @param received_messages Messaggi ricevuti, in ordine
+     */
+    @Override
+    public void messagesReceived(List<ChatPacket> received_messages) {
+        List<ChatMessage> messages = new ArrayList<>(received_messages.size());
+        for (ChatPacket message : received_messages) {
+            if (message.message_type == ChatPacket.Type.MESSAGE)
+                messages.add(new ChatMessage(message.username, message.message_content));
+            else if (message.message_type == ChatPacket.Type.SERVER_MESSAGE)
+                messages.add(new ChatMessage(null, message.message_content));
+        }
+        model.addMessages(messages);
+        messageList.scrollTo(model.messages.size() - 1);
+    }
+
 
 }
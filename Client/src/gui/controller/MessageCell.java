@@ -0,0 +1,44 @@
+package gui.controller;
+
+import gui.model.ChatMessage;
+import javafx.geometry.Insets;
+import javafx.scene.control.ContentDisplay;
+import javafx.scene.control.ListCell;
+
+/**
+ * Cella della lista dei messaggi nella finestra principale.
+ * La ListView crea solo le celle visibili e le riutilizza durante lo scorrimento: ogni cella carica al più
+ * una volta i layout di ReceivedMessage e LocalMessage, e ne aggiorna il testo per ogni messaggio mostrato.
+ */
+public class MessageCell extends ListCell<ChatMessage> {
+
+    private ReceivedMessage received_node;
+    private LocalMessage local_node;
+
+    public MessageCell() {
+        // Con larghezza preferita 0 la cella segue la larghezza della lista e il testo va a capo
+        setPrefWidth(0);
+        setPadding(Insets.EMPTY);
+        setContentDisplay(ContentDisplay.GRAPHIC_ONLY);
+    }
+
+    @Override
+    protected void updateItem(ChatMessage message, boolean empty) {
+        super.updateItem(message, empty);
+        if (empty || message == null) {
+            setGraphic(null);
+            return;
+        }
+        if (message.isLocal()) {
+            if (local_node == null)
+                local_node = new LocalMessage();
+            local_node.setMessage(message.content);
+            setGraphic(local_node);
+        } else {
+            if (received_node == null)
+                received_node = new ReceivedMessage();
+            received_node.setMessage(message.content, message.sender);
+            setGraphic(received_node);
+        }
+    }
+}
@@ -2,7 +2,6 @@ package gui.controller;
 
 import javafx.fxml.FXML;
 import javafx.fxml.FXMLLoader;
-import javafx.scene.Node;
 import javafx.scene.control.Hyperlink;
 import javafx.scene.control.Label;
 import javafx.scene.layout.VBox;
@@ -10,7 +9,8 @@ import javafx.scene.layout.VBox;
 import java.io.IOException;
 
 /**
- * Controller per il nodo ReceivedMessage
+ * Controller per il nodo ReceivedMessage.
+ * Il nodo viene creato una volta da ogni MessageCell e riutilizzato per i messaggi che la cella mostra.
  */
 public class ReceivedMessage extends VBox {
 
@@ -21,23 +21,26 @@ public class ReceivedMessage extends VBox {
     private Label messageLabel;
 
     /**
-     * Restituisce il riferimento a un nodo (agganciato al nodo padre specificato) contenete il mittente e il contenuto
-     * del messaggio
-     *
-     * @param node     Il nodo padre a cui agganciarsi
-     * @param message  Il corpo del messaggio
-     * @param username Il nome del mittente del messaggio
+     * Crea il nodo caricando il layout da receivedMessage.fxml
      */
-    public ReceivedMessage(Node node, String message, String username) {
+    public ReceivedMessage() {
         FXMLLoader loader = new FXMLLoader(getClass().getResource("/gui/view/receivedMessage.fxml"));
         loader.setController(this);
-        loader.setRoot(node);
+        loader.setRoot(this);
         try {
             loader.load();
         } catch (IOException exception) {
             throw new RuntimeException(exception);
         }
+    }
 
+    /**
+     * Mostra nel nodo il mittente e il contenuto del messaggio
+     *
+     * @param message  Il corpo del messaggio
+     * @param username Il nome del mittente del messaggio
+     */
+    public void setMessage(String message, String username) {
         messageLabel.setText(message);
         usernameLink.setText(username);
     }
@@ -0,0 +1,28 @@
+package gui.model;
+
+/**
+ * Un messaggio mostrato nella finestra principale
+ */
+public class ChatMessage {
+    /**
+     * Il nome del mittente, null per i messaggi del client e del server
+     */
+    public final String sender;
+    public final String content;
+
+    /**
+     * @param sender  Il nome del mittente, null per i messaggi del client e del server
+     * @param content Il corpo del messaggio
+     */
+    public ChatMessage(String sender, String content) {
+        this.sender = sender;
+        this.content = content;
+    }
+
+    /**
+     * @return true se il messaggio è del client o del server, false se è di un utente della chatroom
+     */
+    public boolean isLocal() {
+        return sender == null;
+    }
+}
@@ -1,21 +1,35 @@
 package gui.model;
 
+import backend.Config;
 import client.ChatClient;
 import javafx.beans.property.*;
 import javafx.beans.property.adapter.*;
+import javafx.collections.FXCollections;
+import javafx.collections.ObservableList;
 
 import java.net.InetAddress;
+import java.util.List;
 
 
 /**
  * Dati e propriet&agrave; per l'interfaccia grafica
  */
 public class Model {
+    /**
+     * Numero massimo di messaggi conservati, dato da chat.gui.max_messages (default 1000): i più vecchi vengono rimossi
+     */
+    public static final int MAX_MESSAGES = Math.max(1, Config.getInt("gui.max_messages", 1000));
+
     public ObjectProperty<ChatClient> client_property = new SimpleObjectProperty<>(null);
     public ReadOnlyIntegerProperty client_id = new SimpleIntegerProperty(0);
     public ReadOnlyObjectProperty<InetAddress> group_address = new SimpleObjectProperty<InetAddress>();
     public ReadOnlyIntegerProperty group_port = new SimpleIntegerProperty(0);
 
+    /**
+     * I messaggi mostrati nella finestra principale, dal più vecchio; va modificata solo nel thread di JavaFX
+     */
+    public final ObservableList<ChatMessage> messages = FXCollections.observableArrayList();
+
     private ChatClient client;
 
     /**
@@ -44,4 +58,33 @@ public class Model {
             }
         }
     }
+
+    /**
+     * Aggiunge un messaggio in fondo alla lista, rimuovendo i più vecchi oltre MAX_MESSAGES.
+     * Va chiamato nel thread di JavaFX.
+     *
+     * @param message Il messaggio da aggiungere
+     */
+    public void addMessage(ChatMessage message) {
+        messages.add(message);
+        trimMessages();
+    }
+
+    /**
+     * Aggiunge dei messaggi in fondo alla lista con un'unica modifica, rimuovendo i più vecchi oltre MAX_MESSAGES.
+     * Va chiamato nel thread di JavaFX.
+     *
+     * @param added I messaggi da aggiungere, in ordine
+     */
+    public void addMessages(List<ChatMessage> added) {
+        if (added.size() > MAX_MESSAGES)
+            added = added.subList(added.size() - MAX_MESSAGES, added.size());
+        messages.addAll(added);
+        trimMessages();
+    }
+
+    private void trimMessages() {
+        if (messages.size() > MAX_MESSAGES)
+            messages.remove(0, messages.size() - MAX_MESSAGES);
+    }
 }
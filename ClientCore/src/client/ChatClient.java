@@ -0,0 +1,1016 @@
+package client;
+
+import backend.*;
+import interfaces.ClientObserver;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.ProtocolException;
+import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+
+/**
+ * Classe che definisce i client della chatroom.
+ */
+public class ChatClient extends ChatHost {
+    private static final int USERNAME_MIN_LENGTH = 3;
+    private static final int USERNAME_MAX_LENGTH = 32;
+
+    /**
+     * Numero di sequenze recenti ricordate per riconoscere i duplicati
+     */
+    private static final int SEQUENCE_WINDOW = 1024;
+    /**
+     * Numero massimo di richieste di ritrasmissione per ogni pacchetto mancante
+     */
+    private static final int MAX_NACK_ATTEMPTS = 5;
+    /**
+     * Numero massimo di NACK inviati per ogni mittente a ogni controllo
+     */
+    private static final int MAX_NACK_RANGES = 8;
+    /**
+     * Numero massimo di pacchetti del gruppo trattenuti durante il recupero dello storico:
+     * raggiunto il limite il recupero viene concluso con i messaggi ricevuti fino a quel momento
+     */
+    private static final int MAX_PENDING_LIVE = 4096;
+
+    /**
+     * Il timer che ripete le richieste di ritrasmissione e invia gli heartbeat, condiviso da tutti i ChatClient del processo
+     */
+    private static final ScheduledExecutorService timer =
+            Executors.newSingleThreadScheduledExecutor(HostThreads.factory("client-timer"));
+
+    private InetAddress server_address;
+    private int server_port;
+    private volatile InetAddress server_group_address;
+
+    private volatile int client_id = -1;
+    private String username;
+
+    private final SubmissionPublisher<ChatPacket> publisher;
+
+    private final Map<InetSocketAddress, SequenceTracker> trackers = new HashMap<>();
+    private InetAddress last_source_address;
+    private int last_source_port;
+    private SequenceTracker last_tracker;
+    private ScheduledFuture<?> nack_task;
+    private ScheduledFuture<?> heartbeat_task;
+
+    private final Object catch_up_lock = new Object();
+    private List<ChatPacket> backlog;
+    private List<LivePacket> pending_live;
+    private List<ChatPacket> releasing;
+    private long next_history_sequence;
+    private long history_cutoff;
+    private long history_progress;
+    private long history_requested;
+    private long history_retry_nanos;
+    private ScheduledFuture<?> catch_up_timeout;
+    private ScheduledFuture<?> history_retry;
+
+    private volatile ChatPacket registration_request;
+    private volatile CompletableFuture<ChatClient> registration;
+
+    /**
+     * Istanzia un oggetto della classe ChatClient, imposta i dovuti parametri e tenta la registrazione con il server.
+     * L'observer viene notificato nel thread di ricezione; un'interfaccia grafica deve usare il costruttore con
+     * notifier (es. Platform::runLater per JavaFX).
+     *
+     * @param group_address  Indirizzo del gruppo multicast
+     * @param listening_port Porta in ascolto dal client (La porta a cui il gruppo multicast invierà pacchetti)
+     * @param server_address Indirizzo del server
+     * @param server_port    Porta del server
+     * @param username       Username di registrazione
+     * @param observer       Riferimento a un'istanza di una classe che implementa l'interfaccia ClientObserver, a cui notificare eventi
+     * @throws IOException      In caso di errore durante la connessione o la registrazione
+     * @throws TimeoutException In caso di mancata risposta dal server
+     */
+    public ChatClient(InetAddress group_address, int listening_port,
+                      InetAddress server_address, int server_port, String username, ClientObserver observer)
+            throws IOException, TimeoutException {
+        this(group_address, listening_port, server_address, server_port, username, observer, Runnable::run);
+    }
+
+    /**
+     * Istanzia un ChatClient che notifica gli eventi all'observer tramite l'Executor specificato.
+     * Con un Executor che esegue direttamente i task (Runnable::run) le notifiche avvengono nel thread di ricezione:
+     * è la modalità usata da LoadGenerator.
+     *
+     * @param group_address  Indirizzo del gruppo multicast
+     * @param listening_port Porta in ascolto dal client (La porta a cui il gruppo multicast invierà pacchetti)
+     * @param server_address Indirizzo del server
+     * @param server_port    Porta del server
+     * @param username       Username di registrazione
+     * @param observer       Riferimento a un'istanza di una classe che implementa l'interfaccia ClientObserver, a cui notificare eventi
+     * @param notifier       Executor in cui vengono chiamati i metodi dell'observer
+     * @throws IOException      In caso di errore durante la connessione o la registrazione
+     * @throws TimeoutException In caso di mancata risposta dal server
+     */
+    public ChatClient(InetAddress group_address, int listening_port,
+                      InetAddress server_address, int server_port, String username, ClientObserver observer,
+                      Executor notifier)
+            throws IOException, TimeoutException {
+        this(group_address, listening_port, server_address, server_port, username, observer, notifier,
+                Config.getInt("history.last", 0), 0);
+    }
+
+    /**
+     * Istanzia un ChatClient che alla registrazione chiede al server i messaggi dello storico.
+     * I messaggi dello storico vengono notificati all'observer prima di quelli ricevuti dal gruppo,
+     * senza ripetere quelli ricevuti da entrambi. Con history_count e history_since uguali a 0 non viene
+     * chiesto lo storico; con entrambi vengono inviati gli ultimi history_count messaggi a partire da history_since.
+     *
+     * @param group_address  Indirizzo del gruppo multicast
+     * @param listening_port Porta in ascolto dal client (La porta a cui il gruppo multicast invierà pacchetti)
+     * @param server_address Indirizzo del server
+     * @param server_port    Porta del server
+     * @param username       Username di registrazione
+     * @param observer       Riferimento a un'istanza di una classe che implementa l'interfaccia ClientObserver, a cui notificare eventi
+     * @param notifier       Executor in cui vengono chiamati i metodi dell'observer (vedi MessageDispatcher)
+     * @param history_count  Numero di messaggi recenti dello storico da ricevere, 0 se nessuno
+     * @param history_since  Istante in millisecondi da cui ricevere i messaggi dello storico, 0 se nessuno
+     * @throws IOException      In caso di errore durante la connessione o la registrazione
+     * @throws TimeoutException In caso di mancata risposta dal server
+     */
+    public ChatClient(InetAddress group_address, int listening_port,
+                      InetAddress server_address, int server_port, String username, ClientObserver observer,
+                      Executor notifier, int history_count, long history_since)
+            throws IOException, TimeoutException {
+        this(group_address, listening_port, server_address, server_port, username,
+                new MessageDispatcher(observer, notifier), Runnable::run, history_count, history_since);
+    }
+
+    /**
+     * Istanzia un ChatClient che consegna i messaggi ricevuti al Subscriber specificato (vedi subscribe).
+     *
+     * @param group_address  Indirizzo del gruppo multicast
+     * @param listening_port Porta in ascolto dal client (La porta a cui il gruppo multicast invierà pacchetti)
+     * @param server_address Indirizzo del server
+     * @param server_port    Porta del server
+     * @param username       Username di registrazione
+     * @param subscriber     Destinatario dei messaggi MESSAGE e SERVER_MESSAGE ricevuti
+     * @param delivery       Executor in cui vengono chiamati i metodi dei Subscriber
+     * @throws IOException      In caso di errore durante la connessione o la registrazione
+     * @throws TimeoutException In caso di mancata risposta dal server
+     */
+    public ChatClient(InetAddress group_address, int listening_port,
+                      InetAddress server_address, int server_port, String username,
+                      Flow.Subscriber<? super ChatPacket> subscriber, Executor delivery)
+            throws IOException, TimeoutException {
+        this(group_address, listening_port, server_address, server_port, username, subscriber, delivery,
+                Config.getInt("history.last", 0), 0);
+    }
+
+    /**
+     * Istanzia un ChatClient che consegna i messaggi ricevuti, compresi quelli dello storico, al Subscriber specificato.
+     * Il Subscriber viene registrato prima della registrazione con il server, così che non perda nessun messaggio.
+     * Non dipende da JavaFX: è il costruttore da usare per bot e client senza interfaccia grafica.
+     * Il costruttore attende la fine della registrazione; connect la esegue senza bloccare il chiamante.
+     *
+     * @param group_address  Indirizzo del gruppo multicast
+     * @param listening_port Porta in ascolto dal client (La porta a cui il gruppo multicast invierà pacchetti)
+     * @param server_address Indirizzo del server
+     * @param server_port    Porta del server
+     * @param username       Username di registrazione
+     * @param subscriber     Destinatario dei messaggi MESSAGE e SERVER_MESSAGE ricevuti
+     * @param delivery       Executor in cui vengono chiamati i metodi dei Subscriber (es. ForkJoinPool.commonPool())
+     * @param history_count  Numero di messaggi recenti dello storico da ricevere, 0 se nessuno
+     * @param history_since  Istante in millisecondi da cui ricevere i messaggi dello storico, 0 se nessuno
+     * @throws IOException      In caso di errore durante la connessione o la registrazione
+     * @throws TimeoutException In caso di mancata risposta dal server
+     */
+    public ChatClient(InetAddress group_address, int listening_port,
+                      InetAddress server_address, int server_port, String username,
+                      Flow.Subscriber<? super ChatPacket> subscriber, Executor delivery,
+                      int history_count, long history_since)
+            throws IOException, TimeoutException {
+        this(group_address, listening_port, server_address, server_port, subscriber, delivery);
+        awaitRegistration(register(username, history_count, history_since));
+    }
+
+    /**
+     * Apre il socket del client e registra il Subscriber, senza registrarsi con il server (vedi register)
+     *
+     * @param group_address  Indirizzo del gruppo multicast
+     * @param listening_port Porta in ascolto dal client
+     * @param server_address Indirizzo del server
+     * @param server_port    Porta del server
+     * @param subscriber     Destinatario dei messaggi ricevuti
+     * @param delivery       Executor in cui vengono chiamati i metodi dei Subscriber
+     * @throws IOException In caso di errore durante l'apertura del socket
+     */
+    private ChatClient(InetAddress group_address, int listening_port, InetAddress server_address, int server_port,
+                       Flow.Subscriber<? super ChatPacket> subscriber, Executor delivery) throws IOException {
+        super(listening_port);
+        this.publisher = new SubmissionPublisher<>(delivery, Config.getInt("client.buffer", Flow.defaultBufferSize()));
+        publisher.subscribe(subscriber);
+        setGroup_address(group_address);
+        setServer_address(server_address);
+        setServer_port(server_port);
+        try {
+            setInterface(InetAddress.getLocalHost());
+        } catch (IOException | RuntimeException e) {
+            close();
+            throw e;
+        }
+    }
+
+    /**
+     * Crea un ChatClient e ne avvia la registrazione con il server senza bloccare il chiamante (vedi register).
+     *
+     * @param group_address  Indirizzo del gruppo multicast
+     * @param listening_port Porta in ascolto dal client (La porta a cui il gruppo multicast invierà pacchetti)
+     * @param server_address Indirizzo del server
+     * @param server_port    Porta del server
+     * @param username       Username di registrazione
+     * @param subscriber     Destinatario dei messaggi MESSAGE e SERVER_MESSAGE ricevuti
+     * @param delivery       Executor in cui vengono chiamati i metodi dei Subscriber
+     * @param history_count  Numero di messaggi recenti dello storico da ricevere, 0 se nessuno
+     * @param history_since  Istante in millisecondi da cui ricevere i messaggi dello storico, 0 se nessuno
+     * @return Il client, completato quando il server accetta la registrazione; in caso di errore, di registrazione
+     * rifiutata (ConnectException) o di mancata risposta (TimeoutException) viene completato con l'eccezione
+     * e il client viene chiuso
+     */
+    public static CompletableFuture<ChatClient> connect(InetAddress group_address, int listening_port,
+                                                        InetAddress server_address, int server_port, String username,
+                                                        Flow.Subscriber<? super ChatPacket> subscriber, Executor delivery,
+                                                        int history_count, long history_since) {
+        ChatClient client;
+        try {
+            client = new ChatClient(group_address, listening_port, server_address, server_port, subscriber, delivery);
+        } catch (IOException | RuntimeException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        return client.register(username, history_count, history_since);
+    }
+
+    /**
+     * Crea un ChatClient che notifica gli eventi all'observer tramite l'Executor specificato e ne avvia la
+     * registrazione senza bloccare il chiamante. Lo storico viene chiesto come nel costruttore corrispondente.
+     *
+     * @param group_address  Indirizzo del gruppo multicast
+     * @param listening_port Porta in ascolto dal client (La porta a cui il gruppo multicast invierà pacchetti)
+     * @param server_address Indirizzo del server
+     * @param server_port    Porta del server
+     * @param username       Username di registrazione
+     * @param observer       Riferimento a un'istanza di una classe che implementa l'interfaccia ClientObserver, a cui notificare eventi
+     * @param notifier       Executor in cui vengono chiamati i metodi dell'observer
+     * @return Il client, completato quando il server accetta la registrazione (vedi l'altro connect)
+     */
+    public static CompletableFuture<ChatClient> connect(InetAddress group_address, int listening_port,
+                                                        InetAddress server_address, int server_port, String username,
+                                                        ClientObserver observer, Executor notifier) {
+        return connect(group_address, listening_port, server_address, server_port, username,
+                new MessageDispatcher(observer, notifier), Runnable::run, Config.getInt("history.last", 0), 0);
+    }
+
+    /**
+     * Aggiunge un destinatario dei messaggi ricevuti dal client, a partire dal successivo.
+     * <p>
+     * Ogni Subscriber riceve i messaggi nell'ordine di arrivo, nell'Executor di consegna, solo quanti ne ha
+     * richiesti con Flow.Subscription.request; quelli non ancora richiesti restano in un buffer di chat.client.buffer
+     * messaggi per Subscriber (default Flow.defaultBufferSize()). Quando il buffer di un Subscriber è pieno
+     * il thread di ricezione si ferma finché non si libera: i datagram in eccesso vengono scartati dal socket e
+     * recuperati in seguito con i NACK, invece di accumularsi in memoria. Alla chiusura del client viene chiamato onComplete.
+     *
+     * @param subscriber Il destinatario dei messaggi MESSAGE e SERVER_MESSAGE
+     */
+    public void subscribe(Flow.Subscriber<? super ChatPacket> subscriber) {
+        publisher.subscribe(subscriber);
+    }
+
+    /**
+     * Consegna un messaggio ai Subscriber, attendendo se il buffer di uno di essi è pieno.
+     * Dopo la chiusura il messaggio viene scartato.
+     */
+    private void publish(ChatPacket message) {
+        try {
+            publisher.submit(message);
+        } catch (IllegalStateException e) {
+            // Client chiuso
+        }
+    }
+
+    /**
+     * Avvia la registrazione del client al server specificando l'username scelto, senza attenderne la risposta.
+     * <p>
+     * La risposta viene ricevuta dal Receiver thread, avviato subito, e riconosciuta dal nonce casuale della richiesta.
+     * Finché non arriva la richiesta viene ripetuta nel timer condiviso dei client, con attese che partono da
+     * chat.registration.backoff millisecondi (default 250) e raddoppiano fino a chat.registration.max_backoff
+     * (default 4000), ridotte ogni volta di una quantità casuale fino alla metà così che i client partiti insieme
+     * non ripetano le richieste insieme. Dopo chat.registration.timeout millisecondi (default 10000) senza risposta
+     * la registrazione fallisce con una TimeoutException. In caso di errore il client viene chiuso.
+     * <p>
+     * Se viene chiesto lo storico, il client si unisce al gruppo prima di inviare la richiesta, così che nessun
+     * messaggio successivo all'ultimo dello storico vada perso; i messaggi ricevuti nel frattempo vengono
+     * trattenuti fino al termine del recupero (vedi finishCatchUp).
+     *
+     * @param username      Username di registrazione
+     * @param history_count Numero di messaggi recenti dello storico da ricevere, 0 se nessuno
+     * @param history_since Istante in millisecondi da cui ricevere i messaggi dello storico, 0 se nessuno
+     * @return Il client, completato all'accettazione della registrazione
+     */
+    private CompletableFuture<ChatClient> register(String username, int history_count, long history_since) {
+        CompletableFuture<ChatClient> future = new CompletableFuture<>();
+        future.whenComplete((client, error) -> {
+            if (error != null)
+                close();
+        });
+        try {
+            setUsername(username);
+            ChatPacket request = new ChatPacket(ChatPacket.Type.REGISTRATION_REQUEST, username);
+            request.nonce = ThreadLocalRandom.current().nextInt(1, Integer.MAX_VALUE);
+            request.history_count = history_count;
+            request.history_since = history_since;
+            if (history_count > 0 || history_since > 0) {
+                synchronized (catch_up_lock) {
+                    backlog = new ArrayList<>();
+                    pending_live = new ArrayList<>();
+                }
+                joinGroup(group_address);
+            }
+            registration_request = request;
+            registration = future;
+            startReceiver();
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(Config.getLong("registration.timeout", 10000));
+            sendRegistrationRequest(Config.getLong("registration.backoff", 250), deadline);
+        } catch (IOException | RuntimeException e) {
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    /**
+     * Invia la richiesta di registrazione e programma la ripetizione successiva, finché non arriva la risposta
+     * o non scade il tempo
+     *
+     * @param backoff  Attesa massima prima della ripetizione, in millisecondi
+     * @param deadline Istante, come System.nanoTime, oltre il quale la registrazione fallisce
+     */
+    private void sendRegistrationRequest(long backoff, long deadline) {
+        if (registration.isDone())
+            return;
+        long remaining = deadline - System.nanoTime();
+        if (remaining <= 0) {
+            registration.completeExceptionally(new TimeoutException("Nessuna risposta dal server alla registrazione"));
+            return;
+        }
+        try {
+            sendPacket(registration_request, getServer_address(), getServer_port());
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        long delay = TimeUnit.MILLISECONDS.toNanos(ThreadLocalRandom.current().nextLong(backoff / 2, backoff + 1));
+        long next_backoff = Math.min(backoff * 2, Math.max(backoff, Config.getLong("registration.max_backoff", 4000)));
+        timer.schedule(() -> sendRegistrationRequest(next_backoff, deadline), Math.min(delay, remaining), TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Conclude la registrazione in corso se la risposta corrisponde alla richiesta: per nonce, oppure per username
+     * se il server non ripete il nonce. Le risposte alle richieste ripetute, arrivate dopo la prima, vengono ignorate.
+     *
+     * @param reply Il REGISTRATION_ACCEPTED o REGISTRATION_DENIED ricevuto
+     */
+    private void receiveRegistration(ChatPacket reply) {
+        CompletableFuture<ChatClient> future = registration;
+        ChatPacket request = registration_request;
+        if (future == null || future.isDone())
+            return;
+        if (reply.nonce != 0 ? reply.nonce != request.nonce : !username.equals(reply.message_content))
+            return;
+        if (reply.message_type == ChatPacket.Type.REGISTRATION_DENIED) {
+            future.completeExceptionally(new ConnectException("Registrazione rifiutata: username già esistente"));
+            return;
+        }
+        client_id = reply.id;
+        try {
+            if (request.history_count > 0 || request.history_since > 0)
+                startCatchUpTimeout();
+            else
+                joinGroup(group_address);
+        } catch (IOException e) {
+            future.completeExceptionally(e);
+            return;
+        }
+        startNackTimer();
+        startHeartbeat();
+        // Scaduto il tempo nel frattempo: il client è già stato chiuso, va fermato quanto avviato qui
+        if (!future.complete(this))
+            close();
+    }
+
+    /**
+     * Attende la fine della registrazione, rilanciando l'eccezione con cui è fallita
+     *
+     * @param registration La registrazione avviata da register
+     * @throws IOException      In caso di errore durante la registrazione, o di registrazione rifiutata
+     * @throws TimeoutException In caso di mancata risposta dal server
+     */
+    private static void awaitRegistration(CompletableFuture<ChatClient> registration) throws IOException, TimeoutException {
+        try {
+            registration.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException)
+                throw (IOException) cause;
+            if (cause instanceof TimeoutException)
+                throw (TimeoutException) cause;
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            throw new IOException("Errore durante la registrazione", cause);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            registration.completeExceptionally(e);
+            throw new IOException("Registrazione interrotta", e);
+        }
+    }
+
+    /**
+     * Avvia il controllo periodico dei pacchetti mancanti, che ripete le richieste di ritrasmissione senza risposta.
+     * L'intervallo in millisecondi è dato da chat.reliable.nack_interval (0 disattiva le ripetizioni).
+     */
+    private void startNackTimer() {
+        long interval = Config.getLong("reliable.nack_interval", 100);
+        if (interval <= 0)
+            return;
+        nack_task = timer.scheduleWithFixedDelay(this::requestMissing, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Avvia l'invio periodico di heartbeat al server, che rimuove gli utenti da cui non riceve pacchetti
+     * per più di chat.heartbeat.timeout millisecondi. L'intervallo in millisecondi è dato da
+     * chat.heartbeat.interval (default 10000, 0 disattiva gli heartbeat).
+     */
+    private void startHeartbeat() {
+        long interval = Config.getLong("heartbeat.interval", 10000);
+        if (interval <= 0)
+            return;
+        heartbeat_task = timer.scheduleAtFixedRate(this::sendHeartbeat, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Conclude il recupero dello storico dopo chat.history.timeout millisecondi (default 5000) anche se non è
+     * arrivato l'ultimo HISTORY, ad esempio perché il server non supporta lo storico.
+     * La consegna avviene in un thread a parte: può attendere un Subscriber lento, e il timer è condiviso
+     * da NACK, heartbeat e registrazioni di tutti i client.
+     * Se per chat.history.retry millisecondi (default 1000) non arrivano HISTORY, l'invio viene chiesto di nuovo
+     * a partire dal primo messaggio mancante (vedi retryHistory).
+     */
+    private void startCatchUpTimeout() {
+        long timeout = Config.getLong("history.timeout", 5000);
+        long retry = Config.getLong("history.retry", 1000);
+        synchronized (catch_up_lock) {
+            if (backlog == null)
+                return;
+            history_progress = System.nanoTime();
+            history_retry_nanos = TimeUnit.MILLISECONDS.toNanos(retry);
+            catch_up_timeout = timer.schedule(() -> HostThreads.start("history-catch-up", this::finishCatchUp),
+                    timeout, TimeUnit.MILLISECONDS);
+            if (retry > 0)
+                history_retry = timer.scheduleWithFixedDelay(this::retryHistory, retry, retry, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Chiede di nuovo lo storico se non arrivano HISTORY da almeno chat.history.retry millisecondi: l'ultimo
+     * pacchetto, o quelli successivi al primo mancante, sono andati persi. Chiamato periodicamente da timer
+     * durante il recupero.
+     */
+    private void retryHistory() {
+        long from;
+        synchronized (catch_up_lock) {
+            if (backlog == null)
+                return;
+            long now = System.nanoTime();
+            if (now - history_progress < history_retry_nanos)
+                return;
+            history_progress = now;
+            history_requested = now;
+            from = Math.max(1, next_history_sequence);
+        }
+        requestHistory(from);
+    }
+
+    /**
+     * Ripete la richiesta di registrazione chiedendo al server di inviare di nuovo lo storico a partire da from.
+     * Il server riconosce la richiesta dal nonce e invia i messaggi fino alla fine dell'intervallo stabilito
+     * alla registrazione, con lo stesso ultimo numero di sequenza del gruppo.
+     *
+     * @param from Numero di sequenza nello storico del primo messaggio mancante
+     */
+    private void requestHistory(long from) {
+        ChatPacket request = registration_request;
+        ChatPacket retry = new ChatPacket(ChatPacket.Type.REGISTRATION_REQUEST, request.message_content);
+        retry.nonce = request.nonce;
+        retry.history_count = request.history_count;
+        retry.history_since = request.history_since;
+        retry.history_from = from;
+        try {
+            sendPacket(retry, server_address, server_port);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Comunica al server che il client è ancora attivo
+     */
+    private void sendHeartbeat() {
+        if (!isRegistered() || isClosed())
+            return;
+        try {
+            sendPacket(new ChatPacket(ChatPacket.Type.HEARTBEAT, client_id), server_address, server_port);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Invia un messaggio al server, che inoltrerà al gruppo multicast
+     *
+     * @param message_content Contenuto del messaggio
+     */
+    public void sendMessage(String message_content) {
+        ChatPacket message = new ChatPacket(ChatPacket.Type.MESSAGE, client_id, message_content);
+        try {
+            sendPacket(message, server_address, server_port);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Riceve un datagram e lo restituisce
+     *
+     * @return Il datagram ricevuto
+     */
+    @Override
+    protected Datagram receiveMessage() throws IOException {
+        return receive();
+    }
+
+    /**
+     * Il protocollo di comunicazione del client.
+     * Dato un pacchetto datagram inserito come parametro, il client elabora la risposta e effettua le dovute operazioni
+     *
+     * @param received_packet Il pacchetto in ingresso
+     */
+    @Override
+    protected void processMessage(Datagram received_packet) {
+        ChatPacket received_message = null;
+
+
+        if (received_packet == null) {
+            return;
+        }
+
+        long sequence = 0;
+        if (PacketCodec.isFragment(received_packet.getData())) {
+            sequence = readFragmentSequence(received_packet);
+            if (sequence < 0 || sequence != 0 && !acceptSequence(sequence, received_packet))
+                return;
+            received_packet = reassemble(received_packet);
+            if (received_packet == null)
+                return;
+        }
+        received_packet = decompress(received_packet);
+        if (received_packet == null)
+            return;
+
+        try {
+            received_message = ChatPacket.decode(received_packet.getData());
+        } catch (IOException | ClassNotFoundException | NullPointerException e) {
+            metrics.decodeFailed();
+            e.printStackTrace();
+            return;
+        }
+
+        if (received_message == null) {
+            return;
+        }
+        metrics.received(received_message.message_type);
+
+        if (received_message.sequence != 0) {
+            if (!acceptSequence(received_message.sequence, received_packet))
+                return;
+            sequence = received_message.sequence;
+        }
+        long server_sequence = isFromServer(received_packet) ? sequence : 0;
+
+        switch (received_message.message_type) {
+            case MESSAGE:
+                deliver(received_message, server_sequence);
+                break;
+            case REGISTRATION_REQUEST:
+                break;
+            case REGISTRATION_ACCEPTED:
+                receiveRegistration(received_message);
+                break;
+            case REGISTRATION_DENIED:
+                receiveRegistration(received_message);
+                break;
+            case SERVER_MESSAGE:
+                deliver(received_message, server_sequence);
+                break;
+            case MESSAGE_BATCH:
+                deliver(received_message, server_sequence);
+                break;
+            case NACK:
+                break;
+            case HEARTBEAT:
+                break;
+            case FRAGMENT:
+                break;
+            case HISTORY:
+                receiveHistory(received_message);
+                break;
+        }
+    }
+
+    /**
+     * Un server sulla stessa macchina, raggiunto tramite un indirizzo di loopback, invia al gruppo dall'indirizzo
+     * dell'interfaccia multicast: in quel caso vale come mittente del server qualunque indirizzo locale con la porta
+     * del server, e l'ultimo riconosciuto viene ricordato in server_group_address.
+     *
+     * @return true se il datagram è stato inviato dal server con cui il client è registrato
+     */
+    private boolean isFromServer(Datagram received_packet) {
+        if (received_packet.getPort() != server_port)
+            return false;
+        InetAddress address = received_packet.getAddress();
+        if (address.equals(server_address) || address.equals(server_group_address))
+            return true;
+        if (!server_address.isLoopbackAddress() || !isLocalAddress(address))
+            return false;
+        server_group_address = address;
+        return true;
+    }
+
+    private static boolean isLocalAddress(InetAddress address) {
+        try {
+            return address.isLoopbackAddress() || NetworkInterface.getByInetAddress(address) != null;
+        } catch (SocketException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Consegna ai Subscriber un MESSAGE, un SERVER_MESSAGE o i messaggi di un MESSAGE_BATCH ricevuti dal gruppo.
+     * I pacchetti del server con numero di sequenza non successivo a history_cutoff sono già compresi nello storico
+     * e vengono scartati. Durante il recupero dello storico, e finché finishCatchUp non ha consegnato i messaggi
+     * trattenuti, i messaggi vengono accodati, per essere consegnati dopo quelli dello storico.
+     *
+     * @param packet          Il pacchetto ricevuto
+     * @param server_sequence Numero di sequenza del pacchetto se inviato dal server, altrimenti 0
+     */
+    private void deliver(ChatPacket packet, long server_sequence) {
+        boolean finish = false;
+        synchronized (catch_up_lock) {
+            if (server_sequence != 0 && server_sequence <= history_cutoff)
+                return;
+            if (backlog != null) {
+                pending_live.add(new LivePacket(packet, server_sequence));
+                finish = pending_live.size() >= MAX_PENDING_LIVE;
+                if (!finish)
+                    return;
+            } else if (releasing != null) {
+                if (packet.message_type == ChatPacket.Type.MESSAGE_BATCH)
+                    releasing.addAll(packet.batch);
+                else
+                    releasing.add(packet);
+                return;
+            }
+        }
+        if (finish) {
+            finishCatchUp();
+            return;
+        }
+        if (!isRegistered())
+            return;
+        if (packet.message_type == ChatPacket.Type.MESSAGE_BATCH)
+            packet.batch.forEach(this::publish);
+        else
+            publish(packet);
+    }
+
+    /**
+     * Aggiunge allo storico in corso di recupero i messaggi di un HISTORY, scartando quelli già ricevuti,
+     * e conclude il recupero se è l'ultimo pacchetto.
+     * Se il pacchetto inizia dopo il primo messaggio mancante, un HISTORY precedente è andato perso: il pacchetto
+     * viene scartato e si chiede al server di ripetere l'invio dal primo mancante, al massimo una volta ogni
+     * chat.history.retry millisecondi, dato che i pacchetti successivi dell'invio in corso arrivano anch'essi
+     * dopo il mancante.
+     *
+     * @param history Il pacchetto HISTORY ricevuto dal server
+     */
+    private void receiveHistory(ChatPacket history) {
+        long resend_from = 0;
+        synchronized (catch_up_lock) {
+            if (backlog == null)
+                return;
+            history_cutoff = history.history_cutoff;
+            if (next_history_sequence == 0)
+                next_history_sequence = history.history_start;
+            if (history.history_sequence > next_history_sequence) {
+                long now = System.nanoTime();
+                if (history_requested != 0 && now - history_requested < history_retry_nanos)
+                    return;
+                history_requested = now;
+                resend_from = Math.max(1, next_history_sequence);
+            } else {
+                history_progress = System.nanoTime();
+                for (int i = 0; i < history.batch.size(); i++) {
+                    long sequence = history.history_sequence + i;
+                    if (sequence < next_history_sequence)
+                        continue;
+                    backlog.add(history.batch.get(i));
+                    next_history_sequence = sequence + 1;
+                }
+                if (history.history_remaining != 0)
+                    return;
+            }
+        }
+        if (resend_from != 0)
+            requestHistory(resend_from);
+        else
+            finishCatchUp();
+    }
+
+    /**
+     * Conclude il recupero dello storico: consegna ai Subscriber i messaggi dello storico e poi quelli ricevuti
+     * dal gruppo nel frattempo, tranne i pacchetti del server già compresi nello storico.
+     * I messaggi vengono consegnati fuori da catch_up_lock, dato che publish può attendere un Subscriber lento;
+     * intanto deliver accoda i nuovi messaggi in releasing, consegnati qui dopo quelli trattenuti.
+     */
+    private void finishCatchUp() {
+        List<ChatPacket> release;
+        synchronized (catch_up_lock) {
+            if (backlog == null)
+                return;
+            List<ChatPacket> history = backlog;
+            List<LivePacket> live = pending_live;
+            backlog = null;
+            pending_live = null;
+            if (catch_up_timeout != null)
+                catch_up_timeout.cancel(false);
+            if (history_retry != null)
+                history_retry.cancel(false);
+            release = new ArrayList<>(history.size() + live.size());
+            release.addAll(history);
+            for (LivePacket packet : live) {
+                if (packet.server_sequence != 0 && packet.server_sequence <= history_cutoff)
+                    continue;
+                if (packet.packet.message_type == ChatPacket.Type.MESSAGE_BATCH)
+                    release.addAll(packet.packet.batch);
+                else
+                    release.add(packet.packet);
+            }
+            releasing = new ArrayList<>();
+        }
+        while (true) {
+            release.forEach(this::publish);
+            synchronized (catch_up_lock) {
+                if (releasing.isEmpty()) {
+                    releasing = null;
+                    return;
+                }
+                release = releasing;
+                releasing = new ArrayList<>();
+            }
+        }
+    }
+
+    /**
+     * Legge il numero di sequenza di un FRAGMENT, da controllare prima di passarlo al Reassembler.
+     * Il datagram ricomposto non ha numero di sequenza: i frammenti sono numerati e ritrasmessi singolarmente,
+     * e al datagram ricomposto si attribuisce il numero dell'ultimo frammento arrivato.
+     *
+     * @param fragment Il datagram contenente il FRAGMENT
+     * @return Il numero di sequenza, 0 se assente, -1 se l'intestazione non è valida
+     */
+    private long readFragmentSequence(Datagram fragment) {
+        try {
+            return PacketCodec.readHeader(fragment.getData().duplicate());
+        } catch (ProtocolException e) {
+            metrics.decodeFailed();
+            e.printStackTrace();
+            return -1;
+        }
+    }
+
+    /**
+     * Registra il numero di sequenza di un pacchetto ricevuto e, se rileva nuovi pacchetti mancanti,
+     * ne chiede subito la ritrasmissione al server; le richieste successive le ripete il timer dei NACK.
+     * Il pacchetto va comunque consegnato se non è un duplicato, senza attendere i mancanti.
+     *
+     * @param sequence        Il numero di sequenza del pacchetto
+     * @param received_packet Il datagram ricevuto, da cui si ricava il mittente
+     * @return true se il pacchetto va consegnato, false se è un duplicato
+     */
+    private boolean acceptSequence(long sequence, Datagram received_packet) {
+        SequenceTracker tracker = trackerFor(received_packet.getAddress(), received_packet.getPort());
+        if (!tracker.received(sequence))
+            return false;
+        if (tracker.hasNewMissing() && isRegistered())
+            sendNacks(tracker.newRanges(MAX_NACK_RANGES), received_packet.getAddress(), received_packet.getPort());
+        return true;
+    }
+
+    /**
+     * Restituisce il SequenceTracker del mittente, creandolo se necessario.
+     * I pacchetti arrivano quasi sempre dallo stesso mittente, quindi l'ultimo tracker usato viene tenuto da parte.
+     *
+     * @param address Indirizzo del mittente
+     * @param port    Porta del mittente
+     * @return Il SequenceTracker del mittente
+     */
+    private SequenceTracker trackerFor(InetAddress address, int port) {
+        synchronized (trackers) {
+            if (last_tracker != null && port == last_source_port && address.equals(last_source_address))
+                return last_tracker;
+            last_tracker = trackers.computeIfAbsent(new InetSocketAddress(address, port),
+                    source -> new SequenceTracker(SEQUENCE_WINDOW, MAX_NACK_ATTEMPTS));
+            last_source_address = address;
+            last_source_port = port;
+            return last_tracker;
+        }
+    }
+
+    /**
+     * Ripete le richieste di ritrasmissione per tutti i mittenti con pacchetti ancora mancanti.
+     * Chiamato periodicamente da timer.
+     */
+    private void requestMissing() {
+        if (!isRegistered() || isClosed())
+            return;
+        Map<InetSocketAddress, SequenceTracker> snapshot;
+        synchronized (trackers) {
+            snapshot = new HashMap<>(trackers);
+        }
+        for (Map.Entry<InetSocketAddress, SequenceTracker> entry : snapshot.entrySet()) {
+            if (entry.getValue().hasMissing())
+                sendNacks(entry.getValue().pendingRanges(MAX_NACK_RANGES), entry.getKey().getAddress(), entry.getKey().getPort());
+        }
+    }
+
+    /**
+     * Invia un NACK per ogni intervallo di pacchetti mancanti
+     *
+     * @param ranges  Gli intervalli restituiti dal SequenceTracker del mittente
+     * @param address Indirizzo del mittente, a cui vengono inviate le richieste
+     * @param port    Porta del mittente
+     */
+    private void sendNacks(long[][] ranges, InetAddress address, int port) {
+        for (long[] range : ranges) {
+            try {
+                sendPacket(new ChatPacket(client_id, range[0], (int) range[1]), address, port);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Controlla se il client è già registrato
+     *
+     * @return true se il suo client_id è maggiore di 0, altrimenti false
+     */
+    public boolean isRegistered() {
+        return client_id > 0;
+    }
+
+    /**
+     * Invia un messaggio di disconnessione al server, interrompe il backend.backend.Receiver thread e chiude il socket
+     */
+    public void disconnect() {
+        try {
+            sendPacket(new ChatPacket(ChatPacket.Type.DISCONNECT_MESSAGE, getClient_id()), getServer_address(), getServer_port());
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        close();
+    }
+
+    /**
+     * Interrompe il controllo dei pacchetti mancanti, gli heartbeat e l'attesa dello storico, chiude il socket
+     * e notifica la chiusura ai Subscriber
+     */
+    @Override
+    public void close() {
+        if (nack_task != null)
+            nack_task.cancel(false);
+        if (heartbeat_task != null)
+            heartbeat_task.cancel(false);
+        synchronized (catch_up_lock) {
+            if (catch_up_timeout != null)
+                catch_up_timeout.cancel(false);
+            if (history_retry != null)
+                history_retry.cancel(false);
+        }
+        super.close();
+        publisher.close();
+    }
+
+    /**
+     * @return L'indirizzo del server
+     */
+    public InetAddress getServer_address() {
+        return server_address;
+    }
+
+    /**
+     * @param server_address L'indirizzo del server
+     */
+    public void setServer_address(InetAddress server_address) {
+        this.server_address = server_address;
+    }
+
+    /**
+     * @return La porta del server
+     */
+    public int getServer_port() {
+        return server_port;
+    }
+
+    /**
+     * @param server_port La porta del server
+     */
+    public void setServer_port(int server_port) {
+        this.server_port = server_port;
+    }
+
+    /**
+     * @return L'indirizzo del gruppo
+     */
+    public InetAddress getGroup_address() {
+        return group_address;
+    }
+
+    /**
+     * @param group_address L'indirizzo del gruppo
+     */
+    public void setGroup_address(InetAddress group_address) {
+        this.group_address = group_address;
+    }
+
+    /**
+     * @return L'id del client
+     */
+    public int getClient_id() {
+        return client_id;
+    }
+
+    /**
+     * Imposta l'id del client.
+     * Se il client è già registrato, non viene effetuata alcuna operazione
+     *
+     * @param client_id L'id del client
+     */
+    public void setClient_id(int client_id) {
+        if (isRegistered()) {
+            return;
+        }
+        this.client_id = client_id;
+    }
+
+    /**
+     * @return L'username di registrazione
+     */
+    public String getUsername() {
+        return username;
+    }
+
+    /**
+     * Imposta l'username di registrazione
+     *
+     * @param username Username di registrazione
+     * @throws IllegalArgumentException Se l'username non rispetta i vincoli di lunghezza
+     */
+    public void setUsername(String username) throws IllegalArgumentException {
+        if (username.length() < USERNAME_MIN_LENGTH || username.length() > USERNAME_MAX_LENGTH)
+            throw new IllegalArgumentException("Lunghezza username non valida");
+
+        this.username = username;
+    }
+
+    /**
+     * Pacchetto ricevuto dal gruppo durante il recupero dello storico, con il numero di sequenza assegnato dal server
+     */
+    private static class LivePacket {
+        final ChatPacket packet;
+        final long server_sequence;
+
+        LivePacket(ChatPacket packet, long server_sequence) {
+            this.packet = packet;
+            this.server_sequence = server_sequence;
+        }
+    }
+}
+
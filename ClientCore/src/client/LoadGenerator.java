@@ -0,0 +1,226 @@
+package client;
+
+import backend.ChatPacket;
+import backend.HostThreads;
+import backend.LatencyHistogram;
+import interfaces.ClientObserver;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Generatore di carico: simula utenti della chatroom tramite ChatClient senza interfaccia grafica.
+ * <p>
+ * Gli utenti si registrano uno alla volta, poi ognuno invia messaggi alla frequenza e con la dimensione richieste
+ * per la durata del test, infine si disconnettono. Ogni messaggio contiene l'istante di invio, da cui ogni
+ * destinatario calcola la latenza. Il rapporto finale riporta throughput, perdita (messaggi attesi da tutti gli
+ * utenti ma non ricevuti) e percentili di latenza.
+ * <p>
+ * Tutti i client condividono la porta del gruppo: le risposte unicast del server (registrazione, ritrasmissioni)
+ * arrivano al socket aperto per ultimo, per questo la registrazione è sequenziale. Le ritrasmissioni richieste
+ * da un utente possono quindi non raggiungerlo, e la perdita misurata è quella senza recupero.
+ * <p>
+ * Con più porte server (i relay di un cluster, vedi ChatServer) gli utenti vengono distribuiti tra i relay a turno.
+ */
+public class LoadGenerator {
+    private static final String MESSAGE_PREFIX = "LG|";
+
+    private final InetAddress group_address;
+    private final int group_port;
+    private final InetAddress server_address;
+    private final int[] server_ports;
+
+    private final List<ChatClient> clients = new ArrayList<>();
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private final LongAdder sent = new LongAdder();
+    private final LongAdder delivered = new LongAdder();
+    private final LongAdder send_errors = new LongAdder();
+    private int user_count = 0;
+
+    /**
+     * @param group_address  Indirizzo del gruppo multicast
+     * @param group_port     Porta del gruppo multicast
+     * @param server_address Indirizzo del server
+     * @param server_ports   Porte dei server, a cui vengono assegnati gli utenti a turno
+     */
+    public LoadGenerator(InetAddress group_address, int group_port, InetAddress server_address, int... server_ports) {
+        if (server_ports.length == 0)
+            throw new IllegalArgumentException("Specificare almeno una porta server");
+        this.group_address = group_address;
+        this.group_port = group_port;
+        this.server_address = server_address;
+        this.server_ports = server_ports.clone();
+    }
+
+    /**
+     * Registra gli utenti simulati. Gli username sono "lg" seguito dal numero dell'utente.
+     *
+     * @param users Numero di utenti da registrare
+     * @throws IOException      In caso di errore durante la registrazione
+     * @throws TimeoutException In caso di mancata risposta dal server
+     */
+    public void connect(int users) throws IOException, TimeoutException {
+        ClientObserver observer = new ClientObserver() {
+            @Override
+            public void messageReceived(ChatPacket message) {
+                recordDelivery(message, System.nanoTime());
+            }
+
+            @Override
+            public void serverMessageReceived(ChatPacket message) {
+            }
+        };
+        for (int i = 0; i < users; i++) {
+            clients.add(new ChatClient(group_address, group_port, server_address, server_ports[i % server_ports.length],
+                    "lg" + i + "_" + ProcessHandle.current().pid(), observer, Runnable::run));
+            user_count++;
+        }
+    }
+
+    /**
+     * Fa inviare messaggi a tutti gli utenti per la durata specificata, poi attende l'arrivo degli ultimi messaggi
+     *
+     * @param rate     Messaggi al secondo inviati da ogni utente
+     * @param size     Dimensione in caratteri del contenuto di ogni messaggio
+     * @param duration Durata dell'invio in millisecondi
+     * @param drain    Attesa in millisecondi dopo l'ultimo invio
+     * @throws InterruptedException Se il thread viene interrotto durante il test
+     */
+    public void run(double rate, int size, long duration, long drain) throws InterruptedException {
+        long period = Math.max(1, (long) (TimeUnit.SECONDS.toNanos(1) / rate));
+        int threads = Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(), clients.size()));
+        ScheduledExecutorService senders = Executors.newScheduledThreadPool(threads, HostThreads.factory("load-sender"));
+        try {
+            for (ChatClient client : clients) {
+                long initial_delay = ThreadLocalRandom.current().nextLong(period);
+                senders.scheduleAtFixedRate(() -> send(client, size), initial_delay, period, TimeUnit.NANOSECONDS);
+            }
+            Thread.sleep(duration);
+        } finally {
+            senders.shutdownNow();
+            senders.awaitTermination(1, TimeUnit.SECONDS);
+        }
+        Thread.sleep(drain);
+    }
+
+    /**
+     * Disconnette tutti gli utenti simulati
+     */
+    public void disconnect() {
+        for (ChatClient client : clients)
+            client.disconnect();
+        clients.clear();
+    }
+
+    /**
+     * Invia un messaggio contenente id del mittente e istante di invio, completato fino a size caratteri
+     */
+    private void send(ChatClient client, int size) {
+        StringBuilder content = new StringBuilder(size)
+                .append(MESSAGE_PREFIX)
+                .append(System.nanoTime())
+                .append('|');
+        while (content.length() < size)
+            content.append('x');
+        try {
+            client.sendMessage(content.toString());
+            sent.increment();
+        } catch (RuntimeException e) {
+            send_errors.increment();
+        }
+    }
+
+    /**
+     * Registra la latenza di un messaggio inviato dal generatore
+     */
+    private void recordDelivery(ChatPacket message, long received_time) {
+        String content = message.message_content;
+        if (content == null || !content.startsWith(MESSAGE_PREFIX))
+            return;
+        int end = content.indexOf('|', MESSAGE_PREFIX.length());
+        if (end < 0)
+            return;
+        try {
+            long sent_time = Long.parseLong(content, MESSAGE_PREFIX.length(), end, 10);
+            latency.record(received_time - sent_time);
+            delivered.increment();
+        } catch (NumberFormatException ignored) {
+        }
+    }
+
+    /**
+     * Stampa il rapporto del test. Ogni messaggio inviato è atteso da tutti gli utenti registrati, mittente compreso.
+     *
+     * @param duration Durata dell'invio in millisecondi
+     */
+    public void printReport(long duration) {
+        long sent_count = sent.sum();
+        long expected = sent_count * user_count;
+        long delivered_count = delivered.sum();
+        double seconds = duration / 1000.0;
+        System.out.printf("Utenti: %d, durata: %.1f s%n", user_count, seconds);
+        System.out.printf("Messaggi inviati: %d (%.1f/s), errori di invio: %d%n",
+                sent_count, sent_count / seconds, send_errors.sum());
+        System.out.printf("Consegne: %d su %d attese (%.1f/s), perdita: %.3f%%%n",
+                delivered_count, expected, delivered_count / seconds,
+                expected == 0 ? 0 : 100.0 * Math.max(0, expected - delivered_count) / expected);
+        System.out.printf("Latenza (ms): media %.3f, p50 %.3f, p90 %.3f, p99 %.3f, p99.9 %.3f, max %.3f%n",
+                latency.getMean() / 1e6,
+                latency.getValueAtPercentile(50) / 1e6,
+                latency.getValueAtPercentile(90) / 1e6,
+                latency.getValueAtPercentile(99) / 1e6,
+                latency.getValueAtPercentile(99.9) / 1e6,
+                latency.getMax() / 1e6);
+    }
+
+    /**
+     * Punto d'inizio del generatore di carico
+     *
+     * @param args indirizzo multicast, porta multicast, indirizzo server, porte server separate da virgole, utenti,
+     *             messaggi al secondo per utente, dimensione dei messaggi, durata in secondi
+     */
+    public static void main(String[] args) {
+        if (args.length != 8) {
+            System.out.println("Sintassi: java client.LoadGenerator [indirizzo multicast] [porta multicast] [indirizzo server] [porte server, es. 6666,6668] "
+                    + "[utenti] [messaggi al secondo per utente] [dimensione messaggi] [durata in secondi]");
+            return;
+        }
+        LoadGenerator generator;
+        int users;
+        double rate;
+        int size;
+        long duration;
+        try {
+            String[] ports = args[3].split(",");
+            int[] server_ports = new int[ports.length];
+            for (int i = 0; i < ports.length; i++)
+                server_ports[i] = Integer.parseInt(ports[i].trim());
+            generator = new LoadGenerator(InetAddress.getByName(args[0]), Integer.parseInt(args[1]),
+                    InetAddress.getByName(args[2]), server_ports);
+            users = Integer.parseInt(args[4]);
+            rate = Double.parseDouble(args[5]);
+            size = Integer.parseInt(args[6]);
+            duration = TimeUnit.SECONDS.toMillis(Long.parseLong(args[7]));
+        } catch (IOException | NumberFormatException e) {
+            System.err.println("Parametri non validi: " + e.getMessage());
+            return;
+        }
+        try {
+            generator.connect(users);
+            System.out.println("Registrati " + users + " utenti, invio in corso...");
+            generator.run(rate, size, duration, 2000);
+        } catch (IOException | TimeoutException e) {
+            System.err.println("Errore durante la registrazione: " + e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            generator.disconnect();
+        }
+        generator.printReport(duration);
+        System.exit(0);
+    }
+}
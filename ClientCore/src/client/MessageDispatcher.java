@@ -0,0 +1,104 @@
+package client;
+
+import backend.ChatPacket;
+import interfaces.ClientObserver;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Subscriber che consegna all'observer i messaggi ricevuti dal ChatClient, raggruppandoli.
+ * <p>
+ * I messaggi vengono accodati in una coda senza lock e consegnati con ClientObserver.messagesReceived
+ * in un unico task del notifier, finché la coda non si svuota: con Platform::runLater, i messaggi arrivati
+ * mentre il thread di JavaFX disegna o elabora un gruppo precedente vengono consegnati tutti insieme al giro
+ * successivo, invece di accodare un task e un aggiornamento dell'interfaccia per ognuno.
+ * Ogni gruppo contiene al più MAX_BATCH_SIZE messaggi, per non bloccare il thread di JavaFX troppo a lungo.
+ * <p>
+ * Vengono richiesti al ChatClient al più MAX_BATCH_SIZE messaggi non ancora consegnati, e altri solo dopo
+ * la consegna: un observer lento rallenta la ricezione invece di far crescere la coda.
+ */
+class MessageDispatcher implements Flow.Subscriber<ChatPacket> {
+
+    /**
+     * Numero massimo di messaggi consegnati in una sola chiamata all'observer
+     */
+    static final int MAX_BATCH_SIZE = 1024;
+
+    private final ClientObserver observer;
+    private final Executor notifier;
+    private final ConcurrentLinkedQueue<ChatPacket> queue = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean scheduled = new AtomicBoolean(false);
+    private final Runnable drain = this::drain;
+    private volatile Flow.Subscription subscription;
+
+    /**
+     * @param observer L'observer a cui consegnare i messaggi
+     * @param notifier Executor in cui viene chiamato l'observer
+     */
+    MessageDispatcher(ClientObserver observer, Executor notifier) {
+        this.observer = observer;
+        this.notifier = notifier;
+    }
+
+    @Override
+    public void onSubscribe(Flow.Subscription subscription) {
+        this.subscription = subscription;
+        subscription.request(MAX_BATCH_SIZE);
+    }
+
+    /**
+     * Accoda un MESSAGE o un SERVER_MESSAGE da consegnare all'observer
+     *
+     * @param message Il messaggio
+     */
+    @Override
+    public void onNext(ChatPacket message) {
+        queue.add(message);
+        schedule();
+    }
+
+    @Override
+    public void onError(Throwable throwable) {
+        throwable.printStackTrace();
+    }
+
+    @Override
+    public void onComplete() {
+    }
+
+    /**
+     * Fa eseguire drain al notifier, se non è già in attesa di essere eseguito
+     */
+    private void schedule() {
+        if (scheduled.compareAndSet(false, true))
+            notifier.execute(drain);
+    }
+
+    /**
+     * Consegna all'observer i messaggi in coda, al più MAX_BATCH_SIZE, e ne richiede altrettanti.
+     * scheduled torna false solo dopo la consegna, così che con un notifier che esegue direttamente i task
+     * il gruppo successivo non venga consegnato prima di questo; se nel frattempo sono stati accodati
+     * altri messaggi viene programmato un nuovo drain.
+     */
+    private void drain() {
+        List<ChatPacket> batch = new ArrayList<>(Math.min(queue.size(), MAX_BATCH_SIZE));
+        ChatPacket message;
+        while (batch.size() < MAX_BATCH_SIZE && (message = queue.poll()) != null)
+            batch.add(message);
+        try {
+            if (!batch.isEmpty())
+                observer.messagesReceived(batch);
+        } finally {
+            if (!batch.isEmpty())
+                subscription.request(batch.size());
+            scheduled.set(false);
+            if (!queue.isEmpty())
+                schedule();
+        }
+    }
+}
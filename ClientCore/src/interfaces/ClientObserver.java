@@ -0,0 +1,40 @@
+package interfaces;
+
+import backend.ChatPacket;
+
+import java.util.List;
+
+/**
+ * Interfaccia per definire osservatori del client.
+ */
+public interface ClientObserver {
+    /**
+     * Chiamata quando il client riceve un messaggio
+     *
+     * @param message Messaggio ricevuto
+     */
+    void messageReceived(ChatPacket message);
+
+    /**
+     * Chiamata quando il client riceve un messaggio da parte del server
+     *
+     * @param message Messaggio ricevuto
+     */
+    void serverMessageReceived(ChatPacket message);
+
+    /**
+     * Chiamata con i messaggi ricevuti dal client dall'ultima notifica, in ordine di arrivo.
+     * Permette di aggiornare l'interfaccia una sola volta per gruppo di messaggi; l'implementazione predefinita
+     * chiama messageReceived o serverMessageReceived per ognuno.
+     *
+     * @param messages I messaggi ricevuti, di tipo MESSAGE o SERVER_MESSAGE
+     */
+    default void messagesReceived(List<ChatPacket> messages) {
+        for (ChatPacket message : messages) {
+            if (message.message_type == ChatPacket.Type.MESSAGE)
+                messageReceived(message);
+            else if (message.message_type == ChatPacket.Type.SERVER_MESSAGE)
+                serverMessageReceived(message);
+        }
+    }
+}
@@ -0,0 +1,209 @@
+package server;
+
+import backend.Config;
+import backend.HostThreads;
+
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.Formatter;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Log asincrono del server.
+ * Chi scrive un messaggio lo accoda in una coda lock-free insieme al formato e agli argomenti; la formattazione
+ * e la scrittura su standard output avvengono in un thread dedicato, con un buffer riutilizzato e un timestamp
+ * ricalcolato al massimo una volta al secondo.
+ * <p>
+ * Configurazione:
+ * chat.log.level (FINE, INFO, WARNING) livello minimo dei messaggi scritti;
+ * chat.log.sample scrive solo un messaggio FINE ogni N, i messaggi di livello superiore non vengono mai campionati;
+ * chat.log.queue numero massimo di messaggi in attesa, oltre il quale i nuovi messaggi vengono scartati.
+ * Un ottavo della coda è riservato ai messaggi INFO e WARNING, così un'ondata di messaggi FINE non li fa scartare.
+ */
+public class AsyncLogger {
+
+    /**
+     * Livello di un messaggio di log. FINE è usato per i messaggi della chat, INFO per registrazioni e disconnessioni
+     */
+    public enum Level {FINE, INFO, WARNING}
+
+    private static final DateTimeFormatter TIMESTAMP_FORMAT =
+            DateTimeFormatter.ofPattern("yyyyMMdd_HHmmss").withZone(ZoneId.systemDefault());
+
+    private static AsyncLogger default_logger;
+
+    private final PrintStream out;
+    private final ConcurrentLinkedQueue<Entry> queue = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pending = new AtomicInteger();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong sample_counter = new AtomicLong();
+    private final int max_pending;
+    private final int max_pending_fine;
+    private final Thread writer;
+
+    private volatile Level level;
+    private volatile int sample_rate;
+    private volatile boolean writer_waiting = false;
+
+    private final StringBuilder line = new StringBuilder(256);
+    private final Formatter formatter = new Formatter(line);
+    private long cached_second = Long.MIN_VALUE;
+    private String cached_timestamp;
+
+    /**
+     * @return Il logger condiviso da tutti i server del processo, configurato tramite proprietà di sistema
+     */
+    public static synchronized AsyncLogger getDefault() {
+        if (default_logger == null) {
+            default_logger = new AsyncLogger(System.out,
+                    Level.valueOf(Config.getString("log.level", "FINE").toUpperCase()),
+                    Config.getInt("log.sample", 1),
+                    Config.getInt("log.queue", 65536));
+            Runtime.getRuntime().addShutdownHook(new Thread(default_logger::flush));
+        }
+        return default_logger;
+    }
+
+    /**
+     * Istanzia il logger e avvia il thread di scrittura
+     *
+     * @param out         Lo stream su cui scrivere
+     * @param level       Livello minimo dei messaggi scritti
+     * @param sample_rate Scrive un messaggio FINE ogni sample_rate
+     * @param max_pending Numero massimo di messaggi in attesa di scrittura
+     */
+    public AsyncLogger(PrintStream out, Level level, int sample_rate, int max_pending) {
+        this.out = out;
+        this.level = level;
+        this.sample_rate = Math.max(1, sample_rate);
+        this.max_pending = max_pending;
+        this.max_pending_fine = max_pending - max_pending / 8;
+        writer = HostThreads.start("log-writer", this::writeLoop);
+    }
+
+    /**
+     * Accoda un messaggio, se il suo livello e il campionamento lo consentono.
+     * Gli argomenti di tipo InetAddress vengono scritti come indirizzo numerico.
+     *
+     * @param level  Livello del messaggio
+     * @param format Formato del messaggio, come in String.format
+     * @param args   Argomenti del formato
+     */
+    public void log(Level level, String format, Object... args) {
+        if (level.compareTo(this.level) < 0)
+            return;
+        if (level == Level.FINE && sample_rate > 1 && sample_counter.getAndIncrement() % sample_rate != 0)
+            return;
+        if (pending.incrementAndGet() > (level == Level.FINE ? max_pending_fine : max_pending)) {
+            pending.decrementAndGet();
+            dropped.incrementAndGet();
+            return;
+        }
+        queue.add(new Entry(System.currentTimeMillis(), format, args));
+        if (writer_waiting)
+            LockSupport.unpark(writer);
+    }
+
+    /**
+     * @param level Livello minimo dei messaggi scritti
+     */
+    public void setLevel(Level level) {
+        this.level = level;
+    }
+
+    /**
+     * @param sample_rate Scrive un messaggio FINE ogni sample_rate (1 per scriverli tutti)
+     */
+    public void setSampleRate(int sample_rate) {
+        this.sample_rate = Math.max(1, sample_rate);
+    }
+
+    /**
+     * @return Numero di messaggi scartati perché la coda era piena
+     */
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    /**
+     * Scrive tutti i messaggi in attesa
+     */
+    public void flush() {
+        drain();
+    }
+
+    private void writeLoop() {
+        while (true) {
+            if (!drain()) {
+                writer_waiting = true;
+                if (queue.isEmpty())
+                    LockSupport.parkNanos(100_000_000L);
+                writer_waiting = false;
+            }
+        }
+    }
+
+    /**
+     * @return true se è stato scritto almeno un messaggio
+     */
+    private synchronized boolean drain() {
+        Entry entry = queue.poll();
+        if (entry == null)
+            return false;
+        do {
+            pending.decrementAndGet();
+            try {
+                write(entry);
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+        } while ((entry = queue.poll()) != null);
+        long lost = dropped.getAndSet(0);
+        if (lost > 0)
+            out.println(lost + " messaggi di log scartati");
+        out.flush();
+        return true;
+    }
+
+    private void write(Entry entry) {
+        Object[] args = entry.args;
+        for (int i = 0; i < args.length; i++) {
+            if (args[i] instanceof InetAddress)
+                args[i] = ((InetAddress) args[i]).getHostAddress();
+        }
+        line.setLength(0);
+        line.append('[').append(timestamp(entry.time)).append("] ");
+        formatter.format(entry.format, args);
+        out.append(line).append(System.lineSeparator());
+    }
+
+    private String timestamp(long time) {
+        long second = time / 1000;
+        if (second != cached_second) {
+            cached_second = second;
+            cached_timestamp = TIMESTAMP_FORMAT.format(Instant.ofEpochMilli(time));
+        }
+        return cached_timestamp;
+    }
+
+    /**
+     * Messaggio in attesa di essere formattato e scritto
+     */
+    private static class Entry {
+        final long time;
+        final String format;
+        final Object[] args;
+
+        Entry(long time, String format, Object[] args) {
+            this.time = time;
+            this.format = format;
+            this.args = args;
+        }
+    }
+}
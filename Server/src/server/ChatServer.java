@@ -2,23 +2,66 @@ package server;
 
 import backend.ChatHost;
 import backend.ChatPacket;
+import backend.Config;
+import backend.Datagram;
+import backend.PacketCodec;
+import backend.HostThreads;
+import backend.RetransmitBuffer;
+import backend.TimingWheel;
+import backend.Transport;
 import backend.User;
+import backend.UserRegistry;
 
 import java.io.IOException;
-import java.net.DatagramPacket;
 import java.net.InetAddress;
-import java.text.SimpleDateFormat;
-import java.util.Calendar;
-import java.util.HashMap;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 
 /**
  * server della ChatRoom
  */
 public class ChatServer extends ChatHost {
+    /**
+     * Numero massimo di pacchetti ritrasmessi per una singola richiesta NACK
+     */
+    private static final int MAX_NACK_COUNT = 64;
+
+    /**
+     * Numero di caselle della TimingWheel che controlla l'inattività degli utenti
+     */
+    private static final int LIVENESS_SLOTS = 64;
+
+    /**
+     * Il timer che fa avanzare le TimingWheel, condiviso da tutti i ChatServer del processo
+     */
+    private static final ScheduledExecutorService liveness_timer =
+            Executors.newSingleThreadScheduledExecutor(HostThreads.factory("liveness"));
 
     private int group_port;
-    private int user_count = 0;
-    private HashMap<Integer, User> user_list;
+    private final ClusterNode cluster;
+    private final UserRegistry user_list;
+    private final AsyncLogger logger = AsyncLogger.getDefault();
+    private final RetransmitBuffer retransmit = createRetransmitBuffer();
+    private final MessageBatcher batcher = createBatcher();
+    private final MessageLog history = createMessageLog();
+    private final int history_max_count = Config.getInt("history.max_count", 1000);
+    private final long history_interval = Config.getLong("history.stream_interval", 2);
+    /**
+     * Rende atomici il salvataggio di un messaggio nello storico e il suo inoltro al gruppo rispetto alla registrazione
+     * di un utente: i messaggi salvati prima della registrazione sono esattamente quelli inviati con numero di
+     * sequenza minore o uguale a quello comunicato al client (vedi streamHistory)
+     */
+    private final Object history_lock = new Object();
+
+    private final long user_timeout = TimeUnit.MILLISECONDS.toNanos(Config.getLong("heartbeat.timeout", 30000));
+    private TimingWheel<User> liveness;
+    private ScheduledFuture<?> liveness_task;
 
     /**
      * Istanzia il server
@@ -32,7 +75,10 @@ public class ChatServer extends ChatHost {
     public ChatServer(InetAddress group_address, int group_port, int local_port) throws IOException {
         super(local_port, group_address);
         this.group_port = group_port;
-        user_list = new HashMap<Integer, User>();
+        this.cluster = ClusterNode.fromConfig();
+        this.user_list = cluster != null ? cluster.getUsers() : new UserRegistry();
+        startLivenessCheck();
+        startCluster();
         startReceiver();
     }
 
@@ -47,32 +93,198 @@ public class ChatServer extends ChatHost {
     public ChatServer(InetAddress group_address, int group_port) throws IOException {
         super(group_address);
         this.group_port = group_port;
-        user_list = new HashMap<Integer, User>();
+        this.cluster = ClusterNode.fromConfig();
+        this.user_list = cluster != null ? cluster.getUsers() : new UserRegistry();
+        startLivenessCheck();
+        startCluster();
         startReceiver();
     }
 
     /**
-     * Riceve e restituisce un datagramPacket
+     * Istanzia il server su un trasporto già aperto, senza avviare un Receiver thread.
+     * I datagram ricevuti dal trasporto devono essere passati a processMessage da chi lo gestisce (es. RoomServer).
+     * Il server non fa parte di un cluster.
+     *
+     * @param transport     Il trasporto su cui ricevere e inviare i pacchetti
+     * @param group_address L'indirizzo del gruppo
+     * @param group_port    La porta del gruppo multicast
+     */
+    ChatServer(Transport transport, InetAddress group_address, int group_port) {
+        super(transport, group_address);
+        this.group_port = group_port;
+        this.cluster = null;
+        this.user_list = new UserRegistry();
+        startLivenessCheck();
+    }
+
+    /**
+     * Avvia il nodo del cluster, se chat.cluster.members è impostato (vedi ClusterNode).
+     * Il server riceve registrazioni e messaggi solo dai propri client e inoltra al gruppo solo i loro messaggi;
+     * user_list contiene anche gli utenti degli altri relay, replicati dal cluster.
+     */
+    private void startCluster() {
+        if (cluster == null)
+            return;
+        if (history != null)
+            log(AsyncLogger.Level.WARNING, "Storico dei messaggi non inviato ai client: il server fa parte di un cluster");
+        cluster.start(new ClusterNode.Listener() {
+            @Override
+            public void registrationConfirmed(User user, int history_count, long history_since) {
+                try {
+                    completeRegistration(user, history_count, history_since);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+
+            @Override
+            public void registrationRejected(User user) {
+                try {
+                    rejectRegistration(user);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+
+            @Override
+            public void usersLost(List<User> users) {
+                try {
+                    removeLostUsers(users);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        });
+    }
+
+    /**
+     * @param user Un utente di user_list
+     * @return true se l'utente si è registrato presso questo server, sempre true se il server non fa parte di un cluster
+     */
+    private boolean isLocal(User user) {
+        return cluster == null || cluster.owns(user);
+    }
+
+    /**
+     * Avvia il controllo dell'inattività degli utenti, se chat.heartbeat.timeout è maggiore di 0 (default 30000 ms).
+     * Ogni utente registrato viene inserito in una TimingWheel con scadenza pari al timeout; alla scadenza,
+     * se nel frattempo ha inviato pacchetti (heartbeat compresi) viene riprogrammato, altrimenti viene rimosso.
+     * Così i pacchetti ricevuti aggiornano solo User.last_seen e ogni tick esamina solo gli utenti in scadenza.
+     * La precisione del controllo in millisecondi è data da chat.heartbeat.tick.
+     */
+    private void startLivenessCheck() {
+        if (user_timeout <= 0)
+            return;
+        long tick = Math.max(1, Config.getLong("heartbeat.tick", 1000));
+        liveness = new TimingWheel<>(TimeUnit.MILLISECONDS.toNanos(tick), LIVENESS_SLOTS);
+        liveness_task = liveness_timer.scheduleAtFixedRate(
+                () -> liveness.advance(System.nanoTime(), this::checkLiveness), tick, tick, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Chiamato dalla TimingWheel alla scadenza di un utente: lo riprogramma se ha inviato pacchetti
+     * nell'ultimo timeout, altrimenti lo rimuove da user_list e lo comunica alla chatroom
+     *
+     * @param user L'utente scaduto
+     */
+    private void checkLiveness(User user) {
+        if (user_list.get(user.id) != user)
+            return;
+        long idle = System.nanoTime() - user.last_seen;
+        if (idle < user_timeout) {
+            liveness.schedule(user, user_timeout - idle);
+            return;
+        }
+        if (user_list.remove(user.id) == null)
+            return;
+        user.releaseMessagePrefix();
+        if (cluster != null)
+            cluster.left(user);
+        metrics.usersExpired();
+        log(AsyncLogger.Level.INFO, "(%s:%d) %s#%d rimosso per inattività.", user.address, user.port, user.username, user.id);
+        try {
+            sendServerMessage(user.username + " si è disconnesso per inattività");
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Crea il RetransmitBuffer per i pacchetti destinati al gruppo, se chat.reliable è attivo (default).
+     * I numeri di sequenza richiedono il formato binario, quindi non vengono usati se è attivo il formato precedente.
+     * La dimensione del buffer è data da chat.reliable.buffer.
+     *
+     * @return Il RetransmitBuffer, o null se i pacchetti vengono inviati senza numero di sequenza
+     */
+    private RetransmitBuffer createRetransmitBuffer() {
+        if (!Config.getBoolean("reliable", true) || ChatPacket.legacy_format)
+            return null;
+        int capacity = Math.max(1, Config.getInt("reliable.buffer", 1024));
+        return new RetransmitBuffer(transport, capacity, MAX_DATAGRAM_SIZE);
+    }
+
+    /**
+     * Crea il MessageBatcher per i pacchetti destinati al gruppo, se chat.batch.window è maggiore di 0.
+     * Il raggruppamento richiede il formato binario, quindi non viene usato se è attivo il formato precedente.
+     * Se i pacchetti sono numerati, la dimensione massima lascia spazio al numero di sequenza.
+     *
+     * @return Il MessageBatcher, o null se i messaggi vengono inviati singolarmente
+     */
+    private MessageBatcher createBatcher() {
+        long window = Config.getLong("batch.window", 0);
+        if (window <= 0 || ChatPacket.legacy_format)
+            return null;
+        int max_datagram = retransmit != null ? MAX_DATAGRAM_SIZE - PacketCodec.MAX_SEQUENCE_SIZE : MAX_DATAGRAM_SIZE;
+        int max_bytes = Math.min(Config.getInt("batch.max_bytes", max_datagram), max_datagram);
+        return new MessageBatcher(this::sendGroupDatagram, window, max_bytes);
+    }
+
+    /**
+     * Apre lo storico dei messaggi inoltrati al gruppo, se chat.history.dir è impostato.
+     * Ogni server usa una sottocartella con il nome della propria porta locale.
+     *
+     * @return Lo storico, o null se i messaggi non vengono salvati
+     */
+    private MessageLog createMessageLog() {
+        try {
+            return MessageLog.fromConfig(String.valueOf(getLocalPort()));
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * Riceve e restituisce un datagram
      * Questo è un metodo bloccante: resta in attesa di un messaggio fin quando non lo riceve
      *
-     * @return il datagramPacket ricevuto
+     * @return il datagram ricevuto
      */
     @Override
-    protected DatagramPacket receiveMessage() throws IOException {
-        byte[] buf = new byte[1024];
-        DatagramPacket received_packet = new DatagramPacket(buf, buf.length);
-        receive(received_packet);
-        return received_packet;
+    protected Datagram receiveMessage() throws IOException {
+        return receive();
     }
 
     /**
-     * Stampa un messaggio in standard output, specificando data e ora corrente
+     * Stampa un messaggio in standard output, specificando data e ora corrente.
+     * La scrittura avviene in modo asincrono tramite AsyncLogger.
      *
      * @param message Il messaggio da stampare
      */
     public void log(String message) {
-        String timeStamp = new SimpleDateFormat("yyyyMMdd_HHmmss").format(Calendar.getInstance().getTime());
-        System.out.println(String.format("[%s] %s", timeStamp, message));
+        logger.log(AsyncLogger.Level.INFO, "%s", message);
+    }
+
+    /**
+     * Stampa un messaggio formattato in standard output, specificando data e ora corrente.
+     * La formattazione avviene nel thread di scrittura dell'AsyncLogger, solo se il livello lo consente.
+     *
+     * @param level  Livello del messaggio
+     * @param format Formato del messaggio, come in String.format
+     * @param args   Argomenti del formato
+     */
+    public void log(AsyncLogger.Level level, String format, Object... args) {
+        logger.log(level, format, args);
     }
 
     /**
@@ -82,56 +294,113 @@ public class ChatServer extends ChatHost {
      * @param received_packet Il pacchetto in ingresso
      */
     @Override
-    protected void processMessage(DatagramPacket received_packet) {
+    protected void processMessage(Datagram received_packet) {
+        received_packet = reassemble(received_packet);
+        if (received_packet == null)
+            return;
+        received_packet = decompress(received_packet);
+        if (received_packet == null)
+            return;
+        if (forwardMessage(received_packet))
+            return;
+
         ChatPacket received_message = null;
         try {
-            received_message = (ChatPacket) ChatPacket.deserialize(received_packet.getData());
+            received_message = ChatPacket.decode(received_packet.getData());
         } catch (IOException | ClassNotFoundException | NullPointerException e) {
+            metrics.decodeFailed();
             e.printStackTrace();
             return;
         }
+        metrics.received(received_message.message_type);
 
         try {
             switch (received_message.message_type) {
                 case MESSAGE: {
-                    if (user_list.containsKey(received_message.id)) {
+                    User sender = user_list.get(received_message.id);
+                    if (sender != null && isLocal(sender)) {
+                        sender.last_seen = received_packet.getReceivedTime();
                         sendMessage(received_message.message_content, received_message.id, group_address, group_port);
-                        log(String.format("(%s:%d) %s#%d: %s",
-                                received_packet.getAddress().getHostAddress(),
+                        metrics.relayLatency(System.nanoTime() - received_packet.getReceivedTime());
+                        log(AsyncLogger.Level.FINE, "(%s:%d) %s#%d: %s",
+                                received_packet.getAddress(),
                                 received_packet.getPort(),
-                                user_list.get(received_message.id).username,
+                                sender.username,
                                 received_message.id,
-                                received_message.message_content));
-                        break;
+                                received_message.message_content);
                     }
+                    break;
                 }
                 case REGISTRATION_REQUEST: {
-                    log(String.format("Richiesta di registrazione da parte di %s:%d con nome %s",
-                            received_packet.getAddress().getHostAddress(),
-                            received_packet.getPort(), received_message.message_content));
-                    if (nameAlreadyExists(received_message.message_content)) {
+                    log(AsyncLogger.Level.INFO, "Richiesta di registrazione da parte di %s:%d con nome %s",
+                            received_packet.getAddress(),
+                            received_packet.getPort(), received_message.message_content);
+                    if (received_message.message_content == null || received_message.message_content.isBlank()) {
                         denyRegistration(
                                 received_message.message_content,
+                                received_message.nonce,
                                 received_packet.getAddress(),
                                 received_packet.getPort());
-                        log("Username occupato. Registrazione rifiutata.");
-                    } else {
-                        acceptRegistration(
+                        metrics.registrationDenied();
+                        log("Username vuoto. Registrazione rifiutata.");
+                        break;
+                    }
+                    User user = user_list.register(
+                            received_message.message_content,
+                            received_packet.getAddress(),
+                            received_packet.getPort());
+                    if (user == null) {
+                        User registered = user_list.get(received_message.message_content);
+                        if (isRepeatedRequest(registered, received_message, received_packet)) {
+                            // La risposta alla richiesta precedente è andata persa, o si attende ancora il leader
+                            if (cluster != null && cluster.isPending(registered)) {
+                                cluster.resendClaim(registered);
+                            } else {
+                                sendRegistrationAccepted(registered);
+                                // Il client ha perso un HISTORY e chiede di ripetere l'invio da history_from
+                                if (received_message.history_from > 0)
+                                    resendHistory(registered, received_message.history_from);
+                            }
+                            break;
+                        }
+                        denyRegistration(
                                 received_message.message_content,
+                                received_message.nonce,
                                 received_packet.getAddress(),
                                 received_packet.getPort());
-                        sendServerMessage(received_message.message_content + "si è connesso alla chat");
+                        metrics.registrationDenied();
+                        log("Username occupato. Registrazione rifiutata.");
+                    } else {
+                        user.registration_nonce = received_message.nonce;
+                        if (cluster == null || cluster.register(user, received_message.history_count, received_message.history_since))
+                            completeRegistration(user, received_message.history_count, received_message.history_since);
+                        else
+                            log(AsyncLogger.Level.FINE, "Username %s in attesa della conferma del leader", user.username);
                     }
                     break;
                 }
                 case DISCONNECT_MESSAGE: {
-                    if (user_list.containsKey(received_message.id)) {
-                        log(String.format("(%s:%d) %s#%d si è disconnesso.",
-                                received_packet.getAddress().getHostAddress(),
-                                received_packet.getPort(), user_list.get(received_message.id).username, received_message.id));
-                        sendServerMessage(user_list.get(received_message.id).username + " si è disconnesso");
-                        user_list.remove(received_message.id);
+                    User user = user_list.get(received_message.id);
+                    if (user != null && isLocal(user) && user_list.remove(user.id) != null) {
+                        user.releaseMessagePrefix();
+                        if (cluster != null)
+                            cluster.left(user);
+                        log(AsyncLogger.Level.INFO, "(%s:%d) %s#%d si è disconnesso.",
+                                received_packet.getAddress(),
+                                received_packet.getPort(), user.username, received_message.id);
+                        sendServerMessage(user.username + " si è disconnesso");
                     }
+                    break;
+                }
+                case NACK: {
+                    resendMissing(received_message, received_packet.getAddress(), received_packet.getPort());
+                    break;
+                }
+                case HEARTBEAT: {
+                    User user = user_list.get(received_message.id);
+                    if (user != null && user.address.equals(received_packet.getAddress()))
+                        user.last_seen = received_packet.getReceivedTime();
+                    break;
                 }
                 case SERVER_MESSAGE:
                     break;
@@ -139,6 +408,12 @@ public class ChatServer extends ChatHost {
                     break;
                 case REGISTRATION_DENIED:
                     break;
+                case MESSAGE_BATCH:
+                    break;
+                case FRAGMENT:
+                    break;
+                case HISTORY:
+                    break;
             }
         } catch (IOException e) {
             e.printStackTrace();
@@ -146,17 +421,52 @@ public class ChatServer extends ChatHost {
     }
 
     /**
-     * Controlla se un username è già stato registrato nella chatroom, controllando l'HashMap user_list
+     * Percorso rapido per i MESSAGE nel formato binario: legge solo tipo e id del mittente, e inoltra al gruppo
+     * il contenuto così come è stato ricevuto, preceduto dall'username già codificato del mittente.
+     * Il contenuto non viene mai decodificato in una String.
+     * Non viene usato se è attivo il formato precedente, che richiede di serializzare un nuovo ChatPacket.
      *
-     * @param username L'username da controllare
-     * @return true se l'username esiste già, altrmenti false
+     * @param received_packet Il pacchetto in ingresso
+     * @return true se il pacchetto era un MESSAGE ed è stato elaborato, false se va elaborato da processMessage
      */
-    private boolean nameAlreadyExists(String username) {
-        for (User user : user_list.values()) {
-            if (user.username.equalsIgnoreCase(username))
+    private boolean forwardMessage(Datagram received_packet) {
+        ByteBuffer data = received_packet.getData();
+        if (ChatPacket.legacy_format || !PacketCodec.isPlainMessage(data))
+            return false;
+        try {
+            int id = PacketCodec.readMessageId(data);
+            int content_size = PacketCodec.encodedStringSize(data);
+            metrics.received(ChatPacket.Type.MESSAGE);
+            User sender = user_list.get(id);
+            if (sender == null || !isLocal(sender))
                 return true;
+            sender.last_seen = received_packet.getReceivedTime();
+            data.limit(data.position() + content_size);
+            forwardToGroup(sender.getMessagePrefix(), data);
+            metrics.relayLatency(System.nanoTime() - received_packet.getReceivedTime());
+            log(AsyncLogger.Level.FINE, "(%s:%d) %s#%d: messaggio di %d byte",
+                    received_packet.getAddress(),
+                    received_packet.getPort(),
+                    sender.username,
+                    id,
+                    content_size);
+        } catch (ProtocolException e) {
+            metrics.decodeFailed();
+            e.printStackTrace();
+        } catch (IOException e) {
+            e.printStackTrace();
         }
-        return false;
+        return true;
+    }
+
+    /**
+     * Controlla se un username è già stato registrato nella chatroom, tramite l'indice degli username di user_list
+     *
+     * @param username L'username da controllare
+     * @return true se l'username esiste già, altrmenti false
+     */
+    boolean nameAlreadyExists(String username) {
+        return user_list.nameExists(username);
     }
 
     /**
@@ -166,14 +476,12 @@ public class ChatServer extends ChatHost {
      * @throws IOException In caso di errore durante l'invio del messaggio
      */
     void sendServerMessage(String message_content) throws IOException {
-        ChatPacket message = new ChatPacket(ChatPacket.Type.SERVER_MESSAGE, message_content);
-        byte[] buffer = ChatPacket.serialize(message);
-        DatagramPacket packet = new DatagramPacket(buffer, buffer.length, group_address, group_port);
-        send(packet);
+        sendToGroup(new ChatPacket(ChatPacket.Type.SERVER_MESSAGE, message_content));
     }
 
     /**
-     * Invia un messaggio alla chatroom, specificandone mittente e contenuto del messaggio
+     * Invia un messaggio alla chatroom, specificandone mittente e contenuto del messaggio.
+     * Nel formato binario l'username non viene codificato: si copia l'inizio del corpo già codificato del mittente.
      *
      * @param message_content  Contenuto del messaggio
      * @param id               Id del mittente
@@ -182,43 +490,365 @@ public class ChatServer extends ChatHost {
      * @throws IOException In caso di errore durante l'invio del messaggio
      */
     void sendMessage(String message_content, int id, InetAddress receiver_address, int receiver_port) throws IOException {
-        ChatPacket message = new ChatPacket(ChatPacket.Type.MESSAGE, id, user_list.get(id).username, message_content);
-        byte[] buffer = ChatPacket.serialize(message);
-        DatagramPacket packet = new DatagramPacket(buffer, buffer.length, receiver_address, receiver_port);
-        send(packet);
+        User sender = user_list.get(id);
+        if (sender == null)
+            return;
+        boolean to_group = receiver_address.equals(group_address) && receiver_port == group_port;
+        if (ChatPacket.legacy_format) {
+            if (to_group && history != null)
+                history.append(sender.getMessagePrefix(), message_content);
+            ChatPacket message = new ChatPacket(ChatPacket.Type.MESSAGE, id, sender.username, message_content);
+            if (to_group)
+                sendToGroup(message);
+            else
+                sendPacket(message, receiver_address, receiver_port);
+            return;
+        }
+        byte[] prefix = sender.getMessagePrefix();
+        metrics.sent(ChatPacket.Type.MESSAGE);
+        if (!to_group) {
+            sendDatagram(PacketCodec.encodeMessage(prefix, message_content), receiver_address, receiver_port);
+            return;
+        }
+        if (history == null) {
+            sendGroupMessage(prefix, message_content);
+            return;
+        }
+        synchronized (history_lock) {
+            history.append(prefix, message_content);
+            sendGroupMessage(prefix, message_content);
+        }
     }
 
     /**
-     * Accetta la registrazione di un client e gli assegna un id
+     * Invia al gruppo un MESSAGE, direttamente o tramite il MessageBatcher
      *
-     * @param username       Username di registrazione
+     * @param prefix  Tipo, id e username del mittente già codificati
+     * @param content Il contenuto del messaggio
+     * @throws IOException In caso di errore durante l'invio del messaggio
+     */
+    private void sendGroupMessage(byte[] prefix, String content) throws IOException {
+        if (batcher != null)
+            batcher.add(prefix, content);
+        else
+            sendGroupDatagram(PacketCodec.encodeMessage(prefix, content));
+    }
+
+    /**
+     * Invia un pacchetto al gruppo multicast, direttamente o tramite il MessageBatcher se il raggruppamento è attivo
+     *
+     * @param message Il pacchetto da inviare
+     * @throws IOException In caso di errore durante l'invio del messaggio
+     */
+    protected void sendToGroup(ChatPacket message) throws IOException {
+        if (batcher != null) {
+            metrics.sent(message.message_type);
+            batcher.add(message);
+        } else if (retransmit != null) {
+            metrics.sent(message.message_type);
+            sendGroupDatagram(ChatPacket.encode(message));
+        } else {
+            sendPacket(message, group_address, group_port);
+        }
+    }
+
+    /**
+     * Invia al gruppo un MESSAGE già codificato, direttamente o tramite il MessageBatcher
+     *
+     * @param prefix  Tipo, id e username del mittente già codificati
+     * @param content Il contenuto codificato, tra posizione e limite del buffer
+     * @throws IOException In caso di errore durante l'invio del messaggio
+     */
+    private void forwardToGroup(byte[] prefix, ByteBuffer content) throws IOException {
+        metrics.sent(ChatPacket.Type.MESSAGE);
+        if (history == null) {
+            sendGroupMessage(prefix, content);
+            return;
+        }
+        synchronized (history_lock) {
+            history.append(prefix, content);
+            sendGroupMessage(prefix, content);
+        }
+    }
+
+    /**
+     * Invia al gruppo un MESSAGE con il contenuto già codificato, direttamente o tramite il MessageBatcher
+     *
+     * @param prefix  Tipo, id e username del mittente già codificati
+     * @param content Il contenuto codificato, tra posizione e limite del buffer
+     * @throws IOException In caso di errore durante l'invio del messaggio
+     */
+    private void sendGroupMessage(byte[] prefix, ByteBuffer content) throws IOException {
+        if (batcher != null)
+            batcher.add(prefix, content);
+        else
+            sendGroupDatagram(PacketCodec.encodeMessage(prefix, content));
+    }
+
+    /**
+     * Invia al gruppo multicast un datagram già codificato, comprimendolo se la compressione è attiva.
+     * Un datagram che, con il numero di sequenza, supera MAX_DATAGRAM_SIZE viene inviato in FRAGMENT,
+     * ognuno con il proprio numero di sequenza e quindi ritrasmissibile singolarmente.
+     *
+     * @param datagram Il datagram da inviare, tra posizione e limite del buffer
+     * @throws IOException In caso di errore durante l'invio del messaggio
+     */
+    private void sendGroupDatagram(ByteBuffer datagram) throws IOException {
+        datagram = compress(datagram);
+        int max_datagram = retransmit != null ? MAX_DATAGRAM_SIZE - PacketCodec.MAX_SEQUENCE_SIZE : MAX_DATAGRAM_SIZE;
+        if (datagram.remaining() > max_datagram) {
+            metrics.sent(ChatPacket.Type.FRAGMENT, fragmenter.fragment(datagram, this::transmitToGroup));
+            return;
+        }
+        transmitToGroup(datagram);
+    }
+
+    /**
+     * Trasmette al gruppo un datagram pronto per l'invio.
+     * Se il RetransmitBuffer è attivo, al datagram viene assegnato un numero di sequenza
+     * e una copia viene conservata per le ritrasmissioni.
+     *
+     * @param datagram Il datagram da inviare, tra posizione e limite del buffer
+     * @throws IOException In caso di errore durante l'invio del messaggio
+     */
+    private void transmitToGroup(ByteBuffer datagram) throws IOException {
+        if (retransmit != null)
+            retransmit.send(datagram, group_address, group_port);
+        else
+            transport.send(datagram, group_address, group_port);
+    }
+
+    /**
+     * Ritrasmette i pacchetti richiesti da un NACK al solo client che li ha richiesti.
+     * La richiesta viene ignorata se non proviene dall'indirizzo di un utente registrato,
+     * e il numero di pacchetti ritrasmessi è limitato da MAX_NACK_COUNT.
+     *
+     * @param nack           La richiesta di ritrasmissione
      * @param client_address Indirizzo del client
      * @param client_port    Porta del client
+     * @throws IOException In caso di errore durante l'invio
+     */
+    private void resendMissing(ChatPacket nack, InetAddress client_address, int client_port) throws IOException {
+        User user = user_list.get(nack.id);
+        if (user == null || !user.address.equals(client_address))
+            return;
+        user.last_seen = System.nanoTime();
+        if (retransmit == null)
+            return;
+        int count = Math.min(nack.missing_count, MAX_NACK_COUNT);
+        int resent = 0;
+        for (int i = 0; i < count; i++) {
+            if (retransmit.resend(nack.first_missing + i, client_address, client_port))
+                resent++;
+        }
+        metrics.retransmitted(resent);
+        log(AsyncLogger.Level.FINE, "(%s:%d) %s#%d: ritrasmessi %d pacchetti su %d richiesti da %d",
+                client_address, client_port, user.username, nack.id, resent, nack.missing_count, nack.first_missing);
+    }
+
+    /**
+     * Completa la registrazione di un utente: la comunica al client, gli invia lo storico richiesto
+     * e annuncia l'utente alla chatroom
+     *
+     * @param user          L'utente registrato in user_list
+     * @param history_count Numero di messaggi recenti richiesti, 0 se non specificato
+     * @param history_since Istante in millisecondi da cui inviare i messaggi, 0 se non specificato
+     * @throws IOException In caso di errore durante l'invio
+     */
+    private void completeRegistration(User user, int history_count, long history_since) throws IOException {
+        acceptRegistration(user);
+        metrics.registrationAccepted();
+        if (history_count > 0 || history_since > 0)
+            streamHistory(user, history_count, history_since);
+        sendServerMessage(user.username + "si è connesso alla chat");
+    }
+
+    /**
+     * Nega la registrazione di un utente il cui username è già in uso presso un altro server del cluster
+     *
+     * @param user L'utente, già rimosso da user_list
+     * @throws IOException In caso di errore durante l'invio
+     */
+    private void rejectRegistration(User user) throws IOException {
+        denyRegistration(user.username, user.registration_nonce, user.address, user.port);
+        metrics.registrationDenied();
+        log(AsyncLogger.Level.INFO, "Username %s occupato nel cluster. Registrazione rifiutata.", user.username);
+    }
+
+    /**
+     * Chiamato quando il cluster rimuove gli utenti di un server caduto.
+     * La disconnessione viene annunciata alla chatroom solo dal leader, così da inviarla una sola volta.
+     *
+     * @param users Gli utenti rimossi da user_list
+     * @throws IOException In caso di errore durante l'invio
+     */
+    private void removeLostUsers(List<User> users) throws IOException {
+        boolean announce = cluster.isLeader();
+        for (User user : users) {
+            user.releaseMessagePrefix();
+            log(AsyncLogger.Level.INFO, "%s#%d rimosso: il suo server non risponde.", user.username, user.id);
+            if (announce)
+                sendServerMessage(user.username + " si è disconnesso");
+        }
+    }
+
+    /**
+     * Comunica a un client l'avvenuta registrazione e l'id che gli è stato assegnato.
+     * Codifica una volta per tutte l'inizio del corpo dei messaggi dell'utente, con id e username.
+     *
+     * @param user L'utente appena registrato in user_list
      * @throws IOException In caso di errore durante l'invio del messaggio di avvenuta registrazione
      */
-    private void acceptRegistration(String username, InetAddress client_address, int client_port) throws IOException {
-        user_count++;
-        ChatPacket message = new ChatPacket(ChatPacket.Type.REGISTRATION_ACCEPTED, user_count, username);
-        byte[] buffer = ChatPacket.serialize(message);
-        DatagramPacket packet = new DatagramPacket(buffer, buffer.length, client_address, client_port);
-        user_list.put(user_count, new User(username, client_address, client_port));
-        log(String.format("Registrazione effettuata per %s. È stato assegnato l'id %d", username, user_count));
-        send(packet);
+    private void acceptRegistration(User user) throws IOException {
+        user.encodeMessagePrefix();
+        if (liveness != null)
+            liveness.schedule(user, user_timeout);
+        log(AsyncLogger.Level.INFO, "Registrazione effettuata per %s. È stato assegnato l'id %d", user.username, user.id);
+        sendRegistrationAccepted(user);
+    }
+
+    /**
+     * Invia a un utente registrato il REGISTRATION_ACCEPTED, con il nonce della sua richiesta
+     *
+     * @param user L'utente registrato
+     * @throws IOException In caso di errore durante l'invio
+     */
+    private void sendRegistrationAccepted(User user) throws IOException {
+        ChatPacket message = new ChatPacket(ChatPacket.Type.REGISTRATION_ACCEPTED, user.id, user.username);
+        message.nonce = user.registration_nonce;
+        sendPacket(message, user.address, user.port);
+    }
+
+    /**
+     * Il client ripete la richiesta di registrazione finché non riceve risposta: una richiesta con lo stesso
+     * nonce, indirizzo e porta dell'utente già registrato con quell'username è una ripetizione, non un altro utente
+     *
+     * @param registered L'utente registrato con l'username richiesto, o null
+     * @param request    Il REGISTRATION_REQUEST ricevuto
+     * @param packet     Il datagram della richiesta
+     * @return true se la richiesta ripete quella con cui si è registrato l'utente
+     */
+    private static boolean isRepeatedRequest(User registered, ChatPacket request, Datagram packet) {
+        return registered != null && request.nonce != 0 && registered.registration_nonce == request.nonce
+                && registered.port == packet.getPort() && registered.address.equals(packet.getAddress());
+    }
+
+    /**
+     * Invia a un utente appena registrato i messaggi dello storico richiesti, tramite un HistoryStream.
+     * Vengono inviati gli ultimi count messaggi, oppure quelli scritti a partire da since, e comunque non più
+     * di chat.history.max_count (default 1000), un pacchetto ogni chat.history.stream_interval millisecondi (default 2).
+     * Lo storico si ferma all'ultimo messaggio salvato prima della registrazione: i successivi il client li riceve
+     * dal gruppo. Dopo aver inviato i messaggi raccolti dal MessageBatcher, sotto history_lock si legge anche l'ultimo
+     * numero di sequenza inviato al gruppo: i pacchetti del server fino a quel numero sono già nello storico e il
+     * client li scarta. L'intervallo viene conservato nell'utente, per ripetere l'invio se il client perde un HISTORY
+     * (vedi resendHistory). Se lo storico non è attivo, o il server fa parte di un cluster (il suo storico non contiene
+     * i messaggi degli altri relay), viene inviato solo un HISTORY vuoto, che conclude il recupero.
+     *
+     * @param user  L'utente appena registrato
+     * @param count Numero di messaggi recenti richiesti, 0 se non specificato
+     * @param since Istante in millisecondi da cui inviare i messaggi, 0 se non specificato
+     * @throws IOException In caso di errore durante l'invio
+     */
+    private void streamHistory(User user, int count, long since) throws IOException {
+        if (history == null || cluster != null) {
+            sendPacket(new ChatPacket(Collections.emptyList(), 0, 0), user.address, user.port);
+            return;
+        }
+        long end;
+        long cutoff;
+        synchronized (history_lock) {
+            if (batcher != null)
+                batcher.flush();
+            end = history.getNextSequence();
+            cutoff = retransmit != null ? retransmit.getLastSequence() : 0;
+        }
+        int limit = count > 0 ? Math.min(count, history_max_count) : history_max_count;
+        long from = Math.max(history.getFirstSequence(), end - limit);
+        if (since > 0)
+            from = Math.max(from, history.findSequence(since));
+        user.history_start = from;
+        user.history_cutoff = cutoff;
+        user.history_end = end;
+        log(AsyncLogger.Level.FINE, "Invio a %s#%d dello storico da %d a %d", user.username, user.id, from, end);
+        startHistoryStream(user, from);
+    }
+
+    /**
+     * Ripete l'invio dello storico a un utente che ne ha perso una parte, a partire dal numero richiesto
+     * e fino alla fine dell'intervallo stabilito alla registrazione
+     *
+     * @param user L'utente registrato
+     * @param from Numero di sequenza nello storico del primo messaggio da inviare di nuovo
+     * @throws IOException In caso di errore durante l'invio
+     */
+    private void resendHistory(User user, long from) throws IOException {
+        if (history == null || cluster != null) {
+            sendPacket(new ChatPacket(Collections.emptyList(), 0, 0), user.address, user.port);
+            return;
+        }
+        if (user.history_end == 0)
+            return;
+        log(AsyncLogger.Level.FINE, "Nuovo invio a %s#%d dello storico da %d", user.username, user.id, from);
+        startHistoryStream(user, Math.min(Math.max(from, user.history_start), user.history_end));
+    }
+
+    private void startHistoryStream(User user, long from) {
+        HistoryStream.start(history, user.history_start, from, user.history_end, user.history_cutoff,
+                MAX_DATAGRAM_SIZE, history_interval, datagram -> {
+                    metrics.sent(ChatPacket.Type.HISTORY);
+                    sendDatagram(datagram, user.address, user.port);
+                });
     }
 
     /**
      * Nega la registrazione di un client
      *
      * @param username       Username di registrazione
+     * @param nonce          Nonce della richiesta di registrazione, 0 se assente
      * @param client_address Indirizzo del client
      * @param client_port    Porta del client
      * @throws IOException In caso di errore durante l'invio del messaggio
      */
-    public void denyRegistration(String username, InetAddress client_address, int client_port) throws IOException {
+    public void denyRegistration(String username, int nonce, InetAddress client_address, int client_port) throws IOException {
         ChatPacket message = new ChatPacket(ChatPacket.Type.REGISTRATION_DENIED, username);
-        byte[] buffer = ChatPacket.serialize(message);
-        DatagramPacket packet = new DatagramPacket(buffer, buffer.length, client_address, client_port);
-        send(packet);
+        message.nonce = nonce;
+        sendPacket(message, client_address, client_port);
+    }
+
+    /**
+     * Interrompe il controllo dell'inattività, esce dal cluster, invia i messaggi ancora in attesa di raggruppamento,
+     * chiude lo storico e chiude il server
+     */
+    @Override
+    public void close() {
+        if (liveness_task != null)
+            liveness_task.cancel(false);
+        if (cluster != null)
+            cluster.close();
+        if (batcher != null) {
+            try {
+                batcher.flush();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        if (history != null)
+            history.close();
+        super.close();
+    }
+
+    /**
+     * @return Lo storico dei messaggi inoltrati al gruppo, o null se chat.history.dir non è impostato
+     */
+    public MessageLog getHistory() {
+        return history;
+    }
+
+    /**
+     * @return Numero di utenti registrati, compresi quelli degli altri server del cluster
+     */
+    public int getUserCount() {
+        return user_list.size();
     }
 
     /**
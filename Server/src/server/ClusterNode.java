@@ -0,0 +1,747 @@
+package server;
+
+import backend.ChatHost;
+import backend.Config;
+import backend.HostThreads;
+import backend.PacketCodec;
+import backend.User;
+import backend.UserRegistry;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.net.UnknownHostException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Nodo di un cluster di ChatServer (relay) che servono lo stesso gruppo multicast.
+ * <p>
+ * Ogni relay riceve registrazioni e messaggi dai propri client e inoltra al gruppo solo i messaggi ricevuti da questi,
+ * con i propri numeri di sequenza: ogni messaggio viene inviato al gruppo una sola volta, e i client tengono una
+ * sequenza per ogni relay, a cui chiedono le ritrasmissioni. I relay si scambiano via UDP l'elenco degli utenti,
+ * così che ognuno possa rispondere ai NACK di qualunque utente e che gli username siano unici nel cluster.
+ * <p>
+ * Gli id sono assegnati a strisce: il relay di indice i assegna i + 1, i + 1 + n, i + 1 + 2n... (n relay), quindi
+ * senza coordinamento, e dall'id si ricava il relay proprietario dell'utente. Un nuovo username viene confermato dal
+ * leader, il relay vivo di indice minore: gli altri relay gli inviano un CLAIM e accettano la registrazione solo dopo
+ * il GRANT. Il CLAIM viene ripetuto a ogni ripetizione della richiesta da parte del client. Il leader conferma gli
+ * username (anche quelli dei propri client) solo dopo aver applicato un SYNC da ogni relay vivo: un leader appena
+ * riavviato, con l'elenco vuoto, non conferma username già in uso.
+ * Ogni relay comunica agli altri gli utenti che registra e rimuove (JOIN e LEAVE) con un numero di versione;
+ * gli HEARTBEAT riportano la versione corrente, e chi ha perso un aggiornamento chiede l'elenco completo degli utenti
+ * del relay (SYNC_REQUEST, SYNC). Un relay da cui non arriva nulla per chat.cluster.timeout millisecondi è considerato
+ * caduto e i suoi utenti vengono rimossi. I SYNC non contengono gli utenti in attesa di conferma.
+ * Se un utente ricevuto con JOIN o SYNC ha lo stesso username di un altro, una registrazione in attesa di questo
+ * relay viene rifiutata; altrimenti l'utente viene applicato di nuovo al SYNC successivo, chiedendo un SYNC anche al
+ * proprietario dell'altro utente, che potrebbe essere già stato rimosso.
+ * <p>
+ * Lo storico dei messaggi (MessageLog) di un relay contiene solo i messaggi dei suoi client, quindi in un cluster
+ * non viene inviato ai client: alle richieste dello storico il relay risponde con un HISTORY vuoto.
+ * <p>
+ * Formato: [CLUSTER_MAGIC][tipo: 1 byte][indice del mittente: varint] seguito da
+ * HEARTBEAT [versione: varlong], CLAIM [utente], GRANT e REJECT [id: varint], JOIN [versione][utente],
+ * LEAVE [versione][id], SYNC [versione][indice della parte: varint][ultima: 1 byte][numero di utenti: varint][utenti].
+ * Un utente è [id: varint][username: stringa][lunghezza dell'indirizzo: 1 byte][indirizzo][porta: varint].
+ * <p>
+ * Configurazione: chat.cluster.members (indirizzo:porta dei nodi, separati da virgole, uguale per tutti i relay),
+ * chat.cluster.id (indice del relay in chat.cluster.members), chat.cluster.heartbeat, chat.cluster.timeout e
+ * chat.cluster.claim_timeout (tempi in millisecondi).
+ */
+class ClusterNode implements AutoCloseable {
+
+    /**
+     * Eventi del cluster che riguardano i client del server
+     */
+    interface Listener {
+        /**
+         * Il leader ha confermato l'username di un utente registrato da questo server
+         *
+         * @param user          L'utente
+         * @param history_count Numero di messaggi dello storico richiesti dal client
+         * @param history_since Istante da cui il client ha richiesto lo storico
+         */
+        void registrationConfirmed(User user, int history_count, long history_since);
+
+        /**
+         * Il leader ha rifiutato l'username di un utente registrato da questo server, già rimosso da getUsers()
+         *
+         * @param user L'utente
+         */
+        void registrationRejected(User user);
+
+        /**
+         * Gli utenti di un relay caduto sono stati rimossi da getUsers()
+         *
+         * @param users Gli utenti rimossi
+         */
+        void usersLost(List<User> users);
+    }
+
+    private enum Type {HEARTBEAT, CLAIM, GRANT, REJECT, JOIN, LEAVE, SYNC_REQUEST, SYNC}
+
+    private static final Type[] TYPES = Type.values();
+
+    /**
+     * Primo byte dei pacchetti del cluster, diverso dalla versione di PacketCodec
+     */
+    private static final byte CLUSTER_MAGIC = (byte) 0xC1;
+
+    /**
+     * Spazio massimo occupato dall'intestazione e dai campi di un SYNC, esclusi gli utenti
+     */
+    private static final int MAX_HEADER_SIZE = 1 + 1 + 5 + 10 + 5 + 1 + 5;
+
+    private static final int MAX_RECEIVE_SIZE = 65507;
+
+    /**
+     * Il timer che invia gli heartbeat e controlla i relay caduti, condiviso da tutti i ClusterNode del processo
+     */
+    private static final ScheduledExecutorService timer =
+            Executors.newSingleThreadScheduledExecutor(HostThreads.factory("cluster-timer"));
+
+    /**
+     * Stato di un altro relay del cluster
+     */
+    private static final class Member {
+        final int index;
+        final InetSocketAddress address;
+        /**
+         * Istante dell'ultimo pacchetto ricevuto, come System.nanoTime, 0 se il relay è considerato caduto
+         */
+        volatile long last_heard;
+        long applied_version = -1;
+        List<User> sync;
+        long sync_version;
+        int sync_next;
+
+        Member(int index, InetSocketAddress address) {
+            this.index = index;
+            this.address = address;
+        }
+    }
+
+    /**
+     * Registrazione in attesa della conferma del leader
+     */
+    private static final class Claim {
+        final User user;
+        final int history_count;
+        final long history_since;
+        final long deadline;
+
+        Claim(User user, int history_count, long history_since, long deadline) {
+            this.user = user;
+            this.history_count = history_count;
+            this.history_since = history_since;
+            this.deadline = deadline;
+        }
+    }
+
+    private final int self;
+    private final Member[] members;
+    private final UserRegistry users;
+    private final DatagramSocket socket;
+    private final long heartbeat_millis;
+    private final long timeout_nanos;
+    private final long claim_timeout_nanos;
+    private final Map<Integer, Claim> claims = new ConcurrentHashMap<>();
+    /**
+     * Id confermati dal leader di cui il proprietario non ha ancora inviato il JOIN, con la scadenza come
+     * System.nanoTime: un SYNC del proprietario, che non contiene gli utenti in attesa, non li rimuove
+     */
+    private final Map<Integer, Long> granted = new ConcurrentHashMap<>();
+    private final AsyncLogger logger = AsyncLogger.getDefault();
+
+    private Listener listener;
+    private long started;
+    private long version = 0;
+    private ScheduledFuture<?> heartbeat_task;
+    private volatile boolean closed = false;
+
+    /**
+     * Crea il nodo del cluster leggendo i parametri dalla configurazione
+     *
+     * @return Il nodo, o null se chat.cluster.members non è impostato
+     * @throws IOException In caso di errore durante l'apertura del socket del cluster
+     */
+    static ClusterNode fromConfig() throws IOException {
+        String list = Config.getString("cluster.members", "");
+        if (list.isEmpty())
+            return null;
+        String[] entries = list.split(",");
+        InetSocketAddress[] addresses = new InetSocketAddress[entries.length];
+        for (int i = 0; i < entries.length; i++) {
+            String entry = entries[i].trim();
+            int separator = entry.lastIndexOf(':');
+            if (separator < 0)
+                throw new IllegalArgumentException("Nodo del cluster non valido: " + entry);
+            addresses[i] = new InetSocketAddress(InetAddress.getByName(entry.substring(0, separator)),
+                    Integer.parseInt(entry.substring(separator + 1)));
+        }
+        return new ClusterNode(addresses, Config.getInt("cluster.id", 0),
+                Config.getLong("cluster.heartbeat", 200),
+                Config.getLong("cluster.timeout", 1000),
+                Config.getLong("cluster.claim_timeout", 10000));
+    }
+
+    /**
+     * Apre il socket del cluster sull'indirizzo del relay, senza avviare ricezione e heartbeat (vedi start)
+     *
+     * @param addresses           Indirizzi dei nodi del cluster, compreso questo
+     * @param self                Indice di questo relay in addresses
+     * @param heartbeat_millis    Intervallo tra due heartbeat
+     * @param timeout_millis      Tempo senza pacchetti dopo cui un relay è considerato caduto
+     * @param claim_timeout_millis Attesa massima della conferma del leader per una registrazione
+     * @throws IOException In caso di errore durante l'apertura del socket
+     */
+    ClusterNode(InetSocketAddress[] addresses, int self, long heartbeat_millis, long timeout_millis,
+                long claim_timeout_millis) throws IOException {
+        if (self < 0 || self >= addresses.length)
+            throw new IllegalArgumentException("Indice del relay non valido: " + self);
+        this.self = self;
+        this.members = new Member[addresses.length];
+        for (int i = 0; i < addresses.length; i++)
+            members[i] = new Member(i, addresses[i]);
+        this.users = new UserRegistry(16, self + 1, addresses.length);
+        this.heartbeat_millis = Math.max(1, heartbeat_millis);
+        this.timeout_nanos = TimeUnit.MILLISECONDS.toNanos(timeout_millis);
+        this.claim_timeout_nanos = TimeUnit.MILLISECONDS.toNanos(claim_timeout_millis);
+        this.socket = new DatagramSocket(addresses[self]);
+    }
+
+    /**
+     * Avvia la ricezione dei pacchetti del cluster e l'invio degli heartbeat
+     *
+     * @param listener Destinatario degli eventi che riguardano i client del server
+     */
+    void start(Listener listener) {
+        this.listener = listener;
+        this.started = System.nanoTime();
+        HostThreads.start("cluster", this::receive);
+        heartbeat_task = timer.scheduleAtFixedRate(this::tick, 0, heartbeat_millis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return L'elenco degli utenti del cluster, con gli id assegnati a strisce
+     */
+    UserRegistry getUsers() {
+        return users;
+    }
+
+    /**
+     * Nel primo timeout dopo l'avvio gli altri relay non hanno ancora inviato heartbeat: vengono considerati tutti
+     * vivi, così che due relay avviati insieme non si considerino entrambi leader
+     *
+     * @return true se questo relay è il leader, cioè non è vivo nessun relay di indice minore
+     */
+    boolean isLeader() {
+        return leader() == self;
+    }
+
+    private int leader() {
+        boolean starting = System.nanoTime() - started <= timeout_nanos;
+        for (Member member : members) {
+            if (member.index == self || starting || isAlive(member))
+                return member.index;
+        }
+        return self;
+    }
+
+    /**
+     * @return true se il leader può confermare username: è passato il primo timeout dopo l'avvio e da ogni
+     * relay vivo è stato applicato un SYNC (applied_version torna -1 quando manca un aggiornamento)
+     */
+    private boolean isReady() {
+        if (System.nanoTime() - started <= timeout_nanos)
+            return members.length == 1;
+        for (Member member : members) {
+            if (member.index == self || !isAlive(member))
+                continue;
+            synchronized (member) {
+                if (member.applied_version < 0)
+                    return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean isAlive(Member member) {
+        long last_heard = member.last_heard;
+        return last_heard != 0 && System.nanoTime() - last_heard <= timeout_nanos;
+    }
+
+    /**
+     * @param id L'id di un utente
+     * @return L'indice del relay che ha assegnato l'id
+     */
+    private int owner(int id) {
+        return (id - 1) % members.length;
+    }
+
+    /**
+     * @param user Un utente di getUsers()
+     * @return true se l'utente si è registrato presso questo relay
+     */
+    boolean owns(User user) {
+        return owner(user.id) == self;
+    }
+
+    /**
+     * Chiede la conferma dell'username di un utente appena registrato da questo server.
+     * Il leader, se ha già applicato i SYNC degli altri relay, conferma subito; altrimenti la conferma arriva
+     * con Listener.registrationConfirmed.
+     *
+     * @param user          L'utente, già inserito in getUsers()
+     * @param history_count Numero di messaggi dello storico richiesti dal client
+     * @param history_since Istante da cui il client ha richiesto lo storico
+     * @return true se l'username è confermato, false se si attende il leader
+     */
+    boolean register(User user, int history_count, long history_since) {
+        if (isLeader() && isReady()) {
+            joined(user);
+            return true;
+        }
+        claims.put(user.id, new Claim(user, history_count, history_since, System.nanoTime() + claim_timeout_nanos));
+        sendClaim(user);
+        return false;
+    }
+
+    /**
+     * @param user Un utente registrato da questo server
+     * @return true se la sua registrazione attende la conferma del leader
+     */
+    boolean isPending(User user) {
+        return claims.containsKey(user.id);
+    }
+
+    /**
+     * Ripete il CLAIM di un utente in attesa di conferma, al leader corrente
+     *
+     * @param user L'utente
+     */
+    void resendClaim(User user) {
+        if (isPending(user))
+            sendClaim(user);
+    }
+
+    private void sendClaim(User user) {
+        int leader = leader();
+        if (leader == self) {
+            Claim claim;
+            if (isReady() && (claim = claims.remove(user.id)) != null)
+                confirm(claim);
+            return;
+        }
+        ByteBuffer out = header(Type.CLAIM, userSize(user));
+        writeUser(out, user);
+        send(out, members[leader]);
+    }
+
+    private void confirm(Claim claim) {
+        joined(claim.user);
+        listener.registrationConfirmed(claim.user, claim.history_count, claim.history_since);
+    }
+
+    /**
+     * Comunica agli altri relay un utente registrato da questo server
+     */
+    private synchronized void joined(User user) {
+        ByteBuffer out = header(Type.JOIN, 10 + userSize(user));
+        PacketCodec.writeVarLong(out, ++version);
+        writeUser(out, user);
+        broadcast(out);
+    }
+
+    /**
+     * Comunica agli altri relay la rimozione di un utente registrato da questo server.
+     * Gli utenti degli altri relay vengono ignorati: la loro rimozione la comunica il proprietario.
+     *
+     * @param user L'utente, già rimosso da getUsers()
+     */
+    synchronized void left(User user) {
+        if (!owns(user))
+            return;
+        claims.remove(user.id);
+        ByteBuffer out = header(Type.LEAVE, 10 + 5);
+        PacketCodec.writeVarLong(out, ++version);
+        PacketCodec.writeVarInt(out, user.id);
+        broadcast(out);
+    }
+
+    /**
+     * Invia gli heartbeat, rimuove gli utenti dei relay caduti e annulla le registrazioni non confermate in tempo
+     */
+    private void tick() {
+        try {
+            heartbeat();
+        } catch (RuntimeException e) {
+            // Un'eccezione non gestita annullerebbe le esecuzioni successive del timer
+            e.printStackTrace();
+        }
+    }
+
+    private void heartbeat() {
+        ByteBuffer out;
+        synchronized (this) {
+            out = header(Type.HEARTBEAT, 10);
+            PacketCodec.writeVarLong(out, version);
+        }
+        broadcast(out);
+
+        long now = System.nanoTime();
+        for (Member member : members) {
+            if (member.index != self && member.last_heard != 0 && now - member.last_heard > timeout_nanos)
+                memberLost(member);
+        }
+        boolean confirm = isLeader() && isReady();
+        for (Claim claim : claims.values()) {
+            if (now - claim.deadline > 0 && claims.remove(claim.user.id, claim)) {
+                users.remove(claim.user.id);
+                left(claim.user);
+            } else if (confirm && claims.remove(claim.user.id, claim)) {
+                // Registrazioni ricevute dal leader prima che avesse applicato i SYNC degli altri relay
+                confirm(claim);
+            }
+        }
+        granted.values().removeIf(deadline -> now - deadline > 0);
+    }
+
+    /**
+     * Considera caduto un relay e rimuove i suoi utenti
+     */
+    private void memberLost(Member member) {
+        List<User> removed = new ArrayList<>();
+        synchronized (member) {
+            member.last_heard = 0;
+            member.applied_version = -1;
+            member.sync = null;
+            for (User user : users.users()) {
+                if (owner(user.id) == member.index && users.remove(user.id) != null)
+                    removed.add(user);
+            }
+            granted.keySet().removeIf(id -> owner(id) == member.index);
+        }
+        if (!removed.isEmpty())
+            listener.usersLost(removed);
+    }
+
+    /**
+     * Riceve i pacchetti del cluster finché il socket non viene chiuso
+     */
+    private void receive() {
+        byte[] buffer = new byte[MAX_RECEIVE_SIZE];
+        DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+        while (!closed) {
+            try {
+                packet.setLength(buffer.length);
+                socket.receive(packet);
+                process(ByteBuffer.wrap(buffer, 0, packet.getLength()));
+            } catch (ProtocolException | UnknownHostException e) {
+                e.printStackTrace();
+            } catch (IOException e) {
+                if (!closed)
+                    e.printStackTrace();
+            } catch (RuntimeException e) {
+                // Un pacchetto non valido non deve interrompere la ricezione: il relay continuerebbe a inviare
+                // heartbeat e gli altri lo considererebbero vivo
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Elabora un pacchetto ricevuto da un altro relay
+     *
+     * @param in Il pacchetto
+     * @throws ProtocolException    Se il pacchetto non è valido
+     * @throws UnknownHostException Se l'indirizzo di un utente non è valido
+     */
+    private void process(ByteBuffer in) throws ProtocolException, UnknownHostException {
+        try {
+            if (in.get() != CLUSTER_MAGIC)
+                throw new ProtocolException("Pacchetto estraneo al cluster");
+            int type = in.get() & 0xFF;
+            int sender = PacketCodec.readVarInt(in);
+            if (type >= TYPES.length || sender < 0 || sender >= members.length || sender == self)
+                throw new ProtocolException("Pacchetto del cluster non valido");
+            Member member = members[sender];
+            member.last_heard = System.nanoTime();
+            switch (TYPES[type]) {
+                case HEARTBEAT:
+                    if (PacketCodec.readVarLong(in) != member.applied_version)
+                        send(header(Type.SYNC_REQUEST, 0), member);
+                    break;
+                case CLAIM:
+                    receiveClaim(readUser(in), member);
+                    break;
+                case GRANT: {
+                    Claim claim = claims.remove(PacketCodec.readVarInt(in));
+                    if (claim != null)
+                        confirm(claim);
+                    break;
+                }
+                case REJECT: {
+                    Claim claim = claims.remove(PacketCodec.readVarInt(in));
+                    if (claim != null) {
+                        users.remove(claim.user.id);
+                        left(claim.user);
+                        listener.registrationRejected(claim.user);
+                    }
+                    break;
+                }
+                case JOIN: {
+                    long joined_version = PacketCodec.readVarLong(in);
+                    User user = readUser(in);
+                    synchronized (member) {
+                        if (owner(user.id) == member.index && !addReplica(user))
+                            member.applied_version = -1;
+                        else
+                            updateVersion(member, joined_version);
+                    }
+                    break;
+                }
+                case LEAVE: {
+                    long left_version = PacketCodec.readVarLong(in);
+                    int id = PacketCodec.readVarInt(in);
+                    synchronized (member) {
+                        if (owner(id) == member.index) {
+                            granted.remove(id);
+                            removeReplica(id);
+                        }
+                        updateVersion(member, left_version);
+                    }
+                    break;
+                }
+                case SYNC_REQUEST:
+                    sendSync(member);
+                    break;
+                case SYNC:
+                    receiveSync(in, member);
+                    break;
+            }
+        } catch (BufferUnderflowException e) {
+            throw new ProtocolException("Pacchetto del cluster troncato");
+        }
+    }
+
+    /**
+     * Il leader conferma l'username se è libero o già assegnato allo stesso utente, e lo riserva fino al JOIN.
+     * Finché non è pronto (vedi isReady) non risponde: il CLAIM verrà ripetuto.
+     */
+    private void receiveClaim(User user, Member member) {
+        if (!isLeader() || !isReady() || owner(user.id) != member.index)
+            return;
+        user.encodeMessagePrefix();
+        boolean accepted = users.add(user);
+        if (accepted)
+            granted.put(user.id, System.nanoTime() + claim_timeout_nanos);
+        ByteBuffer out = header(accepted ? Type.GRANT : Type.REJECT, 5);
+        PacketCodec.writeVarInt(out, user.id);
+        send(out, member);
+    }
+
+    /**
+     * Aggiorna la versione applicata di un relay; se manca un aggiornamento precedente chiede l'elenco completo
+     */
+    private void updateVersion(Member member, long received_version) {
+        if (received_version == member.applied_version + 1) {
+            member.applied_version = received_version;
+        } else if (received_version > member.applied_version) {
+            member.applied_version = -1;
+            send(header(Type.SYNC_REQUEST, 0), member);
+        }
+    }
+
+    /**
+     * Inserisce un utente ricevuto dal suo proprietario. Se l'username è di una registrazione di questo relay
+     * in attesa di conferma, questa viene rifiutata: l'utente ricevuto è già stato confermato dal leader.
+     * Se è di un utente di un altro relay, a quel relay viene chiesto un SYNC, che rimuove l'utente se non esiste più.
+     *
+     * @param user L'utente ricevuto con JOIN o SYNC
+     * @return true se l'utente è stato inserito, false se l'username è in uso da un altro utente
+     */
+    private boolean addReplica(User user) {
+        user.encodeMessagePrefix();
+        if (users.add(user)) {
+            granted.remove(user.id);
+            return true;
+        }
+        User holder = users.get(user.username);
+        if (holder == null)
+            return addReplica(user);
+        int holder_owner = owner(holder.id);
+        if (holder_owner != self) {
+            send(header(Type.SYNC_REQUEST, 0), members[holder_owner]);
+            return false;
+        }
+        Claim claim = claims.remove(holder.id);
+        if (claim == null) {
+            logger.log(AsyncLogger.Level.WARNING, "Username %s in uso nel cluster da %d e %d", user.username, holder.id, user.id);
+            return false;
+        }
+        users.remove(holder.id);
+        left(holder);
+        listener.registrationRejected(holder);
+        return addReplica(user);
+    }
+
+    private void removeReplica(int id) {
+        User user = users.remove(id);
+        if (user != null)
+            user.releaseMessagePrefix();
+    }
+
+    /**
+     * Invia a un relay l'elenco completo degli utenti registrati da questo server, esclusi quelli in attesa
+     * di conferma, diviso in parti che non superano ChatHost.MAX_DATAGRAM_SIZE
+     */
+    private void sendSync(Member member) {
+        List<User> owned = new ArrayList<>();
+        long sync_version;
+        synchronized (this) {
+            for (User user : users.users()) {
+                if (owns(user) && !claims.containsKey(user.id))
+                    owned.add(user);
+            }
+            sync_version = version;
+        }
+        int part = 0;
+        int from = 0;
+        do {
+            int size = 0;
+            int to = from;
+            while (to < owned.size() && (to == from || MAX_HEADER_SIZE + size + userSize(owned.get(to)) <= ChatHost.MAX_DATAGRAM_SIZE))
+                size += userSize(owned.get(to++));
+            ByteBuffer out = header(Type.SYNC, MAX_HEADER_SIZE + size);
+            PacketCodec.writeVarLong(out, sync_version);
+            PacketCodec.writeVarInt(out, part++);
+            out.put((byte) (to == owned.size() ? 1 : 0));
+            PacketCodec.writeVarInt(out, to - from);
+            for (int i = from; i < to; i++)
+                writeUser(out, owned.get(i));
+            send(out, member);
+            from = to;
+        } while (from < owned.size());
+    }
+
+    /**
+     * Raccoglie le parti di un SYNC; all'ultima sostituisce gli utenti del relay con quelli ricevuti, tranne quelli
+     * confermati dal leader di cui non è ancora arrivato il JOIN. Una parte mancante o fuori ordine, o un username
+     * in conflitto, annulla il SYNC, che verrà richiesto di nuovo al prossimo heartbeat.
+     */
+    private void receiveSync(ByteBuffer in, Member member) throws ProtocolException, UnknownHostException {
+        long sync_version = PacketCodec.readVarLong(in);
+        int part = PacketCodec.readVarInt(in);
+        boolean last = in.get() != 0;
+        int count = PacketCodec.readVarInt(in);
+        if (count < 0 || count > in.remaining())
+            throw new ProtocolException("Numero di utenti del SYNC non valido: " + count);
+        List<User> received = new ArrayList<>(count);
+        for (int i = 0; i < count; i++)
+            received.add(readUser(in));
+        synchronized (member) {
+            if (part == 0) {
+                member.sync = new ArrayList<>();
+                member.sync_version = sync_version;
+                member.sync_next = 0;
+            }
+            if (member.sync == null || part != member.sync_next || sync_version != member.sync_version) {
+                member.sync = null;
+                return;
+            }
+            member.sync.addAll(received);
+            member.sync_next++;
+            if (!last)
+                return;
+            Set<Integer> ids = new HashSet<>();
+            for (User user : member.sync)
+                ids.add(user.id);
+            for (User user : users.users()) {
+                if (owner(user.id) == member.index && !ids.contains(user.id) && !granted.containsKey(user.id))
+                    removeReplica(user.id);
+            }
+            boolean complete = true;
+            for (User user : member.sync) {
+                if (owner(user.id) == member.index && !addReplica(user))
+                    complete = false;
+            }
+            member.applied_version = complete ? sync_version : -1;
+            member.sync = null;
+        }
+    }
+
+    private ByteBuffer header(Type type, int body_size) {
+        ByteBuffer out = ByteBuffer.allocate(1 + 1 + 5 + body_size);
+        out.put(CLUSTER_MAGIC);
+        out.put((byte) type.ordinal());
+        PacketCodec.writeVarInt(out, self);
+        return out;
+    }
+
+    private static int userSize(User user) {
+        return PacketCodec.varIntSize(user.id) + PacketCodec.stringSize(user.username)
+                + 1 + user.address.getAddress().length + PacketCodec.varIntSize(user.port);
+    }
+
+    private static void writeUser(ByteBuffer out, User user) {
+        PacketCodec.writeVarInt(out, user.id);
+        PacketCodec.writeString(out, user.username);
+        byte[] address = user.address.getAddress();
+        out.put((byte) address.length);
+        out.put(address);
+        PacketCodec.writeVarInt(out, user.port);
+    }
+
+    private static User readUser(ByteBuffer in) throws ProtocolException, UnknownHostException {
+        int id = PacketCodec.readVarInt(in);
+        String username = PacketCodec.readString(in);
+        byte[] address = new byte[in.get() & 0xFF];
+        in.get(address);
+        int port = PacketCodec.readVarInt(in);
+        if (id < 1 || username == null)
+            throw new ProtocolException("Utente del cluster non valido");
+        return new User(id, username, InetAddress.getByAddress(address), port);
+    }
+
+    private void broadcast(ByteBuffer out) {
+        for (Member member : members) {
+            if (member.index != self)
+                send(out, member);
+        }
+    }
+
+    private void send(ByteBuffer out, Member member) {
+        try {
+            socket.send(new DatagramPacket(out.array(), out.position(), member.address));
+        } catch (IOException e) {
+            if (!closed)
+                e.printStackTrace();
+        }
+    }
+
+    /**
+     * Interrompe gli heartbeat e chiude il socket del cluster. Gli altri relay rimuovono gli utenti di questo
+     * server dopo chat.cluster.timeout millisecondi.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        if (heartbeat_task != null)
+            heartbeat_task.cancel(false);
+        socket.close();
+    }
+}
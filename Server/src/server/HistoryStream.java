@@ -0,0 +1,164 @@
+package server;
+
+import backend.ChatPacket;
+import backend.HostThreads;
+import backend.PacketCodec;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Invio a un client dei messaggi dello storico richiesti alla registrazione.
+ * <p>
+ * I messaggi con numero di sequenza compreso tra from ed end vengono letti dal MessageLog e raggruppati in
+ * pacchetti HISTORY di al massimo max_bytes byte, copiando i corpi così come sono salvati. Viene inviato un
+ * pacchetto ogni interval_millis millisecondi, nel thread condiviso da tutti gli HistoryStream del processo:
+ * un recupero lungo non riempie il buffer di ricezione del client e non occupa i thread che inoltrano i
+ * messaggi al gruppo. L'ultimo pacchetto ha history_remaining uguale a 0, anche se non contiene messaggi.
+ * Ogni pacchetto riporta anche il primo numero dello storico richiesto e l'ultimo numero di sequenza inviato al
+ * gruppo prima della registrazione, con cui il client scarta i messaggi ricevuti dal gruppo già presenti nello storico.
+ */
+class HistoryStream implements Runnable {
+
+    /**
+     * Destinazione dei pacchetti HISTORY
+     */
+    interface Sink {
+        /**
+         * @param datagram Il pacchetto codificato, tra posizione e limite del buffer
+         * @throws IOException In caso di errore durante l'invio
+         */
+        void send(ByteBuffer datagram) throws IOException;
+    }
+
+    /**
+     * Spazio massimo occupato da tipo, primo numero, rimanenti, inizio, ultimo numero del gruppo e numero di messaggi
+     * nel corpo di un HISTORY
+     */
+    private static final int HISTORY_PREFIX_SIZE = 1 + 10 + 5 + 10 + 10 + 5;
+
+    private static final ScheduledExecutorService timer =
+            Executors.newSingleThreadScheduledExecutor(HostThreads.factory("history-stream"));
+
+    private final MessageLog log;
+    private final long end;
+    private final long start;
+    private final long cutoff;
+    private final long interval_millis;
+    private final Sink sink;
+    private final int max_entries;
+
+    private ByteBuffer entries;
+    private ByteBuffer datagram;
+    private long next;
+
+    /**
+     * @param log             Lo storico da cui leggere i messaggi
+     * @param start           Numero di sequenza del primo messaggio dello storico richiesto dal client
+     * @param from            Numero di sequenza del primo messaggio da inviare, maggiore di start se l'invio viene ripetuto
+     * @param end             Numero di sequenza successivo all'ultimo messaggio da inviare
+     * @param cutoff          Ultimo numero di sequenza inviato al gruppo prima della registrazione
+     * @param max_bytes       Dimensione massima di un pacchetto, superata solo da un singolo messaggio più grande
+     * @param interval_millis Intervallo tra l'invio di due pacchetti
+     * @param sink            Destinazione dei pacchetti
+     */
+    private HistoryStream(MessageLog log, long start, long from, long end, long cutoff, int max_bytes,
+                          long interval_millis, Sink sink) {
+        this.log = log;
+        this.start = start;
+        this.next = from;
+        this.end = end;
+        this.cutoff = cutoff;
+        this.interval_millis = Math.max(1, interval_millis);
+        this.sink = sink;
+        this.max_entries = max_bytes - PacketCodec.HEADER_SIZE - HISTORY_PREFIX_SIZE;
+        this.entries = ByteBuffer.allocate(max_entries);
+        this.datagram = ByteBuffer.allocate(max_bytes);
+    }
+
+    /**
+     * Avvia l'invio dei messaggi dello storico; il primo pacchetto viene inviato dopo interval_millis
+     *
+     * @param log             Lo storico da cui leggere i messaggi
+     * @param start           Numero di sequenza del primo messaggio dello storico richiesto dal client
+     * @param from            Numero di sequenza del primo messaggio da inviare
+     * @param end             Numero di sequenza successivo all'ultimo messaggio da inviare
+     * @param cutoff          Ultimo numero di sequenza inviato al gruppo prima della registrazione
+     * @param max_bytes       Dimensione massima di un pacchetto
+     * @param interval_millis Intervallo tra l'invio di due pacchetti
+     * @param sink            Destinazione dei pacchetti
+     */
+    static void start(MessageLog log, long start, long from, long end, long cutoff, int max_bytes,
+                      long interval_millis, Sink sink) {
+        HistoryStream stream = new HistoryStream(log, start, from, end, cutoff, max_bytes, interval_millis, sink);
+        timer.schedule(stream, stream.interval_millis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Invia il pacchetto successivo e, se restano messaggi, programma l'invio di quello dopo
+     */
+    @Override
+    public void run() {
+        entries.clear();
+        int[] count = new int[1];
+        long[] first = {next};
+        log.read(next, Integer.MAX_VALUE, (sequence, timestamp, body) -> {
+            if (sequence >= end)
+                return false;
+            if (count[0] > 0 && entries.remaining() < body.remaining())
+                return false;
+            if (entries.remaining() < body.remaining())
+                entries = ByteBuffer.allocate(body.remaining());
+            if (count[0] == 0)
+                first[0] = sequence;
+            entries.put(body);
+            count[0]++;
+            next = sequence + 1;
+            return true;
+        });
+        if (count[0] == 0)
+            next = end;
+        int remaining = (int) Math.min(Integer.MAX_VALUE, end - next);
+        try {
+            entries.flip();
+            sink.send(encode(first[0], remaining, count[0]));
+        } catch (IOException e) {
+            e.printStackTrace();
+            return;
+        }
+        if (entries.capacity() > max_entries)
+            entries = ByteBuffer.allocate(max_entries);
+        if (remaining > 0)
+            timer.schedule(this, interval_millis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Codifica un HISTORY con i corpi dei messaggi raccolti in entries
+     */
+    private ByteBuffer encode(long first_sequence, int remaining, int count) throws IOException {
+        if (ChatPacket.legacy_format) {
+            List<ChatPacket> messages = new ArrayList<>(count);
+            for (int i = 0; i < count; i++)
+                messages.add(PacketCodec.decodeBody(entries));
+            ChatPacket history = new ChatPacket(messages, first_sequence, remaining);
+            history.history_start = start;
+            history.history_cutoff = cutoff;
+            return ChatPacket.encode(history);
+        }
+        int size = PacketCodec.HEADER_SIZE + HISTORY_PREFIX_SIZE + entries.remaining();
+        if (datagram.capacity() < size)
+            datagram = ByteBuffer.allocate(size);
+        datagram.clear();
+        PacketCodec.writeHeader(datagram);
+        datagram.put((byte) ChatPacket.Type.HISTORY.ordinal());
+        PacketCodec.writeHistoryFields(datagram, first_sequence, remaining, start, cutoff, count);
+        datagram.put(entries);
+        datagram.flip();
+        return datagram;
+    }
+}
@@ -0,0 +1,327 @@
+package server;
+
+import backend.PacketCodec;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Segmento del MessageLog: un file di messaggi e il relativo indice, entrambi mappati in memoria.
+ * <p>
+ * Formato di un messaggio: [lunghezza del corpo: int][istante in millisecondi: long][corpo del MESSAGE],
+ * dove il corpo è quello del formato binario di PacketCodec. La lunghezza viene scritta per ultima, così che
+ * un messaggio scritto a metà abbia lunghezza 0 e venga considerato la fine del segmento.
+ * Il numero di sequenza di un messaggio è dato dal numero base del segmento più la sua posizione nel segmento.
+ * <p>
+ * L'indice contiene una voce [numero relativo: int][posizione: int][istante: long] per il primo messaggio
+ * e poi ogni INDEX_INTERVAL byte di messaggi: una ricerca per numero di sequenza o per istante legge al più
+ * INDEX_INTERVAL byte dopo la voce trovata con una ricerca binaria.
+ */
+class LogSegment {
+    /**
+     * Dimensione di lunghezza e istante che precedono il corpo di un messaggio
+     */
+    static final int RECORD_HEADER_SIZE = 4 + 8;
+
+    private static final int INDEX_ENTRY_SIZE = 4 + 4 + 8;
+    private static final int INDEX_INTERVAL = 4096;
+
+    final long base_sequence;
+    private final Path log_path;
+    private final Path index_path;
+    private final FileChannel log_channel;
+    private final FileChannel index_channel;
+    private final MappedByteBuffer log;
+    private final MappedByteBuffer index;
+
+    private int size = 0;
+    private int record_count = 0;
+    private int index_count = 0;
+    private int last_indexed_position = 0;
+    private long first_timestamp = 0;
+    private long last_timestamp = 0;
+
+    private LogSegment(Path directory, long base_sequence, int capacity, boolean create) throws IOException {
+        this.base_sequence = base_sequence;
+        this.log_path = directory.resolve(fileName(base_sequence, ".log"));
+        this.index_path = directory.resolve(fileName(base_sequence, ".idx"));
+        StandardOpenOption mode = create ? StandardOpenOption.CREATE_NEW : StandardOpenOption.CREATE;
+        log_channel = FileChannel.open(log_path, mode, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        index_channel = FileChannel.open(index_path, mode, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        if (!create && log_channel.size() > 0)
+            capacity = (int) Math.min(Integer.MAX_VALUE, log_channel.size());
+        log = log_channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+        index = index_channel.map(FileChannel.MapMode.READ_WRITE, 0, (long) (capacity / INDEX_INTERVAL + 1) * INDEX_ENTRY_SIZE);
+    }
+
+    /**
+     * Crea un nuovo segmento vuoto. I file vengono estesi subito alla dimensione massima (senza occupare spazio
+     * su disco finché non vengono scritti), così che le scritture successive non richiedano chiamate di sistema.
+     *
+     * @param directory     La cartella del log
+     * @param base_sequence Numero di sequenza del primo messaggio del segmento
+     * @param capacity      Dimensione massima del file dei messaggi
+     * @return Il segmento
+     * @throws IOException In caso di errore durante la creazione dei file
+     */
+    static LogSegment create(Path directory, long base_sequence, int capacity) throws IOException {
+        return new LogSegment(directory, base_sequence, capacity, true);
+    }
+
+    /**
+     * Apre un segmento esistente, ricostruendo dall'indice e dai messaggi la posizione di scrittura
+     *
+     * @param directory     La cartella del log
+     * @param base_sequence Numero di sequenza del primo messaggio del segmento
+     * @param capacity      Dimensione massima del file dei messaggi, se il file è vuoto
+     * @return Il segmento
+     * @throws IOException In caso di errore durante l'apertura dei file
+     */
+    static LogSegment open(Path directory, long base_sequence, int capacity) throws IOException {
+        LogSegment segment = new LogSegment(directory, base_sequence, capacity, false);
+        segment.recover();
+        return segment;
+    }
+
+    /**
+     * Conta le voci dell'indice (hanno sempre istante diverso da 0) e percorre i messaggi dall'ultima voce
+     */
+    private void recover() {
+        int max_entries = index.capacity() / INDEX_ENTRY_SIZE;
+        while (index_count < max_entries && index.getLong(index_count * INDEX_ENTRY_SIZE + 8) != 0)
+            index_count++;
+        if (index_count == 0)
+            return;
+        first_timestamp = index.getLong(8);
+        int entry = (index_count - 1) * INDEX_ENTRY_SIZE;
+        record_count = index.getInt(entry);
+        size = index.getInt(entry + 4);
+        last_indexed_position = size;
+        int length;
+        while ((length = lengthAt(size)) > 0) {
+            last_timestamp = log.getLong(size + 4);
+            size += RECORD_HEADER_SIZE + length;
+            record_count++;
+        }
+    }
+
+    static String fileName(long base_sequence, String extension) {
+        return String.format("%020d%s", base_sequence, extension);
+    }
+
+    /**
+     * @return La lunghezza del corpo del messaggio alla posizione specificata, 0 se non ci sono altri messaggi
+     */
+    private int lengthAt(int position) {
+        if (position + RECORD_HEADER_SIZE > log.capacity())
+            return 0;
+        int length = log.getInt(position);
+        if (length <= 0 || position + RECORD_HEADER_SIZE + length > log.capacity())
+            return 0;
+        return length;
+    }
+
+    /**
+     * @param body_size Dimensione del corpo di un messaggio
+     * @return true se il messaggio entra nello spazio rimasto
+     */
+    boolean fits(int body_size) {
+        return size + RECORD_HEADER_SIZE + body_size <= log.capacity();
+    }
+
+    /**
+     * Aggiunge un messaggio, il cui corpo è composto da inizio già codificato e contenuto già codificato.
+     * Va chiamato solo se fits(prefix.length + content.remaining()).
+     *
+     * @param timestamp Istante di scrittura, in millisecondi
+     * @param prefix    Tipo, id e username del messaggio già codificati
+     * @param content   Il contenuto codificato, tra posizione e limite; la posizione non viene modificata
+     * @return Il numero di sequenza del messaggio
+     */
+    long append(long timestamp, byte[] prefix, ByteBuffer content) {
+        log.position(size + RECORD_HEADER_SIZE);
+        log.put(prefix);
+        log.put(content.duplicate());
+        return commit(timestamp);
+    }
+
+    /**
+     * Aggiunge un messaggio codificandone il contenuto. Va chiamato solo se fits(prefix.length + content_size).
+     *
+     * @param timestamp Istante di scrittura, in millisecondi
+     * @param prefix    Tipo, id e username del messaggio già codificati
+     * @param content   Il contenuto del messaggio
+     * @return Il numero di sequenza del messaggio
+     */
+    long append(long timestamp, byte[] prefix, String content) {
+        log.position(size + RECORD_HEADER_SIZE);
+        log.put(prefix);
+        PacketCodec.writeString(log, content);
+        return commit(timestamp);
+    }
+
+    /**
+     * Completa il messaggio scritto a partire da size + RECORD_HEADER_SIZE: scrive istante e lunghezza,
+     * e se necessario aggiunge una voce all'indice
+     */
+    private long commit(long timestamp) {
+        int length = log.position() - size - RECORD_HEADER_SIZE;
+        log.putLong(size + 4, timestamp);
+        log.putInt(size, length);
+        if (record_count == 0 || size - last_indexed_position >= INDEX_INTERVAL) {
+            int entry = index_count * INDEX_ENTRY_SIZE;
+            index.putInt(entry, record_count);
+            index.putInt(entry + 4, size);
+            index.putLong(entry + 8, timestamp);
+            index_count++;
+            last_indexed_position = size;
+        }
+        if (record_count == 0)
+            first_timestamp = timestamp;
+        last_timestamp = timestamp;
+        size += RECORD_HEADER_SIZE + length;
+        return base_sequence + record_count++;
+    }
+
+    /**
+     * Legge i messaggi a partire dal numero di sequenza specificato
+     *
+     * @param from_sequence Numero di sequenza del primo messaggio da leggere
+     * @param visitor       Destinatario dei messaggi
+     * @return false se il visitor ha interrotto la lettura
+     */
+    boolean readFrom(long from_sequence, MessageLog.Visitor visitor) {
+        if (from_sequence >= base_sequence + record_count)
+            return true;
+        int relative = (int) Math.max(0, from_sequence - base_sequence);
+        int entry = floorEntry(relative, 0);
+        int sequence = index.getInt(entry);
+        int position = index.getInt(entry + 4);
+        while (sequence < relative) {
+            position += RECORD_HEADER_SIZE + lengthAt(position);
+            sequence++;
+        }
+        return visit(sequence, position, Long.MAX_VALUE, visitor);
+    }
+
+    /**
+     * Legge i messaggi scritti tra i due istanti specificati
+     *
+     * @param from_millis Istante minimo, in millisecondi
+     * @param to_millis   Istante massimo, in millisecondi
+     * @param visitor     Destinatario dei messaggi
+     * @return false se il visitor ha interrotto la lettura
+     */
+    boolean readRange(long from_millis, long to_millis, MessageLog.Visitor visitor) {
+        if (record_count == 0 || last_timestamp < from_millis)
+            return true;
+        int entry = floorEntry(from_millis, 8);
+        int sequence = index.getInt(entry);
+        int position = index.getInt(entry + 4);
+        while (sequence < record_count && log.getLong(position + 4) < from_millis) {
+            position += RECORD_HEADER_SIZE + lengthAt(position);
+            sequence++;
+        }
+        return visit(sequence, position, to_millis, visitor);
+    }
+
+    /**
+     * Ricerca binaria dell'ultima voce dell'indice con valore (numero relativo o istante) non maggiore di key
+     *
+     * @param key    Il valore cercato
+     * @param offset 0 per cercare per numero relativo, 8 per istante
+     * @return La posizione della voce nell'indice, o della prima voce se nessuna è minore di key
+     */
+    private int floorEntry(long key, int offset) {
+        int low = 0;
+        int high = index_count - 1;
+        while (low < high) {
+            int middle = (low + high + 1) >>> 1;
+            int entry = middle * INDEX_ENTRY_SIZE;
+            long value = offset == 0 ? index.getInt(entry) : index.getLong(entry + offset);
+            // Più messaggi nello stesso millisecondo: si parte dalla voce precedente
+            if (offset == 0 ? value <= key : value < key)
+                low = middle;
+            else
+                high = middle - 1;
+        }
+        return low * INDEX_ENTRY_SIZE;
+    }
+
+    private boolean visit(int sequence, int position, long to_millis, MessageLog.Visitor visitor) {
+        ByteBuffer view = log.duplicate();
+        int length;
+        while (sequence < record_count && (length = lengthAt(position)) > 0) {
+            long timestamp = log.getLong(position + 4);
+            if (timestamp > to_millis)
+                return false;
+            view.limit(position + RECORD_HEADER_SIZE + length).position(position + RECORD_HEADER_SIZE);
+            if (!visitor.visit(base_sequence + sequence, timestamp, view))
+                return false;
+            position += RECORD_HEADER_SIZE + length;
+            sequence++;
+        }
+        return true;
+    }
+
+    /**
+     * Scrive su disco le modifiche ai file mappati
+     */
+    void flush() {
+        log.force();
+        index.force();
+    }
+
+    /**
+     * Chiude i file del segmento. La memoria mappata viene rilasciata dal garbage collector.
+     */
+    void close() {
+        try {
+            log_channel.close();
+            index_channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Chiude ed elimina i file del segmento
+     */
+    void delete() {
+        close();
+        try {
+            Files.deleteIfExists(log_path);
+            Files.deleteIfExists(index_path);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * @return Numero di sequenza del prossimo messaggio del segmento
+     */
+    long getNextSequence() {
+        return base_sequence + record_count;
+    }
+
+    int getRecordCount() {
+        return record_count;
+    }
+
+    int getSize() {
+        return size;
+    }
+
+    long getFirstTimestamp() {
+        return first_timestamp;
+    }
+
+    long getLastTimestamp() {
+        return last_timestamp;
+    }
+}
@@ -1,5 +1,8 @@
 package server;
 
+import backend.Config;
+
+import javax.management.JMException;
 import java.io.IOException;
 import java.net.InetAddress;
 
@@ -10,22 +13,102 @@ public class Main {
 
 
     public static void main(String[] args) {
+        if (args.length > 0 && args[0].equals("--rooms")) {
+            startRooms(args);
+            return;
+        }
         ChatServer server;
         try {
+            MetricsEndpoint endpoint = startMetricsEndpoint();
             if (args.length == 1) {
                 server = new ChatServer(InetAddress.getByName(args[0]), Integer.parseInt(args[1]));
             } else if (args.length == 3) {
-                server = new ChatServer(InetAddress.getByName(args[0]), Integer.parseInt(args[1], Integer.parseInt(args[2])));
+                server = new ChatServer(InetAddress.getByName(args[0]), Integer.parseInt(args[1]), Integer.parseInt(args[2]));
             } else {
                 System.out.println("Sintassi: java server.server.Main [porta locale] [indirizzo multicast] [porta multicast]");
+                System.out.println("          java server.server.Main --rooms indirizzo:porta multicast:porta locale[,...] [numero selector]");
                 server = new ChatServer(InetAddress.getByName("224.1.1.1"), 6667, 6666);
             }
             System.out.println("server in ascolto.");
             System.out.println("Indirizzo server: " + InetAddress.getLocalHost().getHostAddress() + ":" + server.getLocalPort());
             System.out.println("Indirizzo gruppo multicast: " + server.getGroupAddress().getHostAddress() + ":" + server.getGroup_port());
+            exposeMetrics(server, endpoint);
+            // Il Receiver thread è daemon: il thread principale resta in attesa per tenere attivo il server
+            Thread.currentThread().join();
+        } catch (IOException e) {
+            System.err.println("Indirizzo sconosciuto o non valido.");
+
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Avvia un RoomServer con le stanze specificate, nel formato
+     * --rooms indirizzo:porta multicast:porta locale[,indirizzo:porta multicast:porta locale...] [numero selector]
+     *
+     * @param args Argomenti da riga di comando
+     */
+    private static void startRooms(String[] args) {
+        if (args.length < 2) {
+            System.out.println("Sintassi: java server.server.Main --rooms indirizzo:porta multicast:porta locale[,...] [numero selector]");
+            return;
+        }
+        try {
+            int selector_count = args.length > 2 ? Integer.parseInt(args[2]) : 1;
+            MetricsEndpoint endpoint = startMetricsEndpoint();
+            RoomServer server = new RoomServer(selector_count);
+            for (String room : args[1].split(",")) {
+                String[] parameters = room.split(":");
+                if (parameters.length != 3)
+                    throw new IllegalArgumentException("Stanza non valida: " + room);
+                ChatServer chat = server.addRoom(InetAddress.getByName(parameters[0]),
+                        Integer.parseInt(parameters[1]), Integer.parseInt(parameters[2]));
+                System.out.println("Stanza in ascolto su " + InetAddress.getLocalHost().getHostAddress() + ":" + chat.getLocalPort()
+                        + ", gruppo multicast " + chat.getGroupAddress().getHostAddress() + ":" + chat.getGroup_port());
+                exposeMetrics(chat, endpoint);
+            }
+            System.out.println("server in ascolto con " + selector_count + " selector.");
+            Thread.currentThread().join();
         } catch (IOException e) {
             System.err.println("Indirizzo sconosciuto o non valido.");
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Avvia l'endpoint HTTP delle metriche, se configurato tramite chat.metrics.port
+     *
+     * @return L'endpoint avviato, o null se non è configurato
+     * @throws IOException In caso di errore durante l'apertura della porta
+     */
+    private static MetricsEndpoint startMetricsEndpoint() throws IOException {
+        MetricsEndpoint endpoint = MetricsEndpoint.fromConfig();
+        if (endpoint != null)
+            System.out.println("Metriche disponibili su http://" + Config.getString("metrics.address", "127.0.0.1")
+                    + ":" + endpoint.getPort() + "/metrics");
+        return endpoint;
+    }
 
+    /**
+     * Espone le metriche del server tramite JMX, se chat.metrics.jmx è attivo (default), e tramite l'endpoint HTTP
+     *
+     * @param server   Il server di cui esporre le metriche
+     * @param endpoint L'endpoint HTTP, o null se non è stato avviato
+     */
+    private static void exposeMetrics(ChatServer server, MetricsEndpoint endpoint) {
+        ServerMetrics metrics = new ServerMetrics(server);
+        if (Config.getBoolean("metrics.jmx", true)) {
+            try {
+                metrics.register();
+            } catch (JMException e) {
+                e.printStackTrace();
+            }
         }
+        if (endpoint != null)
+            endpoint.add(metrics);
     }
 }
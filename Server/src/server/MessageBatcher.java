@@ -0,0 +1,169 @@
+package server;
+
+import backend.ChatPacket;
+import backend.HostThreads;
+import backend.PacketCodec;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Raggruppa i pacchetti destinati al gruppo multicast in un unico datagram di tipo MESSAGE_BATCH.
+ * I messaggi vengono raccolti per al massimo window_millis millisecondi, oppure finché il datagram
+ * non raggiunge max_bytes; in entrambi i casi il gruppo di messaggi viene inviato, nell'ordine di arrivo.
+ * Un solo messaggio in attesa viene inviato come pacchetto ordinario.
+ * Il timer di invio è condiviso da tutti i MessageBatcher del processo.
+ */
+public class MessageBatcher {
+
+    /**
+     * Destinazione dei datagram prodotti dal MessageBatcher
+     */
+    public interface Sink {
+        /**
+         * @param datagram Il datagram codificato, tra posizione e limite del buffer
+         * @throws IOException In caso di errore durante l'invio
+         */
+        void send(ByteBuffer datagram) throws IOException;
+    }
+
+    /**
+     * Spazio massimo occupato da tipo e numero di messaggi nel corpo di un MESSAGE_BATCH
+     */
+    private static final int BATCH_PREFIX_SIZE = 1 + 5;
+
+    private static final ScheduledExecutorService timer =
+            Executors.newSingleThreadScheduledExecutor(HostThreads.factory("batch-timer"));
+
+    private final Sink sink;
+    private final long window_millis;
+    private final int max_bytes;
+
+    private final ByteBuffer entries;
+    private final ByteBuffer datagram;
+    private int entry_count = 0;
+    private long batch_number = 0;
+
+    /**
+     * @param sink          Destinazione dei datagram
+     * @param window_millis Tempo massimo di attesa di un messaggio prima dell'invio
+     * @param max_bytes     Dimensione massima di un datagram
+     */
+    public MessageBatcher(Sink sink, long window_millis, int max_bytes) {
+        this.sink = sink;
+        this.window_millis = window_millis;
+        this.max_bytes = max_bytes;
+        this.entries = ByteBuffer.allocate(max_bytes);
+        this.datagram = ByteBuffer.allocate(max_bytes);
+    }
+
+    /**
+     * Aggiunge un pacchetto al gruppo in attesa di invio.
+     * Se il pacchetto non entra nello spazio rimasto, il gruppo corrente viene inviato prima di aggiungerlo;
+     * se non entra neanche in un datagram vuoto, viene inviato subito da solo.
+     *
+     * @param packet Il pacchetto da inviare al gruppo
+     * @throws IOException In caso di errore durante l'invio
+     */
+    public synchronized void add(ChatPacket packet) throws IOException {
+        int size = PacketCodec.bodySize(packet);
+        if (PacketCodec.HEADER_SIZE + BATCH_PREFIX_SIZE + entries.position() + size > max_bytes)
+            flush();
+        if (PacketCodec.HEADER_SIZE + BATCH_PREFIX_SIZE + size > max_bytes) {
+            sink.send(PacketCodec.encode(packet));
+            return;
+        }
+        PacketCodec.encodeBody(packet, entries);
+        entryAdded();
+    }
+
+    /**
+     * Aggiunge un MESSAGE già codificato al gruppo in attesa di invio, come add(ChatPacket)
+     *
+     * @param prefix  Tipo, id e username del messaggio già codificati (vedi PacketCodec.encodeMessagePrefix)
+     * @param content Il contenuto codificato, tra posizione e limite del buffer
+     * @throws IOException In caso di errore durante l'invio
+     */
+    public synchronized void add(byte[] prefix, ByteBuffer content) throws IOException {
+        int size = prefix.length + content.remaining();
+        if (PacketCodec.HEADER_SIZE + BATCH_PREFIX_SIZE + entries.position() + size > max_bytes)
+            flush();
+        if (PacketCodec.HEADER_SIZE + BATCH_PREFIX_SIZE + size > max_bytes) {
+            sink.send(PacketCodec.encodeMessage(prefix, content));
+            return;
+        }
+        entries.put(prefix);
+        entries.put(content);
+        entryAdded();
+    }
+
+    /**
+     * Aggiunge un MESSAGE di cui è già codificato l'inizio del corpo, codificando solo il contenuto
+     *
+     * @param prefix  Tipo, id e username del messaggio già codificati (vedi PacketCodec.encodeMessagePrefix)
+     * @param content Il contenuto del messaggio
+     * @throws IOException In caso di errore durante l'invio
+     */
+    public synchronized void add(byte[] prefix, String content) throws IOException {
+        int size = prefix.length + PacketCodec.stringSize(content);
+        if (PacketCodec.HEADER_SIZE + BATCH_PREFIX_SIZE + entries.position() + size > max_bytes)
+            flush();
+        if (PacketCodec.HEADER_SIZE + BATCH_PREFIX_SIZE + size > max_bytes) {
+            sink.send(PacketCodec.encodeMessage(prefix, content));
+            return;
+        }
+        entries.put(prefix);
+        PacketCodec.writeString(entries, content);
+        entryAdded();
+    }
+
+    /**
+     * Conta il messaggio appena aggiunto e, se è il primo del gruppo, programma l'invio allo scadere della finestra
+     */
+    private void entryAdded() {
+        entry_count++;
+        if (entry_count == 1) {
+            long scheduled_batch = batch_number;
+            timer.schedule(() -> flushScheduled(scheduled_batch), window_millis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Invia subito i messaggi in attesa
+     *
+     * @throws IOException In caso di errore durante l'invio
+     */
+    public synchronized void flush() throws IOException {
+        if (entry_count == 0)
+            return;
+        datagram.clear();
+        PacketCodec.writeHeader(datagram);
+        entries.flip();
+        if (entry_count > 1) {
+            datagram.put((byte) ChatPacket.Type.MESSAGE_BATCH.ordinal());
+            PacketCodec.writeVarInt(datagram, entry_count);
+        }
+        datagram.put(entries);
+        datagram.flip();
+        entries.clear();
+        entry_count = 0;
+        batch_number++;
+        sink.send(datagram);
+    }
+
+    /**
+     * Invia il gruppo allo scadere della finestra, se non è già stato inviato perché pieno
+     */
+    private synchronized void flushScheduled(long scheduled_batch) {
+        if (scheduled_batch != batch_number)
+            return;
+        try {
+            flush();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
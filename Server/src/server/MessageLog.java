@@ -0,0 +1,355 @@
+package server;
+
+import backend.Config;
+import backend.HostThreads;
+import backend.PacketCodec;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Storico persistente dei messaggi inoltrati da un ChatServer: un log in sola aggiunta diviso in segmenti
+ * (vedi LogSegment), scritti tramite file mappati in memoria.
+ * <p>
+ * A regime l'aggiunta di un messaggio è una copia nella memoria mappata, senza chiamate di sistema: i file di un
+ * segmento vengono creati già della dimensione massima, e la scrittura su disco avviene periodicamente nel
+ * thread di flush. Si passa a un nuovo segmento quando quello corrente è pieno o più vecchio di roll_millis;
+ * i segmenti più vecchi vengono eliminati quando sono più di max_segments o più vecchi di retention_millis.
+ * Età e conservazione vengono controllate anche dal thread di flush, così da applicarle pure quando non arrivano messaggi.
+ * I messaggi si rileggono per numero di sequenza o per intervallo di tempo, tramite l'indice dei segmenti.
+ * <p>
+ * Configurazione: chat.history.dir (vuoto: storico disattivato), chat.history.segment_size, chat.history.roll,
+ * chat.history.max_segments, chat.history.retention, chat.history.flush (tempi in millisecondi).
+ */
+public class MessageLog implements AutoCloseable {
+
+    /**
+     * Visita dei messaggi letti dal log
+     */
+    public interface Visitor {
+        /**
+         * @param sequence  Numero di sequenza del messaggio
+         * @param timestamp Istante di scrittura, in millisecondi
+         * @param body      Corpo del MESSAGE, tra posizione e limite; valido solo durante la chiamata
+         * @return true per continuare la lettura, false per interromperla
+         */
+        boolean visit(long sequence, long timestamp, ByteBuffer body);
+    }
+
+    /**
+     * Il thread che scrive periodicamente su disco i segmenti, condiviso da tutti i MessageLog del processo
+     */
+    private static final ScheduledExecutorService flusher =
+            Executors.newSingleThreadScheduledExecutor(HostThreads.factory("history-flush"));
+
+    private final Path directory;
+    private final int segment_size;
+    private final long roll_millis;
+    private final int max_segments;
+    private final long retention_millis;
+
+    private final List<LogSegment> segments = new ArrayList<>();
+    private LogSegment active;
+    private long active_created;
+    private boolean dirty = false;
+    private ScheduledFuture<?> flush_task;
+
+    /**
+     * Apre lo storico di un server leggendo i parametri dalla configurazione
+     *
+     * @param name Nome della sottocartella dello storico (es. la porta locale del server)
+     * @return Lo storico, o null se chat.history.dir non è impostato
+     * @throws IOException In caso di errore durante l'apertura dei segmenti
+     */
+    static MessageLog fromConfig(String name) throws IOException {
+        String directory = Config.getString("history.dir", "");
+        if (directory.isEmpty())
+            return null;
+        MessageLog log = new MessageLog(Paths.get(directory, name),
+                Config.getInt("history.segment_size", 16 * 1024 * 1024),
+                Config.getLong("history.roll", TimeUnit.HOURS.toMillis(1)),
+                Config.getInt("history.max_segments", 16),
+                Config.getLong("history.retention", TimeUnit.DAYS.toMillis(7)));
+        log.startFlush(Config.getLong("history.flush", 1000));
+        return log;
+    }
+
+    /**
+     * Apre lo storico nella cartella specificata, creandola se necessario e riprendendo i segmenti esistenti
+     *
+     * @param directory        La cartella dei segmenti
+     * @param segment_size     Dimensione massima del file dei messaggi di un segmento
+     * @param roll_millis      Età massima del segmento corrente prima di passare al successivo, 0 senza limite
+     * @param max_segments     Numero massimo di segmenti conservati
+     * @param retention_millis Età massima dei messaggi conservati, 0 senza limite
+     * @throws IOException In caso di errore durante l'apertura dei segmenti
+     */
+    public MessageLog(Path directory, int segment_size, long roll_millis, int max_segments, long retention_millis) throws IOException {
+        if (segment_size <= LogSegment.RECORD_HEADER_SIZE || max_segments < 1)
+            throw new IllegalArgumentException("Dimensione dei segmenti o numero di segmenti non validi");
+        this.directory = directory;
+        this.segment_size = segment_size;
+        this.roll_millis = roll_millis;
+        this.max_segments = max_segments;
+        this.retention_millis = retention_millis;
+        Files.createDirectories(directory);
+
+        List<Long> bases = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*.log")) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                try {
+                    bases.add(Long.parseLong(name.substring(0, name.length() - ".log".length())));
+                } catch (NumberFormatException e) {
+                    // File estraneo al log
+                }
+            }
+        }
+        bases.sort(null);
+        for (long base : bases)
+            segments.add(LogSegment.open(directory, base, segment_size));
+        if (segments.isEmpty()) {
+            roll(1);
+        } else {
+            active = segments.get(segments.size() - 1);
+            long first = active.getFirstTimestamp();
+            active_created = first != 0 ? first : System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * Avvia la scrittura periodica su disco e il controllo di età e conservazione dei segmenti
+     *
+     * @param interval_millis Intervallo tra due scritture, 0 per non scrivere periodicamente
+     */
+    void startFlush(long interval_millis) {
+        if (interval_millis > 0)
+            flush_task = flusher.scheduleAtFixedRate(this::maintain, interval_millis, interval_millis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Aggiunge un messaggio allo storico
+     *
+     * @param prefix  Tipo, id e username del messaggio già codificati (vedi PacketCodec.encodeMessagePrefix)
+     * @param content Il contenuto codificato, tra posizione e limite; la posizione non viene modificata
+     * @return Il numero di sequenza assegnato al messaggio, -1 se non è stato possibile salvarlo
+     */
+    public synchronized long append(byte[] prefix, ByteBuffer content) {
+        long now = System.currentTimeMillis();
+        if (!prepare(prefix.length + content.remaining(), now))
+            return -1;
+        dirty = true;
+        return active.append(now, prefix, content);
+    }
+
+    /**
+     * Aggiunge un messaggio allo storico, codificandone il contenuto
+     *
+     * @param prefix  Tipo, id e username del messaggio già codificati (vedi PacketCodec.encodeMessagePrefix)
+     * @param content Il contenuto del messaggio
+     * @return Il numero di sequenza assegnato al messaggio, -1 se non è stato possibile salvarlo
+     */
+    public synchronized long append(byte[] prefix, String content) {
+        long now = System.currentTimeMillis();
+        if (!prepare(prefix.length + PacketCodec.stringSize(content), now))
+            return -1;
+        dirty = true;
+        return active.append(now, prefix, content);
+    }
+
+    /**
+     * Passa a un nuovo segmento se quello corrente è pieno o troppo vecchio
+     *
+     * @return false se il messaggio non entra neanche in un segmento vuoto, o se non è stato possibile crearlo
+     */
+    private boolean prepare(int body_size, long now) {
+        if (active == null || active.fits(body_size) && (roll_millis <= 0 || now - active_created < roll_millis || active.getRecordCount() == 0))
+            return active != null;
+        if (LogSegment.RECORD_HEADER_SIZE + body_size > segment_size)
+            return false;
+        try {
+            roll(active.getNextSequence());
+            return true;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    /**
+     * Chiude il segmento corrente, ne crea uno nuovo ed elimina i segmenti oltre i limiti di conservazione.
+     * La scrittura su disco del segmento chiuso avviene nel thread di flush, non in quello che aggiunge il messaggio.
+     *
+     * @param base_sequence Numero di sequenza del primo messaggio del nuovo segmento
+     * @throws IOException In caso di errore durante la creazione del segmento
+     */
+    private void roll(long base_sequence) throws IOException {
+        if (active != null) {
+            LogSegment closed = active;
+            flusher.execute(closed::flush);
+        }
+        active = LogSegment.create(directory, base_sequence, segment_size);
+        active_created = System.currentTimeMillis();
+        segments.add(active);
+        expire(active_created);
+    }
+
+    /**
+     * Elimina i segmenti più vecchi oltre max_segments o retention_millis, conservando sempre quello corrente
+     */
+    private void expire(long now) {
+        long oldest_allowed = retention_millis > 0 ? now - retention_millis : Long.MIN_VALUE;
+        while (segments.size() > 1 && (segments.size() > max_segments || segments.get(0).getLastTimestamp() < oldest_allowed))
+            segments.remove(0).delete();
+    }
+
+    /**
+     * Attività periodica del thread di flush: passa a un nuovo segmento se quello corrente è troppo vecchio,
+     * elimina i segmenti scaduti e scrive su disco il segmento corrente
+     */
+    private void maintain() {
+        synchronized (this) {
+            if (active == null)
+                return;
+            long now = System.currentTimeMillis();
+            try {
+                if (roll_millis > 0 && now - active_created >= roll_millis && active.getRecordCount() > 0)
+                    roll(active.getNextSequence());
+                else
+                    expire(now);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        flush();
+    }
+
+    /**
+     * Legge i messaggi a partire dal numero di sequenza specificato, in ordine.
+     * I messaggi già eliminati dai limiti di conservazione vengono saltati.
+     *
+     * @param from_sequence Numero di sequenza del primo messaggio da leggere
+     * @param max_count     Numero massimo di messaggi da leggere
+     * @param visitor       Destinatario dei messaggi
+     * @return Il numero di messaggi letti
+     */
+    public synchronized int read(long from_sequence, int max_count, Visitor visitor) {
+        int[] count = new int[1];
+        Visitor limited = limit(max_count, visitor, count);
+        for (int i = 0; i < segments.size() && count[0] < max_count; i++) {
+            LogSegment segment = segments.get(i);
+            if (segment.getNextSequence() <= from_sequence)
+                continue;
+            if (!segment.readFrom(from_sequence, limited))
+                break;
+        }
+        return count[0];
+    }
+
+    /**
+     * Legge, in ordine, i messaggi scritti tra i due istanti specificati
+     *
+     * @param from_millis Istante minimo, in millisecondi
+     * @param to_millis   Istante massimo, in millisecondi
+     * @param max_count   Numero massimo di messaggi da leggere
+     * @param visitor     Destinatario dei messaggi
+     * @return Il numero di messaggi letti
+     */
+    public synchronized int readRange(long from_millis, long to_millis, int max_count, Visitor visitor) {
+        int[] count = new int[1];
+        Visitor limited = limit(max_count, visitor, count);
+        for (int i = 0; i < segments.size() && count[0] < max_count; i++) {
+            LogSegment segment = segments.get(i);
+            if (segment.getRecordCount() == 0 || segment.getLastTimestamp() < from_millis)
+                continue;
+            if (!segment.readRange(from_millis, to_millis, limited))
+                break;
+        }
+        return count[0];
+    }
+
+    /**
+     * Cerca il primo messaggio scritto a partire dall'istante specificato
+     *
+     * @param from_millis Istante minimo, in millisecondi
+     * @return Il numero di sequenza del messaggio, o getNextSequence() se non ce ne sono
+     */
+    public synchronized long findSequence(long from_millis) {
+        long[] found = {getNextSequence()};
+        readRange(from_millis, Long.MAX_VALUE, 1, (sequence, timestamp, body) -> {
+            found[0] = sequence;
+            return false;
+        });
+        return found[0];
+    }
+
+    private static Visitor limit(int max_count, Visitor visitor, int[] count) {
+        return (sequence, timestamp, body) -> {
+            if (count[0] >= max_count)
+                return false;
+            count[0]++;
+            return visitor.visit(sequence, timestamp, body) && count[0] < max_count;
+        };
+    }
+
+    /**
+     * Scrive su disco il segmento corrente, se è stato modificato dall'ultima scrittura.
+     * La scrittura avviene fuori dal lock, così che append non attenda la fine della chiamata di sistema.
+     */
+    public void flush() {
+        LogSegment segment;
+        synchronized (this) {
+            if (!dirty || active == null)
+                return;
+            segment = active;
+            dirty = false;
+        }
+        segment.flush();
+    }
+
+    /**
+     * @return Numero di sequenza del messaggio più vecchio conservato
+     */
+    public synchronized long getFirstSequence() {
+        return segments.get(0).base_sequence;
+    }
+
+    /**
+     * @return Numero di sequenza che verrà assegnato al prossimo messaggio
+     */
+    public synchronized long getNextSequence() {
+        return active.getNextSequence();
+    }
+
+    /**
+     * @return Numero di segmenti conservati
+     */
+    public synchronized int getSegmentCount() {
+        return segments.size();
+    }
+
+    /**
+     * Interrompe la scrittura periodica, scrive su disco il segmento corrente e chiude i file
+     */
+    @Override
+    public synchronized void close() {
+        if (flush_task != null)
+            flush_task.cancel(false);
+        if (active != null)
+            active.flush();
+        for (LogSegment segment : segments)
+            segment.close();
+        segments.clear();
+        active = null;
+    }
+}
@@ -0,0 +1,113 @@
+package server;
+
+import backend.Config;
+import backend.HostThreads;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Endpoint HTTP che espone le metriche dei server in formato testuale (formato di esposizione di Prometheus)
+ * all'indirizzo /metrics.
+ * <p>
+ * Configurazione:
+ * chat.metrics.port porta dell'endpoint, 0 per non avviarlo (default);
+ * chat.metrics.address indirizzo su cui restare in ascolto (default 127.0.0.1, solo accessi locali).
+ */
+public class MetricsEndpoint {
+    private static final String TYPES =
+            "# TYPE chat_packets_received_total counter\n" +
+            "# TYPE chat_packets_sent_total counter\n" +
+            "# TYPE chat_decode_failures_total counter\n" +
+            "# TYPE chat_send_dropped_total counter\n" +
+            "# TYPE chat_registrations_total counter\n" +
+            "# TYPE chat_retransmitted_total counter\n" +
+            "# TYPE chat_active_users gauge\n" +
+            "# TYPE chat_users_expired_total counter\n" +
+            "# TYPE chat_compression_bytes_total counter\n" +
+            "# TYPE chat_pipeline_dropped_total counter\n" +
+            "# TYPE chat_pipeline_queued gauge\n" +
+            "# TYPE chat_relay_latency_seconds summary\n" +
+            "# TYPE chat_relay_latency_seconds_max gauge\n";
+
+    private final List<ServerMetrics> servers = new CopyOnWriteArrayList<>();
+    private final HttpServer http;
+    private final ExecutorService executor;
+
+    /**
+     * Avvia l'endpoint
+     *
+     * @param address Indirizzo su cui restare in ascolto
+     * @param port    Porta su cui restare in ascolto
+     * @throws IOException In caso di errore durante l'apertura della porta
+     */
+    public MetricsEndpoint(InetAddress address, int port) throws IOException {
+        http = HttpServer.create(new InetSocketAddress(address, port), 0);
+        executor = Executors.newSingleThreadExecutor(HostThreads.factory("metrics-http"));
+        http.setExecutor(executor);
+        http.createContext("/metrics", this::handle);
+        http.start();
+    }
+
+    /**
+     * Avvia l'endpoint se chat.metrics.port è maggiore di 0
+     *
+     * @return L'endpoint avviato, o null se non è configurato
+     * @throws IOException In caso di errore durante l'apertura della porta
+     */
+    public static MetricsEndpoint fromConfig() throws IOException {
+        int port = Config.getInt("metrics.port", 0);
+        if (port <= 0)
+            return null;
+        return new MetricsEndpoint(InetAddress.getByName(Config.getString("metrics.address", "127.0.0.1")), port);
+    }
+
+    /**
+     * @param metrics Le metriche di un server da includere nelle risposte
+     */
+    public void add(ServerMetrics metrics) {
+        servers.add(metrics);
+    }
+
+    /**
+     * @return La porta su cui è in ascolto l'endpoint
+     */
+    public int getPort() {
+        return http.getAddress().getPort();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            if (!exchange.getRequestMethod().equals("GET")) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+            StringBuilder text = new StringBuilder(TYPES);
+            for (ServerMetrics metrics : servers)
+                metrics.writeText(text);
+            byte[] body = text.toString().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        }
+    }
+
+    /**
+     * Chiude l'endpoint
+     */
+    public void close() {
+        http.stop(0);
+        executor.shutdown();
+    }
+}
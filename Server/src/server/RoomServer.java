@@ -0,0 +1,172 @@
+package server;
+
+import backend.ChannelTransport;
+import backend.ChatHost;
+import backend.Datagram;
+import backend.HostThreads;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Server che ospita più chatroom nello stesso processo.
+ * Ogni stanza ha la propria porta di registrazione, il proprio gruppo multicast e la propria lista utenti,
+ * ma non ha thread dedicati: i canali di tutte le stanze sono serviti da un numero fisso di Selector.
+ */
+public class RoomServer implements Closeable {
+    /**
+     * Numero massimo di datagram elaborati per stanza a ogni risveglio del Selector,
+     * così che una stanza molto attiva non blocchi le altre
+     */
+    private static final int MAX_READS_PER_WAKEUP = 64;
+
+    private final EventLoop[] event_loops;
+    private final List<ChatServer> rooms = Collections.synchronizedList(new ArrayList<>());
+    private int next_loop = 0;
+
+    /**
+     * Istanzia il server e avvia i thread dei Selector
+     *
+     * @param selector_count Numero di Selector (e quindi di thread) tra cui distribuire le stanze
+     * @throws IOException In caso di errore durante l'apertura dei Selector
+     */
+    public RoomServer(int selector_count) throws IOException {
+        if (selector_count < 1)
+            throw new IllegalArgumentException("Serve almeno un selector");
+        event_loops = new EventLoop[selector_count];
+        ThreadFactory factory = HostThreads.factory("room-selector");
+        for (int i = 0; i < selector_count; i++) {
+            event_loops[i] = new EventLoop(Selector.open());
+            factory.newThread(event_loops[i]).start();
+        }
+    }
+
+    /**
+     * Crea una nuova stanza e la assegna a uno dei Selector
+     *
+     * @param group_address L'indirizzo del gruppo multicast della stanza
+     * @param group_port    La porta del gruppo multicast della stanza
+     * @param local_port    La porta su cui la stanza riceve registrazioni e messaggi
+     * @return Il server della stanza
+     * @throws IOException In caso di errore durante l'apertura del canale
+     */
+    public ChatServer addRoom(InetAddress group_address, int group_port, int local_port) throws IOException {
+        ChannelTransport transport = new ChannelTransport(local_port);
+        transport.getChannel().configureBlocking(false);
+        ChatServer room = new ChatServer(transport, group_address, group_port);
+        EventLoop loop;
+        synchronized (this) {
+            loop = event_loops[next_loop];
+            next_loop = (next_loop + 1) % event_loops.length;
+        }
+        loop.register(transport, room);
+        rooms.add(room);
+        return room;
+    }
+
+    /**
+     * @return Le stanze ospitate dal server
+     */
+    public List<ChatServer> getRooms() {
+        synchronized (rooms) {
+            return new ArrayList<>(rooms);
+        }
+    }
+
+    /**
+     * Chiude tutte le stanze e i Selector
+     */
+    @Override
+    public void close() {
+        for (ChatServer room : getRooms())
+            room.close();
+        for (EventLoop loop : event_loops)
+            loop.close();
+    }
+
+    /**
+     * Stanza associata a una chiave del Selector
+     */
+    private static class Room {
+        final ChannelTransport transport;
+        final ChatServer server;
+
+        Room(ChannelTransport transport, ChatServer server) {
+            this.transport = transport;
+            this.server = server;
+        }
+    }
+
+    /**
+     * Ciclo di un Selector: attende che uno dei canali registrati sia leggibile e passa i datagram ricevuti
+     * al server della relativa stanza. Il Datagram di ricezione è unico per Selector e viene riutilizzato.
+     */
+    private static class EventLoop implements Runnable {
+        private final Selector selector;
+        private final ConcurrentLinkedQueue<Room> pending = new ConcurrentLinkedQueue<>();
+        private final Datagram datagram = new Datagram(ByteBuffer.allocateDirect(ChatHost.MAX_DATAGRAM_SIZE));
+
+        EventLoop(Selector selector) {
+            this.selector = selector;
+        }
+
+        /**
+         * La registrazione vera e propria avviene nel thread del Selector, al risveglio successivo
+         */
+        void register(ChannelTransport transport, ChatServer server) {
+            pending.add(new Room(transport, server));
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (selector.isOpen()) {
+                    Room room;
+                    while ((room = pending.poll()) != null)
+                        room.transport.getChannel().register(selector, SelectionKey.OP_READ, room);
+                    selector.select(this::read);
+                }
+            } catch (IOException | ClosedSelectorException e) {
+                if (selector.isOpen())
+                    e.printStackTrace();
+            }
+        }
+
+        private void read(SelectionKey key) {
+            Room room = (Room) key.attachment();
+            try {
+                for (int i = 0; i < MAX_READS_PER_WAKEUP && room.transport.receive(datagram); i++) {
+                    try {
+                        room.server.processMessage(datagram);
+                    } catch (RuntimeException e) {
+                        // Un datagram malformato non deve interrompere il selector delle altre stanze
+                        e.printStackTrace();
+                    }
+                }
+            } catch (IOException e) {
+                key.cancel();
+                if (!room.transport.isClosed())
+                    e.printStackTrace();
+            }
+        }
+
+        void close() {
+            try {
+                selector.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
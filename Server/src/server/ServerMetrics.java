@@ -0,0 +1,186 @@
+package server;
+
+import backend.ChatPacket;
+import backend.LatencyHistogram;
+import backend.Metrics;
+import backend.ProcessingPipeline;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Vista sulle metriche di un ChatServer, registrabile come MBean e convertibile nel formato testuale
+ * servito da MetricsEndpoint. I valori vengono letti da Metrics al momento della richiesta.
+ */
+public class ServerMetrics implements ServerMetricsMXBean {
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+    private final ChatServer server;
+    private final Metrics metrics;
+
+    /**
+     * @param server Il server di cui esporre le metriche
+     */
+    public ServerMetrics(ChatServer server) {
+        this.server = server;
+        this.metrics = server.getMetrics();
+    }
+
+    /**
+     * Registra le metriche nel platform MBeanServer, con nome server:type=ChatServer,port=porta locale del server
+     *
+     * @throws JMException In caso di errore durante la registrazione
+     */
+    public void register() throws JMException {
+        ManagementFactory.getPlatformMBeanServer().registerMBean(this,
+                new ObjectName("server:type=ChatServer,port=" + server.getLocalPort()));
+    }
+
+    @Override
+    public Map<String, Long> getPacketsReceived() {
+        Map<String, Long> counts = new LinkedHashMap<>();
+        for (ChatPacket.Type type : ChatPacket.Type.values())
+            counts.put(type.name(), metrics.getReceived(type));
+        return counts;
+    }
+
+    @Override
+    public Map<String, Long> getPacketsSent() {
+        Map<String, Long> counts = new LinkedHashMap<>();
+        for (ChatPacket.Type type : ChatPacket.Type.values())
+            counts.put(type.name(), metrics.getSent(type));
+        return counts;
+    }
+
+    @Override
+    public long getDecodeFailures() {
+        return metrics.getDecodeFailures();
+    }
+
+    @Override
+    public long getSendDropped() {
+        return metrics.getSendDropped();
+    }
+
+    @Override
+    public long getRegistrationsAccepted() {
+        return metrics.getRegistrationsAccepted();
+    }
+
+    @Override
+    public long getRegistrationsDenied() {
+        return metrics.getRegistrationsDenied();
+    }
+
+    @Override
+    public long getRetransmitted() {
+        return metrics.getRetransmitted();
+    }
+
+    @Override
+    public long getCompressionInputBytes() {
+        return metrics.getCompressionInputBytes();
+    }
+
+    @Override
+    public long getCompressionOutputBytes() {
+        return metrics.getCompressionOutputBytes();
+    }
+
+    @Override
+    public int getActiveUsers() {
+        return server.getUserCount();
+    }
+
+    @Override
+    public long getUsersExpired() {
+        return metrics.getUsersExpired();
+    }
+
+    @Override
+    public long getRelayCount() {
+        return metrics.getRelayLatency().getCount();
+    }
+
+    @Override
+    public double getRelayLatencyMeanMicros() {
+        return metrics.getRelayLatency().getMean() / 1e3;
+    }
+
+    @Override
+    public double getRelayLatencyP50Micros() {
+        return metrics.getRelayLatency().getValueAtPercentile(50) / 1e3;
+    }
+
+    @Override
+    public double getRelayLatencyP99Micros() {
+        return metrics.getRelayLatency().getValueAtPercentile(99) / 1e3;
+    }
+
+    @Override
+    public double getRelayLatencyP999Micros() {
+        return metrics.getRelayLatency().getValueAtPercentile(99.9) / 1e3;
+    }
+
+    @Override
+    public double getRelayLatencyMaxMicros() {
+        return metrics.getRelayLatency().getMax() / 1e3;
+    }
+
+    @Override
+    public long getPipelineDropped() {
+        ProcessingPipeline pipeline = server.getPipeline();
+        return pipeline == null ? 0 : pipeline.getDroppedCount();
+    }
+
+    @Override
+    public int getPipelineQueued() {
+        ProcessingPipeline pipeline = server.getPipeline();
+        return pipeline == null ? 0 : pipeline.getQueuedCount();
+    }
+
+    /**
+     * Scrive le metriche nel formato testuale di Prometheus, con l'etichetta port uguale alla porta locale del server.
+     * Le righe # TYPE vanno scritte una sola volta per tutti i server, quindi sono a carico del chiamante
+     * (vedi MetricsEndpoint).
+     *
+     * @param out Il buffer di destinazione
+     */
+    void writeText(StringBuilder out) {
+        String port = "port=\"" + server.getLocalPort() + "\"";
+        for (ChatPacket.Type type : ChatPacket.Type.values()) {
+            sample(out, "chat_packets_received_total", port + ",type=\"" + type.name() + "\"", metrics.getReceived(type));
+            sample(out, "chat_packets_sent_total", port + ",type=\"" + type.name() + "\"", metrics.getSent(type));
+        }
+        sample(out, "chat_decode_failures_total", port, metrics.getDecodeFailures());
+        sample(out, "chat_send_dropped_total", port, metrics.getSendDropped());
+        sample(out, "chat_registrations_total", port + ",result=\"accepted\"", metrics.getRegistrationsAccepted());
+        sample(out, "chat_registrations_total", port + ",result=\"denied\"", metrics.getRegistrationsDenied());
+        sample(out, "chat_retransmitted_total", port, metrics.getRetransmitted());
+        sample(out, "chat_active_users", port, server.getUserCount());
+        sample(out, "chat_users_expired_total", port, metrics.getUsersExpired());
+        sample(out, "chat_compression_bytes_total", port + ",stage=\"input\"", metrics.getCompressionInputBytes());
+        sample(out, "chat_compression_bytes_total", port + ",stage=\"output\"", metrics.getCompressionOutputBytes());
+        sample(out, "chat_pipeline_dropped_total", port, getPipelineDropped());
+        sample(out, "chat_pipeline_queued", port, getPipelineQueued());
+
+        LatencyHistogram latency = metrics.getRelayLatency();
+        for (double quantile : QUANTILES) {
+            sample(out, "chat_relay_latency_seconds", port + ",quantile=\"" + quantile + "\"",
+                    latency.getValueAtPercentile(quantile * 100) / 1e9);
+        }
+        sample(out, "chat_relay_latency_seconds_max", port, latency.getMax() / 1e9);
+        sample(out, "chat_relay_latency_seconds_count", port, latency.getCount());
+    }
+
+    private static void sample(StringBuilder out, String name, String labels, long value) {
+        out.append(name).append('{').append(labels).append("} ").append(value).append('\n');
+    }
+
+    private static void sample(StringBuilder out, String name, String labels, double value) {
+        out.append(name).append('{').append(labels).append("} ").append(value).append('\n');
+    }
+}
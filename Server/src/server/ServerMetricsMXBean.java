@@ -0,0 +1,72 @@
+package server;
+
+import java.util.Map;
+
+/**
+ * Metriche di un ChatServer esposte tramite JMX.
+ * Le latenze sono in microsecondi e misurano il tempo tra la ricezione di un messaggio e il suo inoltro al gruppo.
+ */
+public interface ServerMetricsMXBean {
+
+    /**
+     * @return Pacchetti ricevuti, per tipo
+     */
+    Map<String, Long> getPacketsReceived();
+
+    /**
+     * @return Pacchetti inviati, per tipo
+     */
+    Map<String, Long> getPacketsSent();
+
+    long getDecodeFailures();
+
+    /**
+     * @return Datagram scartati in invio perché il buffer del socket era pieno
+     */
+    long getSendDropped();
+
+    long getRegistrationsAccepted();
+
+    long getRegistrationsDenied();
+
+    long getRetransmitted();
+
+    int getActiveUsers();
+
+    /**
+     * @return Utenti rimossi per inattività
+     */
+    long getUsersExpired();
+
+    /**
+     * @return Byte dei datagram compressi, prima della compressione
+     */
+    long getCompressionInputBytes();
+
+    /**
+     * @return Byte dei datagram compressi, dopo la compressione
+     */
+    long getCompressionOutputBytes();
+
+    long getRelayCount();
+
+    double getRelayLatencyMeanMicros();
+
+    double getRelayLatencyP50Micros();
+
+    double getRelayLatencyP99Micros();
+
+    double getRelayLatencyP999Micros();
+
+    double getRelayLatencyMaxMicros();
+
+    /**
+     * @return Datagram scartati dalla ProcessingPipeline per coda piena, 0 se la pipeline non è attiva
+     */
+    long getPipelineDropped();
+
+    /**
+     * @return Datagram in coda nella ProcessingPipeline, 0 se la pipeline non è attiva
+     */
+    int getPipelineQueued();
+}
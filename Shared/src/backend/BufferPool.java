@@ -0,0 +1,189 @@
+package backend;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Insieme limitato di buffer di dimensione fissa riutilizzabili.
+ * I buffer vengono allocati solo quando il pool è vuoto e restituiti al pool dopo l'uso.
+ * <p>
+ * Ogni thread conserva alcuni buffer restituiti in una cache locale, da cui li riprende senza sincronizzazione;
+ * solo quando la cache è vuota (o piena, in restituzione) si usa la coda condivisa. Con i virtual thread la cache
+ * locale è disattivata, perché andrebbe persa con ogni thread.
+ * I pool condivisi restituiti da shared() sono usati da tutti gli host del processo.
+ * <p>
+ * Con chat.pool.debug=true il pool registra il punto di acquisizione di ogni buffer e segnala su System.err
+ * i buffer raccolti dal garbage collector senza essere stati restituiti, e quelli restituiti due volte.
+ */
+public class BufferPool {
+    private static final int LOCAL_CACHE_SIZE = 4;
+    private static final boolean debug = Config.getBoolean("pool.debug", false);
+
+    private static final BufferPool shared_heap = new BufferPool(ChatHost.MAX_DATAGRAM_SIZE, 1024, false);
+    private static final BufferPool shared_direct = new BufferPool(ChatHost.MAX_DATAGRAM_SIZE, 1024, true);
+
+    private final int buffer_size;
+    private final boolean direct;
+    private final ArrayBlockingQueue<ByteBuffer> free_buffers;
+    private final ThreadLocal<ArrayDeque<ByteBuffer>> local_buffers;
+    private final LongAdder allocated_count = new LongAdder();
+
+    private final ReferenceQueue<ByteBuffer> collected = new ReferenceQueue<>();
+    private final ConcurrentHashMap<Integer, List<Acquired>> acquired = new ConcurrentHashMap<>();
+    private final AtomicInteger outstanding_count = new AtomicInteger();
+
+    /**
+     * @param buffer_size Dimensione di ogni buffer
+     * @param capacity    Numero massimo di buffer conservati nel pool
+     * @param direct      true per allocare i buffer fuori dallo heap
+     */
+    public BufferPool(int buffer_size, int capacity, boolean direct) {
+        this.buffer_size = buffer_size;
+        this.direct = direct;
+        this.free_buffers = new ArrayBlockingQueue<>(capacity);
+        this.local_buffers = HostThreads.isVirtual() ? null : ThreadLocal.withInitial(() -> new ArrayDeque<>(LOCAL_CACHE_SIZE));
+    }
+
+    /**
+     * @param direct true per il pool di buffer fuori dallo heap
+     * @return Il pool di buffer di dimensione ChatHost.MAX_DATAGRAM_SIZE condiviso da tutto il processo
+     */
+    public static BufferPool shared(boolean direct) {
+        return direct ? shared_direct : shared_heap;
+    }
+
+    /**
+     * @return Un buffer vuoto preso dal pool, o allocato se il pool è vuoto
+     */
+    public ByteBuffer acquire() {
+        ByteBuffer buffer = local_buffers != null ? local_buffers.get().pollLast() : null;
+        if (buffer == null)
+            buffer = free_buffers.poll();
+        if (buffer == null) {
+            buffer = direct ? ByteBuffer.allocateDirect(buffer_size) : ByteBuffer.allocate(buffer_size);
+            allocated_count.increment();
+        }
+        buffer.clear();
+        if (debug)
+            track(buffer);
+        return buffer;
+    }
+
+    /**
+     * Restituisce un buffer al pool. Se il pool è pieno il buffer viene scartato.
+     * Dopo la restituzione il buffer non va più usato.
+     *
+     * @param buffer Il buffer da restituire
+     */
+    public void release(ByteBuffer buffer) {
+        if (buffer.capacity() != buffer_size || buffer.isDirect() != direct)
+            return;
+        if (debug && !untrack(buffer))
+            return;
+        if (local_buffers != null) {
+            ArrayDeque<ByteBuffer> local = local_buffers.get();
+            if (local.size() < LOCAL_CACHE_SIZE) {
+                local.addLast(buffer);
+                return;
+            }
+        }
+        free_buffers.offer(buffer);
+    }
+
+    /**
+     * @return Dimensione dei buffer del pool
+     */
+    public int getBufferSize() {
+        return buffer_size;
+    }
+
+    /**
+     * @return Numero di buffer allocati dal pool dalla sua creazione
+     */
+    public long getAllocatedCount() {
+        return allocated_count.sum();
+    }
+
+    /**
+     * @return Numero di buffer acquisiti e non ancora restituiti, -1 se chat.pool.debug non è attivo
+     */
+    public int getOutstandingCount() {
+        return debug ? outstanding_count.get() : -1;
+    }
+
+    /**
+     * Registra l'acquisizione di un buffer e segnala i buffer persi dall'ultima acquisizione
+     */
+    private void track(ByteBuffer buffer) {
+        reportLeaks();
+        Acquired record = new Acquired(buffer, collected);
+        acquired.compute(record.key, (key, records) -> {
+            if (records == null)
+                records = new ArrayList<>(1);
+            records.add(record);
+            return records;
+        });
+        outstanding_count.incrementAndGet();
+    }
+
+    /**
+     * Elimina la registrazione di un buffer restituito
+     *
+     * @return false se il buffer non risulta acquisito dal pool (es. restituito due volte)
+     */
+    private boolean untrack(ByteBuffer buffer) {
+        boolean[] found = new boolean[1];
+        acquired.computeIfPresent(System.identityHashCode(buffer), (key, records) -> {
+            found[0] = records.removeIf(record -> record.get() == buffer);
+            return records.isEmpty() ? null : records;
+        });
+        if (!found[0]) {
+            new IllegalStateException("BufferPool: buffer restituito ma non acquisito dal pool").printStackTrace();
+            return false;
+        }
+        outstanding_count.decrementAndGet();
+        return true;
+    }
+
+    /**
+     * Segnala i buffer raccolti dal garbage collector senza essere stati restituiti al pool
+     */
+    private void reportLeaks() {
+        Object reference;
+        while ((reference = collected.poll()) != null) {
+            Acquired record = (Acquired) reference;
+            boolean[] leaked = new boolean[1];
+            acquired.computeIfPresent(record.key, (key, records) -> {
+                leaked[0] = records.remove(record);
+                return records.isEmpty() ? null : records;
+            });
+            if (leaked[0]) {
+                outstanding_count.decrementAndGet();
+                System.err.println("BufferPool: buffer non restituito al pool, acquisito in:");
+                record.acquired_at.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Acquisizione di un buffer registrata in modalità debug.
+     * Il riferimento è debole, così che un buffer perso possa essere raccolto e segnalato.
+     */
+    private static final class Acquired extends WeakReference<ByteBuffer> {
+        final int key;
+        final Throwable acquired_at = new Throwable("Acquisizione del buffer");
+
+        Acquired(ByteBuffer buffer, ReferenceQueue<ByteBuffer> queue) {
+            super(buffer, queue);
+            this.key = System.identityHashCode(buffer);
+        }
+    }
+}
@@ -0,0 +1,135 @@
+package backend;
+
+import java.io.IOException;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.MembershipKey;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+
+/**
+ * Trasporto basato su DatagramChannel.
+ * L'adesione ai gruppi multicast avviene tramite MembershipKey e i pacchetti vengono ricevuti direttamente
+ * nei buffer dei Datagram, senza copie né allocazioni per pacchetto.
+ */
+public class ChannelTransport implements Transport {
+    private final DatagramChannel channel;
+    private final List<MembershipKey> memberships = new ArrayList<>();
+    private NetworkInterface network_interface;
+
+    private InetSocketAddress last_destination;
+    private volatile Metrics metrics;
+
+    /**
+     * @param port La porta locale, 0 per una qualunque porta disponibile
+     * @throws IOException In caso di errore durante l'apertura del canale
+     */
+    public ChannelTransport(int port) throws IOException {
+        channel = DatagramChannel.open(StandardProtocolFamily.INET);
+        channel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+        channel.bind(new InetSocketAddress(port));
+    }
+
+    /**
+     * @return Il canale sottostante, ad esempio per registrarlo presso un Selector
+     */
+    public DatagramChannel getChannel() {
+        return channel;
+    }
+
+    @Override
+    public boolean receive(Datagram datagram) throws IOException {
+        ByteBuffer buffer = datagram.buffer();
+        buffer.clear();
+        InetSocketAddress source = (InetSocketAddress) channel.receive(buffer);
+        if (source == null)
+            return false;
+        datagram.received(source.getAddress(), source.getPort(), buffer.position());
+        return true;
+    }
+
+    /**
+     * In modalità non bloccante, se il buffer di invio del socket è pieno il datagram viene scartato
+     * e contato in Metrics: per un trasporto UDP è preferibile perderlo che bloccare il Selector.
+     */
+    @Override
+    public void send(ByteBuffer data, InetAddress address, int port) throws IOException {
+        InetSocketAddress destination = last_destination;
+        if (destination == null || destination.getPort() != port || !destination.getAddress().equals(address)) {
+            destination = new InetSocketAddress(address, port);
+            last_destination = destination;
+        }
+        if (channel.send(data, destination) == 0) {
+            Metrics current = metrics;
+            if (current != null)
+                current.sendDropped();
+        }
+    }
+
+    @Override
+    public void setMetrics(Metrics metrics) {
+        this.metrics = metrics;
+    }
+
+    @Override
+    public synchronized void joinGroup(InetAddress group) throws IOException {
+        memberships.add(channel.join(group, getNetworkInterface()));
+    }
+
+    @Override
+    public synchronized void setInterface(InetAddress address) throws IOException {
+        NetworkInterface selected = NetworkInterface.getByInetAddress(address);
+        if (selected == null)
+            throw new SocketException("Nessuna interfaccia di rete con indirizzo " + address.getHostAddress());
+        channel.setOption(StandardSocketOptions.IP_MULTICAST_IF, selected);
+        network_interface = selected;
+    }
+
+    /**
+     * @return L'interfaccia impostata con setInterface, o in alternativa la prima interfaccia attiva che supporta il multicast
+     * @throws IOException Se non esiste nessuna interfaccia utilizzabile
+     */
+    private NetworkInterface getNetworkInterface() throws IOException {
+        if (network_interface != null)
+            return network_interface;
+        Enumeration<NetworkInterface> interfaces = NetworkInterface.getNetworkInterfaces();
+        NetworkInterface loopback = null;
+        while (interfaces.hasMoreElements()) {
+            NetworkInterface candidate = interfaces.nextElement();
+            if (!candidate.isUp() || !candidate.supportsMulticast())
+                continue;
+            if (!candidate.isLoopback())
+                return candidate;
+            loopback = candidate;
+        }
+        if (loopback == null)
+            throw new SocketException("Nessuna interfaccia di rete supporta il multicast");
+        return loopback;
+    }
+
+    @Override
+    public boolean usesDirectBuffers() {
+        return true;
+    }
+
+    @Override
+    public int getLocalPort() {
+        return channel.socket().getLocalPort();
+    }
+
+    @Override
+    public boolean isClosed() {
+        return !channel.isOpen();
+    }
+
+    @Override
+    public void close() {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
@@ -1,28 +1,45 @@
 package backend;
 
+import java.io.Closeable;
 import java.io.IOException;
-import java.net.DatagramPacket;
 import java.net.InetAddress;
-import java.net.MulticastSocket;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
 
 /**
  * Classe astratta che definisce gli elementi in comune di ChatClient e ChatServer.
+ * La ricezione e l'invio dei datagram sono delegati a un Transport, scelto tramite configurazione.
+ * I datagram più grandi di MAX_DATAGRAM_SIZE vengono inviati in FRAGMENT e ricomposti da chi li riceve;
+ * se chat.compress è attivo i datagram vengono compressi prima dell'invio (vedi PacketCompressor).
  */
-public abstract class ChatHost extends MulticastSocket {
+public abstract class ChatHost implements Closeable {
+    /**
+     * Dimensione massima di un datagram ricevuto
+     */
+    public static final int MAX_DATAGRAM_SIZE = 1024;
+
     protected InetAddress group_address;
+    protected final Transport transport;
+    protected final Metrics metrics = new Metrics();
+    protected final Fragmenter fragmenter = new Fragmenter();
+    private final Reassembler reassembler = new Reassembler();
+
+    private final BufferPool receive_pool;
+    private Datagram receive_datagram;
 
     private Receiver receiver;
+    private ProcessingPipeline pipeline;
     protected Thread receiverThread;
 
     /**
      * @return
      */
-    protected abstract DatagramPacket receiveMessage() throws IOException;
+    protected abstract Datagram receiveMessage() throws IOException;
 
     /**
      * @param received_message
      */
-    protected abstract void processMessage(DatagramPacket received_message);
+    protected abstract void processMessage(Datagram received_message);
 
     /**
      * @param port
@@ -30,8 +47,7 @@ public abstract class ChatHost extends MulticastSocket {
      * @throws IOException
      */
     public ChatHost(int port, InetAddress group) throws IOException {
-        super(port);
-        this.group_address = group;
+        this(Transport.open(port), group);
     }
 
     /**
@@ -39,7 +55,7 @@ public abstract class ChatHost extends MulticastSocket {
      * @throws IOException
      */
     public ChatHost(int listening_port) throws IOException {
-        super(listening_port);
+        this(Transport.open(listening_port), null);
     }
 
     /**
@@ -47,18 +63,86 @@ public abstract class ChatHost extends MulticastSocket {
      * @throws IOException
      */
     public ChatHost(InetAddress group_address) throws IOException {
+        this(Transport.open(0), group_address);
+    }
+
+    /**
+     * @param transport     Il trasporto da usare per ricevere e inviare datagram
+     * @param group_address L'indirizzo del gruppo multicast
+     */
+    protected ChatHost(Transport transport, InetAddress group_address) {
+        this.transport = transport;
         this.group_address = group_address;
+        this.receive_pool = BufferPool.shared(transport.usesDirectBuffers());
+        transport.setMetrics(metrics);
     }
 
 
     /**
      * Crea un'istanza della classe backend.backend.Receiver e lo fa partire in un nuovo thread.
+     * Se chat.pipeline.workers è maggiore di 0, i datagram vengono elaborati da una ProcessingPipeline.
+     * Il tipo di thread dipende dalla configurazione di HostThreads.
      */
     protected void startReceiver() {
-        receiver = new Receiver(this);
-        receiverThread = new Thread(receiver);
-        receiverThread.setDaemon(true);
-        receiverThread.start();
+        pipeline = ProcessingPipeline.fromConfig(this);
+        if (pipeline != null)
+            pipeline.start();
+        receiver = new Receiver(this, pipeline);
+        receiverThread = HostThreads.start("receiver", receiver);
+    }
+
+    /**
+     * Riceve un datagram dal trasporto.
+     * Il Datagram restituito viene riutilizzato a ogni chiamata, quindi va elaborato prima della ricezione successiva.
+     *
+     * @return Il datagram ricevuto
+     * @throws IOException In caso di errore o di trasporto chiuso
+     */
+    protected Datagram receive() throws IOException {
+        if (receive_datagram == null)
+            receive_datagram = new Datagram(receive_pool.acquire());
+        while (!transport.receive(receive_datagram)) {
+            Thread.onSpinWait();
+        }
+        return receive_datagram;
+    }
+
+    /**
+     * Restituisce al pool il buffer di ricezione, quando il Receiver thread termina
+     */
+    void releaseReceiveBuffer() {
+        if (receive_datagram != null) {
+            receive_pool.release(receive_datagram.buffer());
+            receive_datagram = null;
+        }
+    }
+
+    /**
+     * @return La pipeline di elaborazione, o null se i datagram vengono elaborati dal Receiver thread
+     */
+    public ProcessingPipeline getPipeline() {
+        return pipeline;
+    }
+
+    /**
+     * @return I contatori dei pacchetti ricevuti e inviati dall'host
+     */
+    public Metrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * @return La tabella dei datagram in ricomposizione
+     */
+    public Reassembler getReassembler() {
+        return reassembler;
+    }
+
+    /**
+     * @return Il pool da cui prendere i buffer di ricezione, condiviso con gli altri host del processo
+     */
+    protected BufferPool getReceivePool() {
+        return receive_pool;
     }
 
     /**
@@ -72,10 +156,125 @@ public abstract class ChatHost extends MulticastSocket {
      * @throws IOException In caso di errore durante l'invio del messaggio
      */
     void sendMessage(String message_content, int id, InetAddress receiver_address, int receiver_port) throws IOException {
-        ChatPacket message = new ChatPacket(ChatPacket.Type.MESSAGE, id, message_content);
-        byte[] buffer = ChatPacket.serialize(message);
-        DatagramPacket packet = new DatagramPacket(buffer, buffer.length, receiver_address, receiver_port);
-        send(packet);
+        sendPacket(new ChatPacket(ChatPacket.Type.MESSAGE, id, message_content), receiver_address, receiver_port);
+    }
+
+    /**
+     * Codifica un pacchetto e lo invia al destinatario specificato, contandolo in metrics
+     *
+     * @param message          Il pacchetto da inviare
+     * @param receiver_address Indirizzo destinatario
+     * @param receiver_port    Porta destinatario
+     * @throws IOException In caso di errore durante la codifica o l'invio del messaggio
+     */
+    protected void sendPacket(ChatPacket message, InetAddress receiver_address, int receiver_port) throws IOException {
+        metrics.sent(message.message_type);
+        sendDatagram(ChatPacket.encode(message), receiver_address, receiver_port);
+    }
+
+    /**
+     * Invia un datagram già codificato, comprimendolo se conviene e dividendolo in FRAGMENT se supera MAX_DATAGRAM_SIZE
+     *
+     * @param datagram         Il datagram da inviare, tra posizione e limite del buffer
+     * @param receiver_address Indirizzo destinatario
+     * @param receiver_port    Porta destinatario
+     * @throws IOException In caso di errore durante l'invio, o se il datagram supera chat.fragment.max_size
+     */
+    protected void sendDatagram(ByteBuffer datagram, InetAddress receiver_address, int receiver_port) throws IOException {
+        datagram = compress(datagram);
+        if (datagram.remaining() <= MAX_DATAGRAM_SIZE) {
+            transport.send(datagram, receiver_address, receiver_port);
+            return;
+        }
+        int count = fragmenter.fragment(datagram, fragment -> transport.send(fragment, receiver_address, receiver_port));
+        metrics.sent(ChatPacket.Type.FRAGMENT, count);
+    }
+
+    /**
+     * Comprime un datagram tramite PacketCompressor, contando in metrics i byte prima e dopo la compressione
+     *
+     * @param datagram Il datagram codificato, tra posizione e limite
+     * @return Il datagram compresso, oppure datagram stesso se non è stato compresso
+     */
+    protected ByteBuffer compress(ByteBuffer datagram) {
+        ByteBuffer compressed = PacketCompressor.compress(datagram);
+        if (compressed != datagram)
+            metrics.compressed(datagram.remaining(), compressed.remaining());
+        return compressed;
+    }
+
+    /**
+     * Decomprime il datagram ricevuto se ha il flag FLAG_COMPRESSED. Chiamato da processMessage prima della decodifica.
+     *
+     * @param received_packet Il datagram ricevuto
+     * @return Il datagram decompresso, il datagram stesso se non era compresso, o null se il contenuto non è valido
+     */
+    protected Datagram decompress(Datagram received_packet) {
+        try {
+            return PacketCompressor.decompress(received_packet);
+        } catch (ProtocolException e) {
+            metrics.decodeFailed();
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * Se il datagram ricevuto è un FRAGMENT lo passa al Reassembler. Chiamato all'inizio di processMessage.
+     *
+     * @param received_packet Il datagram ricevuto
+     * @return Il datagram stesso se non è un FRAGMENT, il datagram ricomposto se era l'ultimo frammento mancante,
+     * null se mancano ancora dei frammenti o se il frammento non è valido
+     */
+    protected Datagram reassemble(Datagram received_packet) {
+        if (!PacketCodec.isFragment(received_packet.getData()))
+            return received_packet;
+        metrics.received(ChatPacket.Type.FRAGMENT);
+        try {
+            return reassembler.add(received_packet);
+        } catch (ProtocolException e) {
+            metrics.decodeFailed();
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * @param group Il gruppo multicast a cui unirsi
+     * @throws IOException In caso di errore durante l'adesione al gruppo
+     */
+    public void joinGroup(InetAddress group) throws IOException {
+        transport.joinGroup(group);
+    }
+
+    /**
+     * @param address Indirizzo dell'interfaccia di rete da usare per il multicast
+     * @throws IOException In caso di indirizzo non valido
+     */
+    public void setInterface(InetAddress address) throws IOException {
+        transport.setInterface(address);
+    }
+
+    /**
+     * @return La porta locale in ascolto
+     */
+    public int getLocalPort() {
+        return transport.getLocalPort();
+    }
+
+    /**
+     * @return true se l'host è stato chiuso
+     */
+    public boolean isClosed() {
+        return transport.isClosed();
+    }
+
+    /**
+     * Chiude il trasporto, interrompendo il Receiver thread
+     */
+    @Override
+    public void close() {
+        transport.close();
     }
 
 }
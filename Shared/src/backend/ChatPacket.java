@@ -1,22 +1,116 @@
 package backend;
 
 import java.io.*;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.util.List;
 
 /**
  * Classe che definisce i messaggi inviati nella chatroom
  */
 public class ChatPacket implements Serializable {
+    /**
+     * Valore calcolato sulla versione originale della classe, per restare compatibili col formato precedente
+     */
+    private static final long serialVersionUID = -760112486467401194L;
 
     /**
      * Il tipo di messaggio
      */
-    public enum Type {MESSAGE, REGISTRATION_REQUEST, REGISTRATION_ACCEPTED, REGISTRATION_DENIED, SERVER_MESSAGE, DISCONNECT_MESSAGE}
+    public enum Type {MESSAGE, REGISTRATION_REQUEST, REGISTRATION_ACCEPTED, REGISTRATION_DENIED, SERVER_MESSAGE, DISCONNECT_MESSAGE, MESSAGE_BATCH, NACK, HEARTBEAT, FRAGMENT, HISTORY}
+
+    /**
+     * Se true i pacchetti vengono codificati con la serializzazione Java, per compatibilità con host non aggiornati.
+     * La decodifica riconosce automaticamente entrambi i formati.
+     */
+    public static volatile boolean legacy_format = Config.getBoolean("codec.legacy", false);
+
+    /**
+     * Se true vengono decodificati i pacchetti ricevuti nel formato della serializzazione Java anche quando
+     * legacy_format non è attivo (chat.legacy.accept, default false). Altrimenti vengono scartati: la
+     * deserializzazione di dati ricevuti dalla rete serve solo per comunicare con host non aggiornati.
+     */
+    public static volatile boolean legacy_accept = Config.getBoolean("legacy.accept", false);
+
+    /**
+     * Classi ammesse nei pacchetti nel formato della serializzazione Java, con limiti di profondità,
+     * lunghezza degli array, riferimenti e byte letti
+     */
+    private static final ObjectInputFilter LEGACY_FILTER = ObjectInputFilter.Config.createFilter(
+            "maxdepth=8;maxarray=65536;maxrefs=65536;maxbytes=65536;"
+                    + "backend.ChatPacket;backend.ChatPacket$Type;java.lang.Enum;java.lang.String;java.lang.Object;"
+                    + "java.util.ArrayList;java.util.Collections$EmptyList;!*");
 
     public Type message_type;
     public int id;
     public String username;
     public String message_content;
 
+    /**
+     * I messaggi contenuti in un pacchetto di tipo MESSAGE_BATCH, nell'ordine in cui sono stati inviati
+     */
+    public List<ChatPacket> batch;
+
+    /**
+     * Numero di sequenza assegnato dal server ai pacchetti inviati al gruppo multicast, 0 se assente
+     */
+    public long sequence;
+
+    /**
+     * Primo numero di sequenza mancante richiesto da un pacchetto NACK
+     */
+    public long first_missing;
+
+    /**
+     * Numero di pacchetti consecutivi richiesti da un pacchetto NACK, a partire da first_missing
+     */
+    public int missing_count;
+
+    /**
+     * In un REGISTRATION_REQUEST: numero di messaggi recenti dello storico richiesti, 0 se nessuno
+     */
+    public int history_count;
+
+    /**
+     * In un REGISTRATION_REQUEST: istante in millisecondi da cui richiedere lo storico, 0 se nessuno
+     */
+    public long history_since;
+
+    /**
+     * In un REGISTRATION_REQUEST ripetuto dopo l'accettazione: numero di sequenza nello storico da cui il server
+     * deve inviare di nuovo i messaggi, perché un HISTORY è andato perso; 0 se non va ripetuto nulla
+     */
+    public long history_from;
+
+    /**
+     * In REGISTRATION_REQUEST, REGISTRATION_ACCEPTED e REGISTRATION_DENIED: numero casuale scelto dal client
+     * per la richiesta e ripetuto dal server nella risposta, 0 se assente
+     */
+    public int nonce;
+
+    /**
+     * In un pacchetto HISTORY: numero di sequenza nello storico del server del primo messaggio contenuto
+     */
+    public long history_sequence;
+
+    /**
+     * In un pacchetto HISTORY: numero di messaggi dello storico ancora da inviare dopo questo pacchetto,
+     * 0 nell'ultimo pacchetto
+     */
+    public int history_remaining;
+
+    /**
+     * In un pacchetto HISTORY: numero di sequenza nello storico del primo messaggio inviato al client
+     */
+    public long history_start;
+
+    /**
+     * In un pacchetto HISTORY: numero di sequenza dell'ultimo pacchetto inviato al gruppo dal server prima
+     * della registrazione, 0 se i pacchetti non sono numerati. I pacchetti del server con numero minore o uguale
+     * sono già compresi nello storico.
+     */
+    public long history_cutoff;
+
     /**
      * @param type    Il tipo del messaggio
      * @param message Il contenuto del messaggio
@@ -59,21 +153,78 @@ public class ChatPacket implements Serializable {
         message_content = content;
     }
 
+    /**
+     * Crea una richiesta di ritrasmissione (NACK)
+     *
+     * @param id            L'id dell'utente che richiede la ritrasmissione
+     * @param first_missing Primo numero di sequenza mancante
+     * @param missing_count Numero di pacchetti consecutivi mancanti
+     */
+    public ChatPacket(int id, long first_missing, int missing_count) {
+        message_type = Type.NACK;
+        this.id = id;
+        this.first_missing = first_missing;
+        this.missing_count = missing_count;
+    }
+
+    /**
+     * @param batch I messaggi da raggruppare in un pacchetto di tipo MESSAGE_BATCH
+     */
+    public ChatPacket(List<ChatPacket> batch) {
+        message_type = Type.MESSAGE_BATCH;
+        this.batch = batch;
+    }
+
+    /**
+     * Crea un pacchetto HISTORY, con una parte dei messaggi dello storico richiesti alla registrazione
+     *
+     * @param batch             I messaggi, in ordine
+     * @param history_sequence  Numero di sequenza nello storico del primo messaggio
+     * @param history_remaining Numero di messaggi ancora da inviare dopo questo pacchetto
+     */
+    public ChatPacket(List<ChatPacket> batch, long history_sequence, int history_remaining) {
+        message_type = Type.HISTORY;
+        this.batch = batch;
+        this.history_sequence = history_sequence;
+        this.history_remaining = history_remaining;
+    }
+
 
     /**
-     * Serializza l'oggetto, trasformandolo in una sequenza di byte trasferibile in rete
+     * Serializza l'oggetto, trasformandolo in una sequenza di byte trasferibile in rete.
+     * I ChatPacket vengono codificati nel formato binario di PacketCodec, a meno che legacy_format sia attivo.
      *
      * @param obj L'oggetto da serializzare
      * @return Un array di byte che rappresenta l'oggetto serializzato
      * @throws IOException In caso di errore durante la serializzazione
      */
     public static byte[] serialize(Object obj) throws IOException {
+        if (obj instanceof ChatPacket && !legacy_format) {
+            ByteBuffer buffer = PacketCodec.encode((ChatPacket) obj);
+            byte[] data = new byte[buffer.remaining()];
+            buffer.get(data);
+            return data;
+        }
         ByteArrayOutputStream out = new ByteArrayOutputStream();
         ObjectOutputStream os = new ObjectOutputStream(out);
         os.writeObject(obj);
         return out.toByteArray();
     }
 
+    /**
+     * Codifica il pacchetto nel formato configurato, senza copie intermedie nel caso del formato binario.
+     * Il buffer restituito è riutilizzato dal thread corrente ed è valido fino alla successiva codifica.
+     *
+     * @param packet Il pacchetto da codificare
+     * @return Il buffer contenente il pacchetto codificato, pronto per la lettura
+     * @throws IOException In caso di errore durante la serializzazione
+     */
+    public static ByteBuffer encode(ChatPacket packet) throws IOException {
+        if (legacy_format)
+            return ByteBuffer.wrap(serialize(packet));
+        return PacketCodec.encode(packet);
+    }
+
     /**
      * Deserializza una sequenza di byte, trasformandolo in un oggetto caricabile in memoria.
      *
@@ -83,9 +234,57 @@ public class ChatPacket implements Serializable {
      * @throws ClassNotFoundException In caso la sequenza di byte non rappresenti nessuna classe
      */
     public static Object deserialize(byte[] data) throws IOException, ClassNotFoundException {
-        ByteArrayInputStream in = new ByteArrayInputStream(data);
+        return deserialize(data, 0, data.length);
+    }
+
+    /**
+     * Deserializza un pacchetto contenuto in una porzione di array, riconoscendo automaticamente
+     * il formato binario e quello della serializzazione Java.
+     *
+     * @param data   Sequenza di byte in ingresso
+     * @param offset Indice del primo byte del pacchetto
+     * @param length Lunghezza del pacchetto
+     * @return Il pacchetto deserializzato
+     * @throws IOException            In caso di errore durante la deserializzazione
+     * @throws ClassNotFoundException In caso la sequenza di byte non rappresenti nessuna classe
+     */
+    public static ChatPacket deserialize(byte[] data, int offset, int length) throws IOException, ClassNotFoundException {
+        return decode(ByteBuffer.wrap(data, offset, length));
+    }
+
+    /**
+     * Decodifica il pacchetto contenuto tra posizione e limite del buffer,
+     * riconoscendo automaticamente il formato binario e quello della serializzazione Java.
+     * Il formato della serializzazione Java viene accettato solo con legacy_format o legacy_accept,
+     * e solo per le classi di LEGACY_FILTER.
+     *
+     * @param data Il buffer in ingresso
+     * @return Il pacchetto decodificato
+     * @throws IOException            In caso di errore durante la decodifica
+     * @throws ClassNotFoundException In caso la sequenza di byte non rappresenti nessuna classe
+     */
+    public static ChatPacket decode(ByteBuffer data) throws IOException, ClassNotFoundException {
+        if (!PacketCodec.isLegacy(data))
+            return PacketCodec.decode(data);
+        if (!legacy_format && !legacy_accept)
+            throw new ProtocolException("Formato della serializzazione Java non accettato");
+        byte[] bytes;
+        int offset;
+        if (data.hasArray()) {
+            bytes = data.array();
+            offset = data.arrayOffset() + data.position();
+        } else {
+            bytes = new byte[data.remaining()];
+            data.duplicate().get(bytes);
+            offset = 0;
+        }
+        ByteArrayInputStream in = new ByteArrayInputStream(bytes, offset, data.remaining());
         ObjectInputStream is = new ObjectInputStream(in);
-        return is.readObject();
+        is.setObjectInputFilter(LEGACY_FILTER);
+        Object obj = is.readObject();
+        if (!(obj instanceof ChatPacket))
+            throw new InvalidClassException(obj.getClass().getName(), "Oggetto ricevuto non è un ChatPacket");
+        return (ChatPacket) obj;
     }
 
 
@@ -0,0 +1,67 @@
+package backend;
+
+/**
+ * Parametri di configurazione dell'applicazione.
+ * I valori vengono letti dalle proprietà di sistema con prefisso "chat." (es. -Dchat.codec.legacy=true);
+ * se una proprietà non è impostata o non è valida viene usato il valore di default.
+ */
+public final class Config {
+    private static final String PREFIX = "chat.";
+
+    private Config() {
+    }
+
+    /**
+     * @param name          Nome della proprietà, senza prefisso
+     * @param default_value Valore restituito se la proprietà non è impostata
+     * @return Il valore della proprietà
+     */
+    public static String getString(String name, String default_value) {
+        String value = System.getProperty(PREFIX + name);
+        return value == null || value.trim().isEmpty() ? default_value : value.trim();
+    }
+
+    /**
+     * @param name          Nome della proprietà, senza prefisso
+     * @param default_value Valore restituito se la proprietà non è impostata
+     * @return Il valore della proprietà
+     */
+    public static boolean getBoolean(String name, boolean default_value) {
+        String value = getString(name, null);
+        return value == null ? default_value : Boolean.parseBoolean(value);
+    }
+
+    /**
+     * @param name          Nome della proprietà, senza prefisso
+     * @param default_value Valore restituito se la proprietà non è impostata o non è un intero valido
+     * @return Il valore della proprietà
+     */
+    public static int getInt(String name, int default_value) {
+        String value = getString(name, null);
+        if (value == null)
+            return default_value;
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            System.err.println("Valore non valido per " + PREFIX + name + ": " + value);
+            return default_value;
+        }
+    }
+
+    /**
+     * @param name          Nome della proprietà, senza prefisso
+     * @param default_value Valore restituito se la proprietà non è impostata o non è un intero valido
+     * @return Il valore della proprietà
+     */
+    public static long getLong(String name, long default_value) {
+        String value = getString(name, null);
+        if (value == null)
+            return default_value;
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            System.err.println("Valore non valido per " + PREFIX + name + ": " + value);
+            return default_value;
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package backend;
+
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+
+/**
+ * Datagram ricevuto dalla rete: il contenuto e l'indirizzo del mittente.
+ * Le istanze vengono riutilizzate tra una ricezione e l'altra per non allocare memoria a ogni pacchetto.
+ */
+public class Datagram {
+    private final ByteBuffer data;
+    private InetAddress address;
+    private int port;
+    private long received_time;
+
+    /**
+     * @param data Il buffer in cui verranno ricevuti i pacchetti
+     */
+    public Datagram(ByteBuffer data) {
+        this.data = data;
+    }
+
+    /**
+     * @return Il buffer di ricezione, senza considerare il pacchetto ricevuto
+     */
+    ByteBuffer buffer() {
+        return data;
+    }
+
+    /**
+     * Imposta il mittente, delimita il contenuto ricevuto e registra l'istante di ricezione
+     *
+     * @param address Indirizzo del mittente
+     * @param port    Porta del mittente
+     * @param length  Lunghezza del pacchetto ricevuto
+     */
+    void received(InetAddress address, int port, int length) {
+        this.address = address;
+        this.port = port;
+        this.received_time = System.nanoTime();
+        data.limit(length).position(0);
+    }
+
+    /**
+     * Come received(address, port, length), con un istante di ricezione già noto (es. datagram ricomposti)
+     *
+     * @param address       Indirizzo del mittente
+     * @param port          Porta del mittente
+     * @param length        Lunghezza del pacchetto ricevuto
+     * @param received_time Istante di ricezione, come System.nanoTime
+     */
+    void received(InetAddress address, int port, int length, long received_time) {
+        received(address, port, length);
+        this.received_time = received_time;
+    }
+
+    /**
+     * @return Il contenuto del pacchetto, tra la posizione 0 e la sua lunghezza
+     */
+    public ByteBuffer getData() {
+        return data;
+    }
+
+    /**
+     * @return La lunghezza del pacchetto ricevuto
+     */
+    public int getLength() {
+        return data.limit();
+    }
+
+    /**
+     * @return Indirizzo del mittente
+     */
+    public InetAddress getAddress() {
+        return address;
+    }
+
+    /**
+     * @return Porta del mittente
+     */
+    public int getPort() {
+        return port;
+    }
+
+    /**
+     * @return Istante di ricezione, in nanosecondi come System.nanoTime
+     */
+    public long getReceivedTime() {
+        return received_time;
+    }
+}
@@ -0,0 +1,111 @@
+package backend;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Suddivisione in FRAGMENT dei datagram più grandi di ChatHost.MAX_DATAGRAM_SIZE.
+ * <p>
+ * Il datagram completo (intestazione compresa) viene diviso in parti di uguale dimensione, tranne l'ultima:
+ * ogni FRAGMENT riporta l'id del datagram, il proprio indice, il numero di frammenti e la lunghezza totale,
+ * da cui il Reassembler ricava la posizione di ogni parte. Ogni frammento lascia spazio a un numero di sequenza,
+ * così da poter passare da un RetransmitBuffer e restare entro la dimensione dei buffer di ricezione.
+ * La dimensione massima di un datagram frammentato è data da chat.fragment.max_size (default 65536).
+ */
+public class Fragmenter {
+
+    /**
+     * Destinazione dei frammenti prodotti
+     */
+    public interface Sink {
+        /**
+         * @param fragment Il frammento codificato, tra posizione e limite del buffer
+         * @throws IOException In caso di errore durante l'invio
+         */
+        void send(ByteBuffer fragment) throws IOException;
+    }
+
+    /**
+     * Dimensione massima del contenuto di un frammento
+     */
+    public static final int MAX_PAYLOAD_SIZE = ChatHost.MAX_DATAGRAM_SIZE - PacketCodec.MAX_FRAGMENT_OVERHEAD;
+
+    private static final ThreadLocal<ByteBuffer> fragment_buffer =
+            ThreadLocal.withInitial(() -> ByteBuffer.allocate(ChatHost.MAX_DATAGRAM_SIZE));
+
+    private final int max_size;
+    /**
+     * Gli id partono da un valore casuale: i client di una stessa macchina condividono la porta del gruppo,
+     * quindi per chi riceve hanno lo stesso mittente e id consecutivi da 1 si sovrapporrebbero
+     */
+    private final AtomicLong next_message_id = new AtomicLong(ThreadLocalRandom.current().nextLong() & Long.MAX_VALUE);
+
+    /**
+     * Crea il Fragmenter leggendo la dimensione massima dalla configurazione
+     */
+    public Fragmenter() {
+        this(Config.getInt("fragment.max_size", 65536));
+    }
+
+    /**
+     * @param max_size Dimensione massima di un datagram da frammentare
+     */
+    public Fragmenter(int max_size) {
+        this.max_size = max_size;
+    }
+
+    /**
+     * Divide il datagram in frammenti e li passa in ordine al sink.
+     * Il buffer passato al sink è riutilizzato dal thread corrente per il frammento successivo.
+     *
+     * @param datagram Il datagram da frammentare, tra posizione e limite; la posizione viene portata al limite
+     * @param sink     Destinazione dei frammenti
+     * @return Il numero di frammenti inviati
+     * @throws IOException In caso di errore durante l'invio, o se il datagram supera la dimensione massima
+     */
+    public int fragment(ByteBuffer datagram, Sink sink) throws IOException {
+        int total_length = datagram.remaining();
+        if (total_length > max_size)
+            throw new IOException("Datagram troppo grande: " + total_length + " byte");
+        int count = (total_length + MAX_PAYLOAD_SIZE - 1) / MAX_PAYLOAD_SIZE;
+        int chunk = chunkSize(total_length, count);
+        long message_id = next_message_id.getAndIncrement();
+        ByteBuffer out = fragment_buffer.get();
+        int end = datagram.limit();
+        try {
+            for (int index = 0; index < count; index++) {
+                out.clear();
+                PacketCodec.writeFragmentHeader(out, message_id, index, count, total_length);
+                datagram.limit(Math.min(end, datagram.position() + chunk));
+                out.put(datagram);
+                datagram.limit(end);
+                out.flip();
+                sink.send(out);
+            }
+        } finally {
+            datagram.limit(end);
+        }
+        return count;
+    }
+
+    /**
+     * Dimensione delle parti di un datagram, uguale per tutti i frammenti tranne l'ultimo.
+     * Usata sia in invio che in ricezione, così che la posizione di ogni parte sia data dal suo indice.
+     *
+     * @param total_length Lunghezza del datagram completo
+     * @param count        Numero di frammenti
+     * @return Dimensione delle parti
+     */
+    static int chunkSize(int total_length, int count) {
+        return (total_length + count - 1) / count;
+    }
+
+    /**
+     * @return Dimensione massima di un datagram da frammentare
+     */
+    public int getMaxSize() {
+        return max_size;
+    }
+}
@@ -0,0 +1,92 @@
+package backend;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creazione dei thread usati da ChatHost e dalle classi collegate (Receiver, worker, selector, registrazione).
+ * <p>
+ * Con chat.threads=virtual i thread vengono creati come virtual thread, così che un processo possa ospitare
+ * migliaia di ChatClient senza altrettanti thread del sistema operativo. I virtual thread sono disponibili
+ * da Java 21: su versioni precedenti viene segnalato un avviso e si usano thread daemon ordinari (default).
+ */
+public final class HostThreads {
+    private static final boolean virtual = Config.getString("threads", "platform").equals("virtual") && virtualThreadsAvailable();
+
+    private HostThreads() {
+    }
+
+    /**
+     * @return true se i thread creati da questa classe sono virtual thread
+     */
+    public static boolean isVirtual() {
+        return virtual;
+    }
+
+    /**
+     * @param name Nome del thread
+     * @param task Il codice da eseguire
+     * @return Il thread avviato
+     */
+    public static Thread start(String name, Runnable task) {
+        Thread thread = factory(name).newThread(task);
+        thread.start();
+        return thread;
+    }
+
+    /**
+     * @param name Nome dei thread creati, seguito da un numero progressivo
+     * @return Una ThreadFactory che crea virtual thread o thread daemon a seconda della configurazione
+     */
+    public static ThreadFactory factory(String name) {
+        if (virtual) {
+            ThreadFactory factory = virtualFactory(name);
+            if (factory != null)
+                return factory;
+        }
+        AtomicInteger count = new AtomicInteger();
+        return task -> {
+            Thread thread = new Thread(task, name + "-" + count.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    /**
+     * @param name Nome del thread dell'executor
+     * @return Un executor con un solo thread, da chiudere con shutdown una volta terminato l'uso
+     */
+    public static ExecutorService newSingleThreadExecutor(String name) {
+        return Executors.newSingleThreadExecutor(factory(name));
+    }
+
+    private static boolean virtualThreadsAvailable() {
+        try {
+            Thread.class.getMethod("ofVirtual");
+            return true;
+        } catch (NoSuchMethodException e) {
+            System.err.println("Virtual thread non disponibili in questa versione di Java, uso thread ordinari");
+            return false;
+        }
+    }
+
+    /**
+     * Equivale a Thread.ofVirtual().name(name + "-", 0).factory(), chiamato per riflessione
+     * per poter compilare il progetto anche con versioni di Java precedenti alla 21
+     */
+    private static ThreadFactory virtualFactory(String name) {
+        try {
+            Class<?> builder_class = Class.forName("java.lang.Thread$Builder");
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Method set_name = builder_class.getMethod("name", String.class, long.class);
+            builder = set_name.invoke(builder, name + "-", 0L);
+            return (ThreadFactory) builder_class.getMethod("factory").invoke(builder);
+        } catch (ReflectiveOperationException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+}
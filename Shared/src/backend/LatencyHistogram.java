@@ -0,0 +1,112 @@
+package backend;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Istogramma di latenze a bucket logaritmici, registrabile da più thread senza lock.
+ * <p>
+ * Ogni potenza di due è divisa in 16 bucket, quindi i percentili hanno un errore relativo massimo
+ * di circa il 6%, con memoria costante qualunque sia il numero di valori registrati.
+ * I valori sono interi non negativi nell'unità scelta dal chiamante (es. nanosecondi).
+ */
+public class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKET_COUNT = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Registra un valore. I valori negativi vengono registrati come 0.
+     *
+     * @param value Il valore da registrare
+     */
+    public void record(long value) {
+        if (value < 0)
+            value = 0;
+        counts.incrementAndGet(bucketIndex(value));
+        count.increment();
+        sum.add(value);
+        long current;
+        while (value > (current = max.get()) && !max.compareAndSet(current, value)) {
+            Thread.onSpinWait();
+        }
+    }
+
+    /**
+     * @return Numero di valori registrati
+     */
+    public long getCount() {
+        return count.sum();
+    }
+
+    /**
+     * @return Il valore massimo registrato, 0 se l'istogramma è vuoto
+     */
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * @return La media dei valori registrati, 0 se l'istogramma è vuoto
+     */
+    public double getMean() {
+        long n = count.sum();
+        return n == 0 ? 0 : (double) sum.sum() / n;
+    }
+
+    /**
+     * Restituisce il valore sotto cui ricade la percentuale specificata dei valori registrati,
+     * approssimato al limite superiore del bucket (mai oltre il massimo registrato)
+     *
+     * @param percentile Percentile tra 0 e 100
+     * @return Il valore al percentile, 0 se l'istogramma è vuoto
+     */
+    public long getValueAtPercentile(double percentile) {
+        long total = count.sum();
+        if (total == 0)
+            return 0;
+        long target = Math.max(1, (long) Math.ceil(total * Math.min(percentile, 100) / 100));
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += counts.get(i);
+            if (seen >= target)
+                return Math.min(bucketUpperBound(i), getMax());
+        }
+        return getMax();
+    }
+
+    /**
+     * Azzera l'istogramma. I valori registrati durante l'azzeramento possono andare persi.
+     */
+    public void reset() {
+        for (int i = 0; i < BUCKET_COUNT; i++)
+            counts.set(i, 0);
+        count.reset();
+        sum.reset();
+        max.set(0);
+    }
+
+    /**
+     * I valori minori di 2 * SUB_BUCKETS hanno un bucket ciascuno, gli altri vengono divisi per la potenza di due
+     * che lascia SUB_BUCKET_BITS + 1 bit significativi
+     */
+    private static int bucketIndex(long value) {
+        int magnitude = 63 - Long.numberOfLeadingZeros(value | 1);
+        int shift = Math.max(0, magnitude - SUB_BUCKET_BITS);
+        return shift * SUB_BUCKETS + (int) (value >>> shift);
+    }
+
+    private static long bucketUpperBound(int index) {
+        if (index < 2 * SUB_BUCKETS)
+            return index;
+        int shift = index / SUB_BUCKETS - 1;
+        long mantissa = index - (long) shift * SUB_BUCKETS;
+        return ((mantissa + 1) << shift) - 1;
+    }
+}
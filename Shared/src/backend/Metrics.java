@@ -0,0 +1,163 @@
+package backend;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Contatori di un ChatHost: pacchetti ricevuti e inviati per tipo, errori di decodifica, datagram scartati in invio, registrazioni,
+ * ritrasmissioni, byte risparmiati dalla compressione e latenza tra ricezione e inoltro.
+ * <p>
+ * I contatori sono LongAdder, che distribuiscono gli incrementi concorrenti su celle diverse:
+ * i thread di ricezione e di elaborazione li aggiornano senza contendersi la stessa variabile.
+ * La lettura somma le celle ed è pensata per essere poco frequente (JMX, endpoint HTTP).
+ */
+public class Metrics {
+    private static final ChatPacket.Type[] TYPES = ChatPacket.Type.values();
+
+    private final LongAdder[] received = counters(TYPES.length);
+    private final LongAdder[] sent = counters(TYPES.length);
+    private final LongAdder decode_failures = new LongAdder();
+    private final LongAdder send_dropped = new LongAdder();
+    private final LongAdder registrations_accepted = new LongAdder();
+    private final LongAdder registrations_denied = new LongAdder();
+    private final LongAdder retransmitted = new LongAdder();
+    private final LongAdder users_expired = new LongAdder();
+    private final LongAdder compression_input = new LongAdder();
+    private final LongAdder compression_output = new LongAdder();
+    private final LatencyHistogram relay_latency = new LatencyHistogram();
+
+    private static LongAdder[] counters(int count) {
+        LongAdder[] counters = new LongAdder[count];
+        for (int i = 0; i < count; i++)
+            counters[i] = new LongAdder();
+        return counters;
+    }
+
+    /**
+     * @param type Tipo del pacchetto ricevuto e decodificato
+     */
+    public void received(ChatPacket.Type type) {
+        received[type.ordinal()].increment();
+    }
+
+    /**
+     * @param type Tipo del pacchetto inviato
+     */
+    public void sent(ChatPacket.Type type) {
+        sent[type.ordinal()].increment();
+    }
+
+    /**
+     * @param type  Tipo dei pacchetti inviati
+     * @param count Numero di pacchetti inviati
+     */
+    public void sent(ChatPacket.Type type, int count) {
+        sent[type.ordinal()].add(count);
+    }
+
+    /**
+     * Registra un datagram che non è stato possibile decodificare
+     */
+    public void decodeFailed() {
+        decode_failures.increment();
+    }
+
+    /**
+     * Registra un datagram scartato dal trasporto perché il buffer di invio era pieno
+     */
+    public void sendDropped() {
+        send_dropped.increment();
+    }
+
+    public void registrationAccepted() {
+        registrations_accepted.increment();
+    }
+
+    public void registrationDenied() {
+        registrations_denied.increment();
+    }
+
+    /**
+     * @param count Numero di pacchetti ritrasmessi in risposta a un NACK
+     */
+    public void retransmitted(int count) {
+        retransmitted.add(count);
+    }
+
+    /**
+     * Registra un utente rimosso per inattività
+     */
+    public void usersExpired() {
+        users_expired.increment();
+    }
+
+    /**
+     * @param original_size   Dimensione del datagram prima della compressione
+     * @param compressed_size Dimensione del datagram compresso
+     */
+    public void compressed(int original_size, int compressed_size) {
+        compression_input.add(original_size);
+        compression_output.add(compressed_size);
+    }
+
+    /**
+     * @param nanos Tempo trascorso tra la ricezione di un messaggio e il suo inoltro al gruppo
+     */
+    public void relayLatency(long nanos) {
+        relay_latency.record(nanos);
+    }
+
+    /**
+     * @param type Tipo di pacchetto
+     * @return Numero di pacchetti ricevuti del tipo specificato
+     */
+    public long getReceived(ChatPacket.Type type) {
+        return received[type.ordinal()].sum();
+    }
+
+    /**
+     * @param type Tipo di pacchetto
+     * @return Numero di pacchetti inviati del tipo specificato
+     */
+    public long getSent(ChatPacket.Type type) {
+        return sent[type.ordinal()].sum();
+    }
+
+    public long getDecodeFailures() {
+        return decode_failures.sum();
+    }
+
+    public long getSendDropped() {
+        return send_dropped.sum();
+    }
+
+    public long getRegistrationsAccepted() {
+        return registrations_accepted.sum();
+    }
+
+    public long getRegistrationsDenied() {
+        return registrations_denied.sum();
+    }
+
+    public long getRetransmitted() {
+        return retransmitted.sum();
+    }
+
+    public long getCompressionInputBytes() {
+        return compression_input.sum();
+    }
+
+    public long getCompressionOutputBytes() {
+        return compression_output.sum();
+    }
+
+    public long getUsersExpired() {
+        return users_expired.sum();
+    }
+
+    /**
+     * @return L'istogramma della latenza tra ricezione e inoltro, in nanosecondi
+     */
+    public LatencyHistogram getRelayLatency() {
+        return relay_latency;
+    }
+}
@@ -0,0 +1,734 @@
+package backend;
+
+import java.net.ProtocolException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Codifica binaria compatta dei ChatPacket.
+ * <p>
+ * Formato di un pacchetto (versione 1), composto da intestazione e corpo:
+ * <pre>
+ * intestazione: [versione: 1 byte][flag: 1 byte][numero di sequenza: varlong, solo con FLAG_SEQUENCED]
+ * corpo:        [tipo: 1 byte][id: varint][username: stringa][contenuto: stringa]
+ * </pre>
+ * Ogni stringa è preceduta dalla sua lunghezza in byte UTF-8 più uno, codificata come varint
+ * (0 indica una stringa null). I bit dei flag non definiti sono riservati a estensioni future del formato.
+ * Il corpo di un MESSAGE_BATCH è [tipo][numero di messaggi: varint] seguito dai corpi dei messaggi,
+ * quello di un NACK è [tipo][id: varint][primo mancante: varlong][numero di mancanti: varint].
+ * Un FRAGMENT trasporta una parte di un datagram più grande di ChatHost.MAX_DATAGRAM_SIZE:
+ * [tipo][id messaggio: varlong][indice: varint][numero di frammenti: varint][lunghezza totale: varint][byte del datagram]
+ * (vedi Fragmenter e Reassembler).
+ * Un REGISTRATION_REQUEST può essere seguito dalla richiesta dello storico, [numero di messaggi: varint][dall'istante: varlong],
+ * a cui il server risponde con uno o più HISTORY: [tipo][primo numero nello storico: varlong][rimanenti: varint]
+ * [primo numero inviato: varlong][ultimo numero inviato al gruppo: varlong][numero di messaggi: varint]
+ * seguito dai corpi dei MESSAGE, come in un MESSAGE_BATCH.
+ * Dopo la richiesta dello storico (anche vuota) un REGISTRATION_REQUEST può contenere il nonce della richiesta,
+ * [nonce: varint], che REGISTRATION_ACCEPTED e REGISTRATION_DENIED ripetono dopo il contenuto, e dopo il nonce
+ * il numero nello storico da cui ripetere l'invio degli HISTORY persi, [da: varlong].
+ * Eventuali byte successivi all'ultimo campo vengono ignorati.
+ */
+public final class PacketCodec {
+    /**
+     * Versione corrente del formato
+     */
+    public static final byte VERSION = 1;
+
+    /**
+     * Primi due byte di uno stream di serializzazione Java, usati per riconoscere il formato precedente
+     */
+    private static final byte LEGACY_MAGIC_0 = (byte) 0xAC;
+    private static final byte LEGACY_MAGIC_1 = (byte) 0xED;
+
+    /**
+     * Flag che indica la presenza del numero di sequenza nell'intestazione
+     */
+    public static final byte FLAG_SEQUENCED = 0x01;
+
+    /**
+     * Flag che indica un corpo compresso (vedi PacketCompressor)
+     */
+    public static final byte FLAG_COMPRESSED = 0x02;
+
+    /**
+     * Dimensione dell'intestazione senza numero di sequenza
+     */
+    public static final int HEADER_SIZE = 2;
+
+    /**
+     * Dimensione massima di un numero di sequenza codificato
+     */
+    public static final int MAX_SEQUENCE_SIZE = 10;
+
+    /**
+     * Dimensione massima di intestazione e campi di un FRAGMENT, escluso il contenuto
+     */
+    public static final int MAX_FRAGMENT_OVERHEAD = HEADER_SIZE + MAX_SEQUENCE_SIZE + 1 + 10 + 5 + 5 + 5;
+
+    private static final int INITIAL_BUFFER_SIZE = 1024;
+
+    private static final ChatPacket.Type[] TYPES = ChatPacket.Type.values();
+
+    private static final ThreadLocal<ByteBuffer> encode_buffer =
+            ThreadLocal.withInitial(() -> ByteBuffer.allocate(INITIAL_BUFFER_SIZE));
+    private static final ThreadLocal<byte[]> decode_scratch =
+            ThreadLocal.withInitial(() -> new byte[INITIAL_BUFFER_SIZE]);
+
+    private PacketCodec() {
+    }
+
+    /**
+     * Codifica il pacchetto in un buffer riutilizzato dal thread corrente.
+     * Il buffer restituito è valido fino alla successiva codifica effettuata dallo stesso thread.
+     *
+     * @param packet Il pacchetto da codificare
+     * @return Il buffer contenente il pacchetto codificato, pronto per la lettura
+     */
+    public static ByteBuffer encode(ChatPacket packet) {
+        ByteBuffer buffer = encodeBuffer(encodedSize(packet));
+        encode(packet, buffer);
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * Codifica un MESSAGE a partire dall'inizio del corpo già codificato (vedi encodeMessagePrefix)
+     * e dal contenuto già codificato come stringa, senza decodificarlo.
+     * Il buffer restituito è riutilizzato dal thread corrente, come per encode(ChatPacket).
+     *
+     * @param prefix  Tipo, id e username del messaggio già codificati
+     * @param content Il contenuto codificato, tra posizione e limite; la posizione viene portata al limite
+     * @return Il buffer contenente il pacchetto codificato, pronto per la lettura
+     */
+    public static ByteBuffer encodeMessage(byte[] prefix, ByteBuffer content) {
+        ByteBuffer buffer = encodeBuffer(HEADER_SIZE + prefix.length + content.remaining());
+        writeHeader(buffer);
+        buffer.put(prefix);
+        buffer.put(content);
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * Codifica un MESSAGE a partire dall'inizio del corpo già codificato (vedi encodeMessagePrefix),
+     * codificando solo il contenuto.
+     * Il buffer restituito è riutilizzato dal thread corrente, come per encode(ChatPacket).
+     *
+     * @param prefix  Tipo, id e username del messaggio già codificati
+     * @param content Il contenuto del messaggio
+     * @return Il buffer contenente il pacchetto codificato, pronto per la lettura
+     */
+    public static ByteBuffer encodeMessage(byte[] prefix, String content) {
+        ByteBuffer buffer = encodeBuffer(HEADER_SIZE + prefix.length + stringSize(content));
+        writeHeader(buffer);
+        buffer.put(prefix);
+        writeString(buffer, content);
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * Codifica l'inizio del corpo di un MESSAGE: [tipo][id][username].
+     * Seguito dal contenuto codificato come stringa, forma il corpo completo del messaggio.
+     *
+     * @param id       L'id del mittente
+     * @param username L'username del mittente
+     * @return I byte codificati
+     */
+    public static byte[] encodeMessagePrefix(int id, String username) {
+        ByteBuffer out = ByteBuffer.allocate(1 + varIntSize(id) + stringSize(username));
+        out.put((byte) ChatPacket.Type.MESSAGE.ordinal());
+        writeVarInt(out, id);
+        writeString(out, username);
+        return out.array();
+    }
+
+    /**
+     * @param size Numero di byte da codificare
+     * @return Il buffer di codifica del thread corrente, svuotato e con almeno size byte disponibili
+     */
+    private static ByteBuffer encodeBuffer(int size) {
+        ByteBuffer buffer = encode_buffer.get();
+        if (buffer.capacity() < size) {
+            buffer = ByteBuffer.allocate(Math.max(size, buffer.capacity() * 2));
+            encode_buffer.set(buffer);
+        }
+        buffer.clear();
+        return buffer;
+    }
+
+    /**
+     * Codifica il pacchetto a partire dalla posizione corrente del buffer specificato
+     *
+     * @param packet Il pacchetto da codificare
+     * @param out    Il buffer di destinazione, deve avere almeno encodedSize(packet) byte disponibili
+     */
+    public static void encode(ChatPacket packet, ByteBuffer out) {
+        if (packet.sequence != 0)
+            writeSequencedHeader(out, (byte) 0, packet.sequence);
+        else
+            writeHeader(out);
+        encodeBody(packet, out);
+    }
+
+    /**
+     * Scrive l'intestazione di un pacchetto
+     *
+     * @param out Il buffer di destinazione
+     */
+    public static void writeHeader(ByteBuffer out) {
+        out.put(VERSION);
+        out.put((byte) 0);
+    }
+
+    /**
+     * Scrive l'intestazione di un pacchetto con numero di sequenza
+     *
+     * @param out      Il buffer di destinazione
+     * @param flags    I flag del pacchetto, a cui viene aggiunto FLAG_SEQUENCED
+     * @param sequence Il numero di sequenza
+     */
+    public static void writeSequencedHeader(ByteBuffer out, byte flags, long sequence) {
+        out.put(VERSION);
+        out.put((byte) (flags | FLAG_SEQUENCED));
+        writeVarLong(out, sequence);
+    }
+
+    /**
+     * Scrive intestazione e campi di un FRAGMENT, a cui va fatto seguire il contenuto del frammento
+     *
+     * @param out          Il buffer di destinazione
+     * @param message_id   Id del datagram frammentato, unico per il mittente
+     * @param index        Indice del frammento, da 0
+     * @param count        Numero di frammenti del datagram
+     * @param total_length Lunghezza del datagram completo
+     */
+    public static void writeFragmentHeader(ByteBuffer out, long message_id, int index, int count, int total_length) {
+        writeHeader(out);
+        out.put((byte) ChatPacket.Type.FRAGMENT.ordinal());
+        writeVarLong(out, message_id);
+        writeVarInt(out, index);
+        writeVarInt(out, count);
+        writeVarInt(out, total_length);
+    }
+
+    /**
+     * Codifica il corpo del pacchetto (tipo e campi), senza intestazione
+     *
+     * @param packet Il pacchetto da codificare
+     * @param out    Il buffer di destinazione, deve avere almeno bodySize(packet) byte disponibili
+     */
+    public static void encodeBody(ChatPacket packet, ByteBuffer out) {
+        out.put((byte) packet.message_type.ordinal());
+        if (packet.message_type == ChatPacket.Type.MESSAGE_BATCH) {
+            writeVarInt(out, packet.batch.size());
+            for (ChatPacket message : packet.batch)
+                encodeBody(message, out);
+            return;
+        }
+        if (packet.message_type == ChatPacket.Type.HISTORY) {
+            writeHistoryFields(out, packet.history_sequence, packet.history_remaining,
+                    packet.history_start, packet.history_cutoff, packet.batch.size());
+            for (ChatPacket message : packet.batch)
+                encodeBody(message, out);
+            return;
+        }
+        if (packet.message_type == ChatPacket.Type.NACK) {
+            writeVarInt(out, packet.id);
+            writeVarLong(out, packet.first_missing);
+            writeVarInt(out, packet.missing_count);
+            return;
+        }
+        writeVarInt(out, packet.id);
+        writeString(out, packet.username);
+        writeString(out, packet.message_content);
+        if (hasHistoryRequest(packet)) {
+            writeVarInt(out, packet.history_count);
+            writeVarLong(out, packet.history_since);
+        }
+        if (hasNonce(packet))
+            writeVarInt(out, packet.nonce);
+        if (hasHistoryFrom(packet))
+            writeVarLong(out, packet.history_from);
+    }
+
+    /**
+     * Scrive i campi di un HISTORY successivi al tipo, a cui vanno fatti seguire i corpi dei messaggi
+     *
+     * @param out              Il buffer di destinazione
+     * @param first_sequence   Numero di sequenza nello storico del primo messaggio
+     * @param remaining        Numero di messaggi ancora da inviare dopo questo pacchetto
+     * @param start_sequence   Numero di sequenza nello storico del primo messaggio inviato al client
+     * @param cutoff           Numero di sequenza dell'ultimo pacchetto inviato al gruppo prima della registrazione
+     * @param count            Numero di messaggi contenuti
+     */
+    public static void writeHistoryFields(ByteBuffer out, long first_sequence, int remaining, long start_sequence,
+                                          long cutoff, int count) {
+        writeVarLong(out, first_sequence);
+        writeVarInt(out, remaining);
+        writeVarLong(out, start_sequence);
+        writeVarLong(out, cutoff);
+        writeVarInt(out, count);
+    }
+
+    /**
+     * @return true se il pacchetto è un REGISTRATION_REQUEST con richiesta dello storico, scritta vuota se segue il nonce
+     */
+    private static boolean hasHistoryRequest(ChatPacket packet) {
+        return packet.message_type == ChatPacket.Type.REGISTRATION_REQUEST
+                && (packet.history_count != 0 || packet.history_since != 0 || packet.nonce != 0 || packet.history_from != 0);
+    }
+
+    private static boolean hasNonce(ChatPacket packet) {
+        return (packet.nonce != 0 || hasHistoryFrom(packet)) && isRegistration(packet.message_type);
+    }
+
+    /**
+     * @return true se il pacchetto è un REGISTRATION_REQUEST che chiede di ripetere l'invio dello storico
+     */
+    private static boolean hasHistoryFrom(ChatPacket packet) {
+        return packet.message_type == ChatPacket.Type.REGISTRATION_REQUEST && packet.history_from != 0;
+    }
+
+    private static boolean isRegistration(ChatPacket.Type type) {
+        return type == ChatPacket.Type.REGISTRATION_REQUEST || type == ChatPacket.Type.REGISTRATION_ACCEPTED
+                || type == ChatPacket.Type.REGISTRATION_DENIED;
+    }
+
+    /**
+     * @param packet Il pacchetto da codificare
+     * @return Il numero di byte occupati dal pacchetto codificato
+     */
+    public static int encodedSize(ChatPacket packet) {
+        int size = HEADER_SIZE + bodySize(packet);
+        if (packet.sequence != 0)
+            size += varLongSize(packet.sequence);
+        return size;
+    }
+
+    /**
+     * @param packet Il pacchetto da codificare
+     * @return Il numero di byte occupati dal corpo del pacchetto codificato
+     */
+    public static int bodySize(ChatPacket packet) {
+        if (packet.message_type == ChatPacket.Type.MESSAGE_BATCH) {
+            int size = 1 + varIntSize(packet.batch.size());
+            for (ChatPacket message : packet.batch)
+                size += bodySize(message);
+            return size;
+        }
+        if (packet.message_type == ChatPacket.Type.HISTORY) {
+            int size = 1 + varLongSize(packet.history_sequence) + varIntSize(packet.history_remaining)
+                    + varLongSize(packet.history_start) + varLongSize(packet.history_cutoff) + varIntSize(packet.batch.size());
+            for (ChatPacket message : packet.batch)
+                size += bodySize(message);
+            return size;
+        }
+        if (packet.message_type == ChatPacket.Type.NACK)
+            return 1 + varIntSize(packet.id) + varLongSize(packet.first_missing) + varIntSize(packet.missing_count);
+        int size = 1 + varIntSize(packet.id) + stringSize(packet.username) + stringSize(packet.message_content);
+        if (hasHistoryRequest(packet))
+            size += varIntSize(packet.history_count) + varLongSize(packet.history_since);
+        if (hasNonce(packet))
+            size += varIntSize(packet.nonce);
+        if (hasHistoryFrom(packet))
+            size += varLongSize(packet.history_from);
+        return size;
+    }
+
+    /**
+     * Decodifica un pacchetto a partire dalla posizione corrente del buffer.
+     * Al termine la posizione del buffer si trova subito dopo l'ultimo campo letto.
+     *
+     * @param in Il buffer da cui leggere
+     * @return Il pacchetto decodificato
+     * @throws ProtocolException Se i dati non rappresentano un pacchetto valido
+     */
+    public static ChatPacket decode(ByteBuffer in) throws ProtocolException {
+        try {
+            if (in.remaining() >= HEADER_SIZE && (in.get(in.position() + 1) & FLAG_COMPRESSED) != 0)
+                throw new ProtocolException("Pacchetto compresso da decomprimere prima della decodifica");
+            long sequence = readHeader(in);
+            ChatPacket packet = decodeBody(in);
+            packet.sequence = sequence;
+            return packet;
+        } catch (BufferUnderflowException e) {
+            throw new ProtocolException("Pacchetto troncato");
+        }
+    }
+
+    /**
+     * Legge l'intestazione di un pacchetto, lasciando la posizione del buffer all'inizio del corpo
+     *
+     * @param in Il buffer da cui leggere
+     * @return Il numero di sequenza, 0 se assente
+     * @throws ProtocolException Se la versione non è supportata o l'intestazione è troncata
+     */
+    public static long readHeader(ByteBuffer in) throws ProtocolException {
+        try {
+            byte version = in.get();
+            if (version != VERSION)
+                throw new ProtocolException("Versione del formato non supportata: " + version);
+            byte flags = in.get();
+            return (flags & FLAG_SEQUENCED) != 0 ? readVarLong(in) : 0;
+        } catch (BufferUnderflowException e) {
+            throw new ProtocolException("Pacchetto troncato");
+        }
+    }
+
+    /**
+     * Decodifica il corpo di un pacchetto a partire dalla posizione corrente del buffer
+     *
+     * @param in Il buffer da cui leggere
+     * @return Il pacchetto decodificato
+     * @throws ProtocolException Se i dati non rappresentano un pacchetto valido
+     */
+    public static ChatPacket decodeBody(ByteBuffer in) throws ProtocolException {
+        try {
+            int type = in.get() & 0xFF;
+            if (type >= TYPES.length)
+                throw new ProtocolException("Tipo di messaggio sconosciuto: " + type);
+            if (TYPES[type] == ChatPacket.Type.MESSAGE_BATCH)
+                return new ChatPacket(decodeMessages(in));
+            if (TYPES[type] == ChatPacket.Type.HISTORY) {
+                long first_sequence = readVarLong(in);
+                int remaining = readVarInt(in);
+                long start_sequence = readVarLong(in);
+                long cutoff = readVarLong(in);
+                ChatPacket history = new ChatPacket(decodeMessages(in), first_sequence, remaining);
+                history.history_start = start_sequence;
+                history.history_cutoff = cutoff;
+                return history;
+            }
+            if (TYPES[type] == ChatPacket.Type.FRAGMENT)
+                throw new ProtocolException("FRAGMENT da ricomporre prima della decodifica");
+            if (TYPES[type] == ChatPacket.Type.NACK) {
+                int id = readVarInt(in);
+                long first_missing = readVarLong(in);
+                int missing_count = readVarInt(in);
+                return new ChatPacket(id, first_missing, missing_count);
+            }
+            int id = readVarInt(in);
+            String username = readString(in);
+            String content = readString(in);
+            ChatPacket packet = new ChatPacket(TYPES[type], id, username, content);
+            if (TYPES[type] == ChatPacket.Type.REGISTRATION_REQUEST && in.hasRemaining()) {
+                packet.history_count = readVarInt(in);
+                packet.history_since = readVarLong(in);
+            }
+            if (isRegistration(TYPES[type]) && in.hasRemaining())
+                packet.nonce = readVarInt(in);
+            if (TYPES[type] == ChatPacket.Type.REGISTRATION_REQUEST && in.hasRemaining())
+                packet.history_from = readVarLong(in);
+            return packet;
+        } catch (BufferUnderflowException e) {
+            throw new ProtocolException("Pacchetto troncato");
+        }
+    }
+
+    /**
+     * Decodifica il numero di messaggi e i corpi dei messaggi di un MESSAGE_BATCH o di un HISTORY
+     *
+     * @param in Il buffer da cui leggere
+     * @return I messaggi decodificati, in ordine
+     * @throws ProtocolException Se i dati non rappresentano messaggi validi
+     */
+    private static List<ChatPacket> decodeMessages(ByteBuffer in) throws ProtocolException {
+        int count = readVarInt(in);
+        // Ogni messaggio occupa almeno 4 byte: un valore maggiore indica un pacchetto corrotto
+        if (count < 0 || count > in.remaining() / 4)
+            throw new ProtocolException("Numero di messaggi non valido: " + count);
+        List<ChatPacket> batch = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            ChatPacket message = decodeBody(in);
+            if (message.message_type == ChatPacket.Type.MESSAGE_BATCH || message.message_type == ChatPacket.Type.HISTORY)
+                throw new ProtocolException("MESSAGE_BATCH o HISTORY annidato");
+            batch.add(message);
+        }
+        return batch;
+    }
+
+    /**
+     * Controlla se il buffer contiene un MESSAGE nel formato binario senza flag,
+     * che può essere letto con readMessageId senza decodificarne il contenuto
+     *
+     * @param in Il buffer da controllare, la sua posizione non viene modificata
+     * @return true se il buffer contiene un MESSAGE senza flag
+     */
+    public static boolean isPlainMessage(ByteBuffer in) {
+        int position = in.position();
+        return in.remaining() > HEADER_SIZE
+                && in.get(position) == VERSION
+                && in.get(position + 1) == 0
+                && in.get(position + HEADER_SIZE) == (byte) ChatPacket.Type.MESSAGE.ordinal();
+    }
+
+    /**
+     * Controlla se il buffer contiene un FRAGMENT nel formato binario, con o senza numero di sequenza
+     *
+     * @param in Il buffer da controllare, la sua posizione non viene modificata
+     * @return true se il buffer contiene un FRAGMENT
+     */
+    public static boolean isFragment(ByteBuffer in) {
+        int position = in.position();
+        if (in.remaining() <= HEADER_SIZE || in.get(position) != VERSION || (in.get(position + 1) & FLAG_COMPRESSED) != 0)
+            return false;
+        int body = position + HEADER_SIZE;
+        if ((in.get(position + 1) & FLAG_SEQUENCED) != 0) {
+            while (body < in.limit() && (in.get(body) & 0x80) != 0)
+                body++;
+            body++;
+        }
+        return body < in.limit() && in.get(body) == (byte) ChatPacket.Type.FRAGMENT.ordinal();
+    }
+
+    /**
+     * Legge l'id di un MESSAGE e salta l'username, lasciando la posizione all'inizio del contenuto.
+     * Va usato solo se isPlainMessage(in) è vero.
+     *
+     * @param in Il buffer in ingresso
+     * @return L'id del mittente
+     * @throws ProtocolException Se il pacchetto è troncato o malformato
+     */
+    public static int readMessageId(ByteBuffer in) throws ProtocolException {
+        try {
+            in.position(in.position() + HEADER_SIZE + 1);
+            int id = readVarInt(in);
+            skipString(in);
+            return id;
+        } catch (BufferUnderflowException e) {
+            throw new ProtocolException("Pacchetto troncato");
+        }
+    }
+
+    /**
+     * Verifica la stringa codificata a partire dalla posizione corrente, senza decodificarla
+     *
+     * @param in Il buffer in ingresso, la sua posizione non viene modificata
+     * @return Il numero di byte occupati dalla stringa codificata, lunghezza compresa
+     * @throws ProtocolException Se la stringa è troncata o malformata
+     */
+    public static int encodedStringSize(ByteBuffer in) throws ProtocolException {
+        int start = in.position();
+        try {
+            skipString(in);
+            return in.position() - start;
+        } catch (BufferUnderflowException e) {
+            throw new ProtocolException("Pacchetto troncato");
+        } finally {
+            in.position(start);
+        }
+    }
+
+    private static void skipString(ByteBuffer in) throws ProtocolException {
+        int length = readVarInt(in) - 1;
+        if (length < -1)
+            throw new ProtocolException("Lunghezza stringa non valida");
+        if (length > in.remaining())
+            throw new ProtocolException("Pacchetto troncato");
+        if (length > 0)
+            in.position(in.position() + length);
+    }
+
+    /**
+     * Controlla se i dati a partire dalla posizione corrente del buffer sono nel formato
+     * della serializzazione Java
+     *
+     * @param in Il buffer da controllare, la sua posizione non viene modificata
+     * @return true se i dati sono nel formato precedente, altrimenti false
+     */
+    public static boolean isLegacy(ByteBuffer in) {
+        int position = in.position();
+        return in.remaining() >= 2 && in.get(position) == LEGACY_MAGIC_0 && in.get(position + 1) == LEGACY_MAGIC_1;
+    }
+
+    /**
+     * Scrive un intero come varint (7 bit per byte, il bit più significativo indica che segue un altro byte).
+     * Gli interi negativi occupano 5 byte.
+     *
+     * @param out   Il buffer di destinazione
+     * @param value Il valore da scrivere
+     */
+    public static void writeVarInt(ByteBuffer out, int value) {
+        while ((value & ~0x7F) != 0) {
+            out.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.put((byte) value);
+    }
+
+    /**
+     * @param in Il buffer da cui leggere
+     * @return L'intero letto
+     * @throws ProtocolException Se il varint supera i 5 byte
+     */
+    public static int readVarInt(ByteBuffer in) throws ProtocolException {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            byte b = in.get();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0)
+                return value;
+        }
+        throw new ProtocolException("Varint non valido");
+    }
+
+    /**
+     * @param value Il valore da codificare
+     * @return Il numero di byte occupati dal varint
+     */
+    public static int varIntSize(int value) {
+        int size = 1;
+        while ((value & ~0x7F) != 0) {
+            size++;
+            value >>>= 7;
+        }
+        return size;
+    }
+
+    /**
+     * Scrive un long come varint
+     *
+     * @param out   Il buffer di destinazione
+     * @param value Il valore da scrivere
+     */
+    public static void writeVarLong(ByteBuffer out, long value) {
+        while ((value & ~0x7FL) != 0) {
+            out.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.put((byte) value);
+    }
+
+    /**
+     * @param in Il buffer da cui leggere
+     * @return Il long letto
+     * @throws ProtocolException Se il varint supera i 10 byte
+     */
+    public static long readVarLong(ByteBuffer in) throws ProtocolException {
+        long value = 0;
+        for (int shift = 0; shift < 70; shift += 7) {
+            byte b = in.get();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0)
+                return value;
+        }
+        throw new ProtocolException("Varint non valido");
+    }
+
+    /**
+     * @param value Il valore da codificare
+     * @return Il numero di byte occupati dal varint
+     */
+    public static int varLongSize(long value) {
+        int size = 1;
+        while ((value & ~0x7FL) != 0) {
+            size++;
+            value >>>= 7;
+        }
+        return size;
+    }
+
+    /**
+     * Scrive una stringa in UTF-8 preceduta dalla sua lunghezza, senza creare array intermedi
+     *
+     * @param out   Il buffer di destinazione
+     * @param value La stringa da scrivere, può essere null
+     */
+    public static void writeString(ByteBuffer out, String value) {
+        if (value == null) {
+            writeVarInt(out, 0);
+            return;
+        }
+        writeVarInt(out, utf8Length(value) + 1);
+        int length = value.length();
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                out.put((byte) c);
+            } else if (c < 0x800) {
+                out.put((byte) (0xC0 | (c >> 6)));
+                out.put((byte) (0x80 | (c & 0x3F)));
+            } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(value.charAt(i + 1))) {
+                int code_point = Character.toCodePoint(c, value.charAt(++i));
+                out.put((byte) (0xF0 | (code_point >> 18)));
+                out.put((byte) (0x80 | ((code_point >> 12) & 0x3F)));
+                out.put((byte) (0x80 | ((code_point >> 6) & 0x3F)));
+                out.put((byte) (0x80 | (code_point & 0x3F)));
+            } else if (Character.isSurrogate(c)) {
+                out.put((byte) '?');
+            } else {
+                out.put((byte) (0xE0 | (c >> 12)));
+                out.put((byte) (0x80 | ((c >> 6) & 0x3F)));
+                out.put((byte) (0x80 | (c & 0x3F)));
+            }
+        }
+    }
+
+    /**
+     * @param in Il buffer da cui leggere
+     * @return La stringa letta, o null
+     * @throws ProtocolException Se la lunghezza dichiarata non è valida
+     */
+    public static String readString(ByteBuffer in) throws ProtocolException {
+        int length = readVarInt(in) - 1;
+        if (length < 0) {
+            if (length == -1)
+                return null;
+            throw new ProtocolException("Lunghezza stringa non valida");
+        }
+        if (length > in.remaining())
+            throw new ProtocolException("Pacchetto troncato");
+        String value;
+        if (in.hasArray()) {
+            value = new String(in.array(), in.arrayOffset() + in.position(), length, StandardCharsets.UTF_8);
+            in.position(in.position() + length);
+        } else {
+            byte[] scratch = decode_scratch.get();
+            if (scratch.length < length) {
+                scratch = new byte[length];
+                decode_scratch.set(scratch);
+            }
+            in.get(scratch, 0, length);
+            value = new String(scratch, 0, length, StandardCharsets.UTF_8);
+        }
+        return value;
+    }
+
+    /**
+     * @param value La stringa da codificare, può essere null
+     * @return Il numero di byte occupati dalla stringa codificata, lunghezza inclusa
+     */
+    public static int stringSize(String value) {
+        if (value == null)
+            return 1;
+        int length = utf8Length(value);
+        return varIntSize(length + 1) + length;
+    }
+
+    /**
+     * @param value La stringa da misurare
+     * @return Il numero di byte della stringa codificata in UTF-8
+     */
+    public static int utf8Length(String value) {
+        int length = value.length();
+        int bytes = length;
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            if (c >= 0x800) {
+                if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(value.charAt(i + 1))) {
+                    bytes += 2;
+                    i++;
+                } else if (!Character.isSurrogate(c)) {
+                    bytes += 2;
+                }
+            } else if (c >= 0x80) {
+                bytes++;
+            }
+        }
+        return bytes;
+    }
+}
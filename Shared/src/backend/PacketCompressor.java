@@ -0,0 +1,176 @@
+package backend;
+
+import java.net.ProtocolException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compressione dei datagram nel formato binario con un dizionario predefinito.
+ * <p>
+ * Un datagram compresso ha il flag PacketCodec.FLAG_COMPRESSED nell'intestazione, seguita da
+ * [lunghezza del corpo non compresso: varint][corpo compresso con deflate, senza intestazione zlib].
+ * Il dizionario contiene parole frequenti in chat e i messaggi di servizio del server, così che anche i datagram
+ * di poche centinaia di byte si riducano: fa parte del formato, e va modificato solo insieme alla versione.
+ * <p>
+ * Vengono compressi solo i datagram senza numero di sequenza (il server comprime prima di assegnarlo) e almeno
+ * di chat.compress.threshold byte (default 128); se il risultato non è più piccolo si invia l'originale.
+ * La compressione è disattivata di default (chat.compress=true la attiva), la decompressione è sempre supportata.
+ * Deflater e Inflater sono conservati in un pool, perché la loro creazione alloca memoria nativa.
+ */
+public final class PacketCompressor {
+
+    /**
+     * Dizionario condiviso da mittente e destinatario. Le stringhe più frequenti sono in fondo,
+     * dove deflate le raggiunge con distanze più brevi.
+     */
+    static final byte[] DICTIONARY = ("perché però quindi comunque allora infatti ancora adesso domani oggi stasera "
+            + "qualcuno niente tutto tutti sempre mai molto poco grazie mille prego scusa per favore d'accordo "
+            + "buongiorno buonasera buonanotte a dopo ci vediamo va bene ok sì no non lo so che cosa come stai? "
+            + "sto bene anche tu? io noi voi loro sono sei siamo siete hanno ho hai ha abbiamo avete fatto detto "
+            + "il la lo gli le un una di da in con su per tra del della dei delle nel nella che non è "
+            + "si è disconnesso per inattività si è disconnesso si è connesso alla chat ciao ")
+            .getBytes(StandardCharsets.UTF_8);
+
+    /**
+     * Se true i datagram vengono compressi in invio
+     */
+    public static volatile boolean enabled = Config.getBoolean("compress", false);
+
+    private static final int threshold = Config.getInt("compress.threshold", 128);
+    private static final int level = Config.getInt("compress.level", Deflater.BEST_SPEED);
+    private static final int max_size = Config.getInt("fragment.max_size", 65536);
+
+    private static final ArrayBlockingQueue<Deflater> deflaters = new ArrayBlockingQueue<>(16);
+    private static final ArrayBlockingQueue<Inflater> inflaters = new ArrayBlockingQueue<>(16);
+
+    private static final ThreadLocal<ByteBuffer> compress_buffer =
+            ThreadLocal.withInitial(() -> ByteBuffer.allocate(ChatHost.MAX_DATAGRAM_SIZE));
+    private static final ThreadLocal<Datagram> inflate_datagram =
+            ThreadLocal.withInitial(() -> new Datagram(ByteBuffer.allocate(4 * ChatHost.MAX_DATAGRAM_SIZE)));
+
+    private PacketCompressor() {
+    }
+
+    /**
+     * Comprime il datagram, se la compressione è attiva e conviene.
+     * Il buffer restituito, se diverso da quello ricevuto, è riutilizzato dal thread corrente
+     * ed è valido fino alla compressione successiva.
+     *
+     * @param datagram Il datagram codificato, tra posizione e limite; il buffer non viene modificato
+     * @return Il datagram compresso, oppure datagram stesso se non è stato compresso
+     */
+    public static ByteBuffer compress(ByteBuffer datagram) {
+        int size = datagram.remaining();
+        int start = datagram.position();
+        if (!enabled || size < threshold || datagram.get(start) != PacketCodec.VERSION)
+            return datagram;
+        byte flags = datagram.get(start + 1);
+        if (flags != 0 || datagram.get(start + PacketCodec.HEADER_SIZE) == (byte) ChatPacket.Type.FRAGMENT.ordinal())
+            return datagram;
+
+        ByteBuffer out = compress_buffer.get();
+        if (out.capacity() < size) {
+            out = ByteBuffer.allocate(size);
+            compress_buffer.set(out);
+        }
+        out.clear().limit(size);
+        out.put(PacketCodec.VERSION);
+        out.put(PacketCodec.FLAG_COMPRESSED);
+        PacketCodec.writeVarInt(out, size - PacketCodec.HEADER_SIZE);
+
+        Deflater deflater = deflaters.poll();
+        if (deflater == null) {
+            deflater = new Deflater(level, true);
+            deflater.setDictionary(DICTIONARY);
+        }
+        try {
+            ByteBuffer body = datagram.duplicate();
+            body.position(start + PacketCodec.HEADER_SIZE);
+            deflater.setInput(body);
+            deflater.finish();
+            while (!deflater.finished() && out.hasRemaining())
+                deflater.deflate(out);
+            // Il risultato non è più piccolo dell'originale
+            if (!deflater.finished() || !out.hasRemaining())
+                return datagram;
+        } finally {
+            deflater.reset();
+            deflater.setDictionary(DICTIONARY);
+            if (!deflaters.offer(deflater))
+                deflater.end();
+        }
+        out.flip();
+        return out;
+    }
+
+    /**
+     * Decomprime il datagram, se ha il flag FLAG_COMPRESSED.
+     * Il datagram restituito, se diverso da quello ricevuto, ha lo stesso mittente e istante di ricezione,
+     * conserva l'eventuale numero di sequenza ed è riutilizzato dal thread corrente fino alla decompressione successiva.
+     *
+     * @param datagram Il datagram ricevuto
+     * @return Il datagram decompresso, oppure datagram stesso se non è compresso
+     * @throws ProtocolException Se il contenuto compresso non è valido o supera chat.fragment.max_size
+     */
+    public static Datagram decompress(Datagram datagram) throws ProtocolException {
+        ByteBuffer in = datagram.getData();
+        int start = in.position();
+        if (in.remaining() <= PacketCodec.HEADER_SIZE || in.get(start) != PacketCodec.VERSION
+                || (in.get(start + 1) & PacketCodec.FLAG_COMPRESSED) == 0)
+            return datagram;
+        byte flags = (byte) (in.get(start + 1) & ~PacketCodec.FLAG_COMPRESSED);
+        ByteBuffer data = in.duplicate();
+        long sequence = PacketCodec.readHeader(data);
+        int body_size;
+        try {
+            body_size = PacketCodec.readVarInt(data);
+        } catch (BufferUnderflowException e) {
+            throw new ProtocolException("Pacchetto troncato");
+        }
+        if (body_size <= 0 || body_size > max_size)
+            throw new ProtocolException("Lunghezza del corpo non valida: " + body_size);
+
+        int header_size = PacketCodec.HEADER_SIZE + (sequence != 0 ? PacketCodec.varLongSize(sequence) : 0);
+        int length = header_size + body_size;
+        Datagram out = inflate_datagram.get();
+        if (out.buffer().capacity() < length) {
+            out = new Datagram(ByteBuffer.allocate(length));
+            inflate_datagram.set(out);
+        }
+        ByteBuffer buffer = out.buffer();
+        buffer.clear().limit(length);
+        if (sequence != 0)
+            PacketCodec.writeSequencedHeader(buffer, flags, sequence);
+        else
+            buffer.put(PacketCodec.VERSION).put(flags);
+
+        Inflater inflater = inflaters.poll();
+        if (inflater == null) {
+            inflater = new Inflater(true);
+            inflater.setDictionary(DICTIONARY);
+        }
+        try {
+            inflater.setInput(data);
+            while (buffer.hasRemaining() && !inflater.finished()) {
+                if (inflater.inflate(buffer) == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+                    break;
+            }
+            if (buffer.hasRemaining() || !inflater.finished())
+                throw new ProtocolException("Contenuto compresso non valido");
+        } catch (DataFormatException e) {
+            throw new ProtocolException("Contenuto compresso non valido: " + e.getMessage());
+        } finally {
+            inflater.reset();
+            inflater.setDictionary(DICTIONARY);
+            if (!inflaters.offer(inflater))
+                inflater.end();
+        }
+        out.received(datagram.getAddress(), datagram.getPort(), length, datagram.getReceivedTime());
+        return out;
+    }
+}
@@ -0,0 +1,215 @@
+package backend;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Elaborazione a stadi dei datagram ricevuti da un ChatHost.
+ * Il Receiver thread si limita a svuotare il socket e a passare i datagram, attraverso code limitate,
+ * a un insieme di worker che ne effettuano la decodifica e l'elaborazione (processMessage).
+ * <p>
+ * I datagram di uno stesso mittente (indirizzo e porta) vengono sempre assegnati allo stesso worker,
+ * così da essere elaborati nell'ordine di arrivo. Quando la coda di un worker è piena il datagram
+ * viene scartato (politica DROP) oppure il Receiver attende che si liberi spazio (politica BLOCK).
+ * I Datagram e i relativi buffer vengono riutilizzati, quindi a regime non ci sono allocazioni per pacchetto;
+ * alla chiusura dell'host i buffer vengono restituiti al pool condiviso (vedi BufferPool.shared).
+ * <p>
+ * Configurazione: chat.pipeline.workers, chat.pipeline.capacity, chat.pipeline.overflow (drop|block).
+ */
+public class ProcessingPipeline {
+
+    /**
+     * Comportamento in caso di coda piena
+     */
+    public enum OverflowPolicy {DROP, BLOCK}
+
+    private final ChatHost host;
+    private final OverflowPolicy overflow_policy;
+    private final Worker[] workers;
+
+    private final ArrayBlockingQueue<Datagram> free_datagrams;
+    private final AtomicInteger created_datagrams = new AtomicInteger();
+    private final int max_datagrams;
+
+    private final LongAdder received_count = new LongAdder();
+    private final LongAdder dropped_count = new LongAdder();
+    private final LongAdder blocked_count = new LongAdder();
+
+    /**
+     * Crea la pipeline leggendo i parametri dalla configurazione
+     *
+     * @param host Host di cui elaborare i datagram
+     * @return La pipeline, o null se chat.pipeline.workers è 0 (elaborazione nel Receiver thread)
+     */
+    static ProcessingPipeline fromConfig(ChatHost host) {
+        int workers = Config.getInt("pipeline.workers", 0);
+        if (workers <= 0)
+            return null;
+        return new ProcessingPipeline(host, workers, Config.getInt("pipeline.capacity", 256),
+                OverflowPolicy.valueOf(Config.getString("pipeline.overflow", "drop").toUpperCase()));
+    }
+
+    /**
+     * @param host            Host di cui elaborare i datagram
+     * @param worker_count    Numero di worker
+     * @param queue_capacity  Numero massimo di datagram in attesa per ogni worker
+     * @param overflow_policy Comportamento in caso di coda piena
+     */
+    public ProcessingPipeline(ChatHost host, int worker_count, int queue_capacity, OverflowPolicy overflow_policy) {
+        if (worker_count < 1 || queue_capacity < 1)
+            throw new IllegalArgumentException("Numero di worker e capacità delle code devono essere positivi");
+        this.host = host;
+        this.overflow_policy = overflow_policy;
+        // Un datagram per ogni posto in coda, uno in elaborazione per worker e uno in ricezione
+        this.max_datagrams = worker_count * (queue_capacity + 1) + 1;
+        this.free_datagrams = new ArrayBlockingQueue<>(max_datagrams);
+        this.workers = new Worker[worker_count];
+        for (int i = 0; i < worker_count; i++)
+            workers[i] = new Worker(queue_capacity);
+    }
+
+    /**
+     * Avvia i thread dei worker
+     */
+    void start() {
+        ThreadFactory factory = HostThreads.factory("pipeline-worker");
+        for (Worker worker : workers) {
+            worker.thread = factory.newThread(worker);
+            worker.thread.start();
+        }
+    }
+
+    /**
+     * Interrompe i thread dei worker e restituisce al pool i buffer dei datagram liberi
+     */
+    void stop() {
+        for (Worker worker : workers) {
+            if (worker.thread != null)
+                worker.thread.interrupt();
+        }
+        releaseFree();
+    }
+
+    /**
+     * Rimette un datagram elaborato (o scartato) tra quelli liberi; se l'host è chiuso restituisce i buffer al pool
+     *
+     * @param datagram Il datagram da riutilizzare
+     */
+    void recycle(Datagram datagram) {
+        free_datagrams.offer(datagram);
+        if (host.isClosed())
+            releaseFree();
+    }
+
+    private void releaseFree() {
+        Datagram datagram;
+        while ((datagram = free_datagrams.poll()) != null)
+            host.getReceivePool().release(datagram.buffer());
+    }
+
+    /**
+     * @return Un Datagram libero in cui ricevere il prossimo pacchetto
+     */
+    Datagram acquire() {
+        Datagram datagram = free_datagrams.poll();
+        if (datagram != null)
+            return datagram;
+        if (created_datagrams.incrementAndGet() <= max_datagrams)
+            return new Datagram(host.getReceivePool().acquire());
+        created_datagrams.decrementAndGet();
+        try {
+            return free_datagrams.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return new Datagram(host.getReceivePool().acquire());
+        }
+    }
+
+    /**
+     * Passa un datagram ricevuto al worker associato al suo mittente
+     *
+     * @param datagram Il datagram ricevuto
+     * @throws InterruptedException Se il thread viene interrotto mentre attende spazio in coda
+     */
+    void dispatch(Datagram datagram) throws InterruptedException {
+        received_count.increment();
+        int hash = datagram.getAddress().hashCode() * 31 + datagram.getPort();
+        Worker worker = workers[Math.floorMod(hash ^ (hash >>> 16), workers.length)];
+        if (worker.queue.offer(datagram))
+            return;
+        if (overflow_policy == OverflowPolicy.DROP) {
+            dropped_count.increment();
+            recycle(datagram);
+        } else {
+            blocked_count.increment();
+            worker.queue.put(datagram);
+        }
+    }
+
+    /**
+     * @return Numero di datagram ricevuti e passati alla pipeline
+     */
+    public long getReceivedCount() {
+        return received_count.sum();
+    }
+
+    /**
+     * @return Numero di datagram scartati perché la coda del worker era piena
+     */
+    public long getDroppedCount() {
+        return dropped_count.sum();
+    }
+
+    /**
+     * @return Numero di volte in cui il Receiver ha dovuto attendere spazio in coda (politica BLOCK)
+     */
+    public long getBlockedCount() {
+        return blocked_count.sum();
+    }
+
+    /**
+     * @return Numero di datagram in attesa di elaborazione
+     */
+    public int getQueuedCount() {
+        int queued = 0;
+        for (Worker worker : workers)
+            queued += worker.queue.size();
+        return queued;
+    }
+
+    /**
+     * Worker che elabora in ordine i datagram della propria coda
+     */
+    private class Worker implements Runnable {
+        private final ArrayBlockingQueue<Datagram> queue;
+        private Thread thread;
+
+        Worker(int capacity) {
+            queue = new ArrayBlockingQueue<>(capacity);
+        }
+
+        @Override
+        public void run() {
+            while (!host.isClosed()) {
+                Datagram datagram;
+                try {
+                    datagram = queue.take();
+                } catch (InterruptedException e) {
+                    break;
+                }
+                try {
+                    host.processMessage(datagram);
+                } catch (RuntimeException e) {
+                    e.printStackTrace();
+                } finally {
+                    recycle(datagram);
+                }
+            }
+            Datagram queued;
+            while ((queued = queue.poll()) != null)
+                recycle(queued);
+        }
+    }
+}
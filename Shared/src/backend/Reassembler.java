@@ -0,0 +1,208 @@
+package backend;
+
+import java.net.InetAddress;
+import java.net.ProtocolException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Ricomposizione dei datagram divisi in FRAGMENT da un Fragmenter.
+ * <p>
+ * I datagram in ricomposizione sono identificati da mittente e id del messaggio, e conservati in una tabella
+ * limitata: un datagram non completato entro il timeout viene scartato, e se la tabella è piena viene scartato
+ * il più vecchio. Le scadenze sono controllate a ogni frammento ricevuto, senza thread dedicati: poiché il timeout
+ * è lo stesso per tutti, l'ordine di inserimento è anche l'ordine di scadenza. Gli ultimi datagram ricomposti
+ * vengono ricordati, così che un frammento duplicato in ritardo non apra una nuova ricomposizione.
+ * <p>
+ * Configurazione: chat.fragment.max_size, chat.fragment.max_pending, chat.fragment.timeout (millisecondi).
+ */
+public class Reassembler {
+    private final int max_size;
+    private final int max_pending;
+    private final long timeout_nanos;
+
+    private final LinkedHashMap<Key, Partial> pending = new LinkedHashMap<>();
+    private final LinkedHashMap<Key, Key> recently_completed;
+    private long completed_count = 0;
+    private long discarded_count = 0;
+
+    /**
+     * Crea il Reassembler leggendo i parametri dalla configurazione
+     */
+    public Reassembler() {
+        this(Config.getInt("fragment.max_size", 65536), Config.getInt("fragment.max_pending", 64),
+                TimeUnit.MILLISECONDS.toNanos(Config.getLong("fragment.timeout", 5000)));
+    }
+
+    /**
+     * @param max_size      Dimensione massima di un datagram ricomposto
+     * @param max_pending   Numero massimo di datagram in ricomposizione
+     * @param timeout_nanos Tempo massimo per ricevere tutti i frammenti di un datagram
+     */
+    public Reassembler(int max_size, int max_pending, long timeout_nanos) {
+        if (max_pending < 1)
+            throw new IllegalArgumentException("Il numero di datagram in ricomposizione deve essere positivo");
+        this.max_size = max_size;
+        this.max_pending = max_pending;
+        this.timeout_nanos = timeout_nanos;
+        this.recently_completed = new LinkedHashMap<>() {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, Key> eldest) {
+                return size() > max_pending;
+            }
+        };
+    }
+
+    /**
+     * Aggiunge un frammento ricevuto. I frammenti duplicati vengono ignorati.
+     *
+     * @param fragment Il datagram contenente il FRAGMENT
+     * @return Il datagram ricomposto, con mittente e istante di ricezione del primo frammento,
+     * oppure null se mancano ancora dei frammenti
+     * @throws ProtocolException Se il frammento è malformato o incoerente con i precedenti
+     */
+    public synchronized Datagram add(Datagram fragment) throws ProtocolException {
+        long now = System.nanoTime();
+        expire(now);
+        ByteBuffer in = fragment.getData().duplicate();
+        long message_id;
+        int index, count, total_length;
+        try {
+            PacketCodec.readHeader(in);
+            in.get();
+            message_id = PacketCodec.readVarLong(in);
+            index = PacketCodec.readVarInt(in);
+            count = PacketCodec.readVarInt(in);
+            total_length = PacketCodec.readVarInt(in);
+        } catch (BufferUnderflowException e) {
+            throw new ProtocolException("Pacchetto troncato");
+        }
+        if (total_length <= 0 || total_length > max_size || count <= 0 || count > total_length || index < 0 || index >= count)
+            throw new ProtocolException("Frammento non valido: " + index + "/" + count + " di " + total_length + " byte");
+        int chunk = Fragmenter.chunkSize(total_length, count);
+        int offset = index * chunk;
+        if (offset >= total_length || in.remaining() != Math.min(chunk, total_length - offset))
+            throw new ProtocolException("Lunghezza del frammento non valida");
+
+        Key key = new Key(fragment.getAddress(), fragment.getPort(), message_id);
+        Partial partial = pending.get(key);
+        if (partial == null) {
+            // Frammento duplicato di un datagram già ricomposto
+            if (recently_completed.containsKey(key))
+                return null;
+            if (pending.size() >= max_pending)
+                discardEldest();
+            partial = new Partial(total_length, count, fragment.getReceivedTime(), now + timeout_nanos);
+            pending.put(key, partial);
+        } else if (partial.data.length != total_length || partial.count != count) {
+            throw new ProtocolException("Frammento incoerente con i precedenti");
+        }
+        if (partial.received.get(index))
+            return null;
+        partial.received.set(index);
+        in.get(partial.data, offset, in.remaining());
+        if (partial.received.cardinality() < count)
+            return null;
+
+        pending.remove(key);
+        recently_completed.put(key, key);
+        completed_count++;
+        Datagram complete = new Datagram(ByteBuffer.wrap(partial.data));
+        complete.received(fragment.getAddress(), fragment.getPort(), total_length, partial.first_received);
+        return complete;
+    }
+
+    /**
+     * Scarta i datagram scaduti, che si trovano all'inizio della tabella
+     */
+    private void expire(long now) {
+        Iterator<Partial> iterator = pending.values().iterator();
+        while (iterator.hasNext()) {
+            if (iterator.next().deadline - now > 0)
+                return;
+            iterator.remove();
+            discarded_count++;
+        }
+    }
+
+    private void discardEldest() {
+        Iterator<Map.Entry<Key, Partial>> iterator = pending.entrySet().iterator();
+        iterator.next();
+        iterator.remove();
+        discarded_count++;
+    }
+
+    /**
+     * @return Numero di datagram in ricomposizione
+     */
+    public synchronized int getPendingCount() {
+        return pending.size();
+    }
+
+    /**
+     * @return Numero di datagram ricomposti
+     */
+    public synchronized long getCompletedCount() {
+        return completed_count;
+    }
+
+    /**
+     * @return Numero di datagram scartati perché scaduti o per mancanza di spazio nella tabella
+     */
+    public synchronized long getDiscardedCount() {
+        return discarded_count;
+    }
+
+    /**
+     * Identifica un datagram in ricomposizione: mittente e id del messaggio
+     */
+    private static final class Key {
+        final InetAddress address;
+        final int port;
+        final long message_id;
+
+        Key(InetAddress address, int port, long message_id) {
+            this.address = address;
+            this.port = port;
+            this.message_id = message_id;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key))
+                return false;
+            Key other = (Key) o;
+            return message_id == other.message_id && port == other.port && address.equals(other.address);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(address, port, message_id);
+        }
+    }
+
+    /**
+     * Datagram in ricomposizione
+     */
+    private static final class Partial {
+        final byte[] data;
+        final int count;
+        final BitSet received;
+        final long first_received;
+        final long deadline;
+
+        Partial(int total_length, int count, long first_received, long deadline) {
+            this.data = new byte[total_length];
+            this.count = count;
+            this.received = new BitSet(count);
+            this.first_received = first_received;
+            this.deadline = deadline;
+        }
+    }
+}
@@ -1,15 +1,16 @@
 package backend;
 
 import java.io.IOException;
-import java.net.DatagramPacket;
 
 /**
  * Classe che si occupa della continua ricezione di pacchetti datagram dalla rete.
  * Questa classe è chiamata dalla classe backend.backend.ChatHost, nel run() vengono chiamati metodi
- * astratti implementati dalle sottoclassi (ChatClient o ChatServer)
+ * astratti implementati dalle sottoclassi (ChatClient o ChatServer).
+ * Se l'host usa una ProcessingPipeline, il Receiver si limita a ricevere i datagram e a passarli ai worker.
  */
 public class Receiver implements Runnable {
     private ChatHost host = null;
+    private ProcessingPipeline pipeline = null;
 
     /**
      * Istanzia la classe receiver e lo associa al relativo backend.backend.ChatHost
@@ -20,17 +21,45 @@ public class Receiver implements Runnable {
         this.host = host;
     }
 
+    /**
+     * Istanzia la classe receiver, che passerà i datagram ricevuti alla pipeline specificata
+     *
+     * @param host     Host per cui ricevere datagram
+     * @param pipeline Pipeline a cui passare i datagram ricevuti, o null per elaborarli nel Receiver thread
+     */
+    public Receiver(ChatHost host, ProcessingPipeline pipeline) {
+        this.host = host;
+        this.pipeline = pipeline;
+    }
+
     @Override
     public void run() {
         while (!host.isClosed()) {
-            DatagramPacket received = null;
+            Datagram received = null;
             try {
-                received = host.receiveMessage();
-                host.processMessage(received);
+                if (pipeline == null) {
+                    received = host.receiveMessage();
+                    host.processMessage(received);
+                } else {
+                    received = pipeline.acquire();
+                    host.transport.receive(received);
+                    pipeline.dispatch(received);
+                }
             } catch (IOException e) {
                 System.err.println("Socket chiuso, esco dal thread");
+                if (pipeline != null && received != null)
+                    pipeline.recycle(received);
+                break;
+            } catch (InterruptedException e) {
                 break;
+            } catch (RuntimeException e) {
+                // Un datagram malformato non deve interrompere la ricezione
+                e.printStackTrace();
             }
         }
+        if (pipeline != null)
+            pipeline.stop();
+        else
+            host.releaseReceiveBuffer();
     }
-}
\ No newline at end of file
+}
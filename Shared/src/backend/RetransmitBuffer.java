@@ -0,0 +1,94 @@
+package backend;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+
+/**
+ * Invio numerato dei pacchetti destinati a un gruppo multicast, con buffer circolare per le ritrasmissioni.
+ * <p>
+ * A ogni datagram inviato viene assegnato il numero di sequenza successivo, scritto nell'intestazione
+ * (vedi PacketCodec.FLAG_SEQUENCED). Una copia del datagram resta nel buffer finché non viene sovrascritta
+ * dopo capacity invii, così da poter rispondere alle richieste di ritrasmissione (NACK) dei client.
+ * Le ritrasmissioni vengono inviate solo a chi le ha richieste: il traffico aggiuntivo dipende dalle perdite
+ * effettive e non dal numero di client nel gruppo.
+ */
+public class RetransmitBuffer {
+    private final Transport transport;
+
+    private final byte[][] slots;
+    private final ByteBuffer[] views;
+    private final int[] lengths;
+    private final long[] sequences;
+    private long next_sequence = 1;
+
+    /**
+     * @param transport Il trasporto da cui inviare i datagram
+     * @param capacity  Numero di datagram conservati per le ritrasmissioni
+     * @param max_size  Dimensione massima di un datagram senza numero di sequenza
+     */
+    public RetransmitBuffer(Transport transport, int capacity, int max_size) {
+        this.transport = transport;
+        this.slots = new byte[capacity][max_size + PacketCodec.MAX_SEQUENCE_SIZE];
+        this.views = new ByteBuffer[capacity];
+        for (int i = 0; i < capacity; i++)
+            views[i] = ByteBuffer.wrap(slots[i]);
+        this.lengths = new int[capacity];
+        this.sequences = new long[capacity];
+    }
+
+    /**
+     * Assegna un numero di sequenza al datagram, lo conserva nel buffer e lo invia al gruppo.
+     * Il numero viene assegnato e il datagram inviato in un'unica operazione, così che l'ordine dei numeri
+     * corrisponda all'ordine di invio.
+     *
+     * @param datagram      Il datagram codificato nel formato binario, tra posizione e limite del buffer
+     * @param group_address Indirizzo del gruppo multicast
+     * @param group_port    Porta del gruppo multicast
+     * @return Il numero di sequenza assegnato
+     * @throws IOException In caso di errore durante l'invio, o se il datagram supera la dimensione massima
+     */
+    public synchronized long send(ByteBuffer datagram, InetAddress group_address, int group_port) throws IOException {
+        if (datagram.remaining() + PacketCodec.MAX_SEQUENCE_SIZE > slots[0].length)
+            throw new IOException("Datagram troppo grande: " + datagram.remaining() + " byte");
+        long sequence = next_sequence++;
+        int index = (int) (sequence % slots.length);
+        byte flags = datagram.get(datagram.position() + 1);
+        ByteBuffer slot = views[index];
+        slot.clear();
+        PacketCodec.writeSequencedHeader(slot, flags, sequence);
+        datagram.position(datagram.position() + PacketCodec.HEADER_SIZE);
+        slot.put(datagram);
+        lengths[index] = slot.position();
+        sequences[index] = sequence;
+        slot.flip();
+        transport.send(slot, group_address, group_port);
+        return sequence;
+    }
+
+    /**
+     * Ritrasmette un datagram a un singolo destinatario, se è ancora presente nel buffer
+     *
+     * @param sequence Numero di sequenza del datagram
+     * @param address  Indirizzo del destinatario
+     * @param port     Porta del destinatario
+     * @return true se il datagram è stato ritrasmesso, false se è già stato sovrascritto o non è mai stato inviato
+     * @throws IOException In caso di errore durante l'invio
+     */
+    public synchronized boolean resend(long sequence, InetAddress address, int port) throws IOException {
+        int index = (int) (sequence % slots.length);
+        if (sequence <= 0 || sequences[index] != sequence)
+            return false;
+        ByteBuffer slot = views[index];
+        slot.limit(lengths[index]).position(0);
+        transport.send(slot, address, port);
+        return true;
+    }
+
+    /**
+     * @return Il numero di sequenza dell'ultimo datagram inviato, 0 se non è stato inviato nulla
+     */
+    public synchronized long getLastSequence() {
+        return next_sequence - 1;
+    }
+}
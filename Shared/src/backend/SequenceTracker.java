@@ -0,0 +1,215 @@
+package backend;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Rilevamento dei pacchetti persi in una sequenza numerata inviata da un singolo mittente.
+ * <p>
+ * Tiene traccia dei numeri di sequenza ricevuti nelle ultime window posizioni, scarta i duplicati
+ * e ricorda i numeri mancanti, per cui chiedere la ritrasmissione con un NACK.
+ * I pacchetti vengono consegnati appena arrivano, anche se ne mancano di precedenti: le ritrasmissioni
+ * non bloccano la consegna dei messaggi successivi. Un numero mancante viene richiesto al massimo
+ * max_attempts volte, poi viene considerato perso: la prima richiesta appena viene rilevato (newRanges),
+ * le successive periodicamente (pendingRanges).
+ * Un salto più lungo della finestra, in avanti o all'indietro (es. mittente riavviato o numero non valido),
+ * azzera lo stato senza considerare mancanti i numeri saltati. I numeri minori o uguali a zero vengono scartati.
+ */
+public class SequenceTracker {
+    private final int window;
+    private final long[] received_bits;
+    private final int max_attempts;
+    private final TreeMap<Long, Integer> missing = new TreeMap<>();
+
+    private long highest = 0;
+    private boolean new_missing = false;
+    private long duplicate_count = 0;
+    private long recovered_count = 0;
+    private long lost_count = 0;
+
+    /**
+     * @param window       Numero di sequenze recenti di cui ricordare la ricezione, arrotondato a multipli di 64
+     * @param max_attempts Numero massimo di richieste per ogni pacchetto mancante
+     */
+    public SequenceTracker(int window, int max_attempts) {
+        this.received_bits = new long[Math.max(1, (window + 63) / 64)];
+        this.window = received_bits.length * 64;
+        this.max_attempts = max_attempts;
+    }
+
+    /**
+     * Registra la ricezione di un pacchetto
+     *
+     * @param sequence Il numero di sequenza del pacchetto
+     * @return true se il pacchetto è nuovo e va consegnato, false se è un duplicato, troppo vecchio o non valido
+     */
+    public synchronized boolean received(long sequence) {
+        if (sequence <= 0)
+            return false;
+        if (highest == 0) {
+            // Primo pacchetto: i precedenti sono stati inviati prima che il client si unisse al gruppo
+            highest = sequence;
+            mark(sequence);
+            return true;
+        }
+        if (sequence - highest > window || sequence < highest - window) {
+            restart(sequence);
+            return true;
+        }
+        if (sequence > highest) {
+            // Il salto è al più window, quindi il ciclo esamina al più window - 1 numeri
+            for (long s = highest + 1; s < sequence; s++) {
+                clear(s);
+                missing.put(s, 0);
+                new_missing = true;
+            }
+            highest = sequence;
+            mark(sequence);
+            expireOld();
+            return true;
+        }
+        if (sequence <= highest - window || isMarked(sequence)) {
+            duplicate_count++;
+            return false;
+        }
+        mark(sequence);
+        if (missing.remove(sequence) != null)
+            recovered_count++;
+        return true;
+    }
+
+    /**
+     * Riparte da sequence dimenticando la finestra corrente; i numeri ancora mancanti vengono considerati persi
+     */
+    private void restart(long sequence) {
+        lost_count += missing.size();
+        missing.clear();
+        new_missing = false;
+        Arrays.fill(received_bits, 0);
+        highest = sequence;
+        mark(sequence);
+    }
+
+    /**
+     * Restituisce gli intervalli di numeri mancanti per cui inviare un NACK, incrementando il numero di tentativi.
+     * I numeri che hanno già raggiunto max_attempts tentativi vengono considerati persi e rimossi.
+     *
+     * @param max_ranges Numero massimo di intervalli restituiti
+     * @return Coppie {primo numero mancante, numero di mancanti consecutivi}
+     */
+    public synchronized long[][] pendingRanges(int max_ranges) {
+        return ranges(max_ranges, false);
+    }
+
+    /**
+     * Restituisce gli intervalli dei soli numeri mancanti rilevati dopo l'ultima richiesta, non ancora richiesti,
+     * incrementando il numero di tentativi. Le richieste successive vanno ripetute con pendingRanges.
+     *
+     * @param max_ranges Numero massimo di intervalli restituiti
+     * @return Coppie {primo numero mancante, numero di mancanti consecutivi}
+     */
+    public synchronized long[][] newRanges(int max_ranges) {
+        if (!new_missing)
+            return new long[0][];
+        return ranges(max_ranges, true);
+    }
+
+    private long[][] ranges(int max_ranges, boolean only_new) {
+        new_missing = false;
+        long[][] ranges = new long[max_ranges][];
+        int count = 0;
+        long range_start = -1;
+        long range_end = -1;
+        Iterator<Map.Entry<Long, Integer>> iterator = missing.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<Long, Integer> entry = iterator.next();
+            if (entry.getValue() >= max_attempts) {
+                iterator.remove();
+                lost_count++;
+                continue;
+            }
+            if (only_new && entry.getValue() > 0)
+                continue;
+            long sequence = entry.getKey();
+            if (range_start >= 0 && sequence == range_end + 1) {
+                range_end = sequence;
+            } else {
+                if (range_start >= 0) {
+                    ranges[count++] = new long[]{range_start, range_end - range_start + 1};
+                    if (count == max_ranges)
+                        break;
+                }
+                range_start = sequence;
+                range_end = sequence;
+            }
+            entry.setValue(entry.getValue() + 1);
+        }
+        if (range_start >= 0 && count < max_ranges)
+            ranges[count++] = new long[]{range_start, range_end - range_start + 1};
+        long[][] result = new long[count][];
+        System.arraycopy(ranges, 0, result, 0, count);
+        return result;
+    }
+
+    /**
+     * @return true se sono stati rilevati numeri mancanti non ancora richiesti
+     */
+    public synchronized boolean hasNewMissing() {
+        return new_missing;
+    }
+
+    /**
+     * @return true se ci sono pacchetti mancanti in attesa di ritrasmissione
+     */
+    public synchronized boolean hasMissing() {
+        return !missing.isEmpty();
+    }
+
+    /**
+     * @return Numero di pacchetti duplicati o troppo vecchi scartati
+     */
+    public synchronized long getDuplicateCount() {
+        return duplicate_count;
+    }
+
+    /**
+     * @return Numero di pacchetti mancanti ricevuti in seguito a una ritrasmissione
+     */
+    public synchronized long getRecoveredCount() {
+        return recovered_count;
+    }
+
+    /**
+     * @return Numero di pacchetti considerati definitivamente persi
+     */
+    public synchronized long getLostCount() {
+        return lost_count;
+    }
+
+    /**
+     * Rimuove i numeri mancanti usciti dalla finestra, che non potrebbero più essere riconosciuti
+     */
+    private void expireOld() {
+        while (!missing.isEmpty() && missing.firstKey() <= highest - window) {
+            missing.pollFirstEntry();
+            lost_count++;
+        }
+    }
+
+    private void mark(long sequence) {
+        int bit = (int) (sequence % window);
+        received_bits[bit >>> 6] |= 1L << bit;
+    }
+
+    private void clear(long sequence) {
+        int bit = (int) (sequence % window);
+        received_bits[bit >>> 6] &= ~(1L << bit);
+    }
+
+    private boolean isMarked(long sequence) {
+        int bit = (int) (sequence % window);
+        return (received_bits[bit >>> 6] & (1L << bit)) != 0;
+    }
+}
@@ -0,0 +1,103 @@
+package backend;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.MulticastSocket;
+import java.nio.ByteBuffer;
+
+/**
+ * Trasporto basato su MulticastSocket, con ricezione bloccante.
+ * Il DatagramPacket di invio (e l'array in cui copiare i buffer diretti) è riutilizzato da ogni thread.
+ */
+public class SocketTransport implements Transport {
+    private static final ThreadLocal<DatagramPacket> send_packet = ThreadLocal.withInitial(() -> new DatagramPacket(new byte[0], 0));
+    private static final ThreadLocal<byte[]> send_copy = ThreadLocal.withInitial(() -> new byte[ChatHost.MAX_DATAGRAM_SIZE]);
+
+    private final MulticastSocket socket;
+    private final DatagramPacket received_packet = new DatagramPacket(new byte[0], 0);
+    private byte[] copy_buffer = new byte[0];
+
+    /**
+     * @param port La porta locale, 0 per una qualunque porta disponibile
+     * @throws IOException In caso di errore durante l'inizializzazione del MulticastSocket
+     */
+    public SocketTransport(int port) throws IOException {
+        socket = new MulticastSocket(port);
+    }
+
+    @Override
+    public boolean receive(Datagram datagram) throws IOException {
+        ByteBuffer buffer = datagram.buffer();
+        if (buffer.hasArray()) {
+            received_packet.setData(buffer.array(), buffer.arrayOffset(), buffer.capacity());
+            socket.receive(received_packet);
+        } else {
+            if (copy_buffer.length < buffer.capacity())
+                copy_buffer = new byte[buffer.capacity()];
+            received_packet.setData(copy_buffer, 0, buffer.capacity());
+            socket.receive(received_packet);
+            buffer.clear();
+            buffer.put(copy_buffer, 0, received_packet.getLength());
+        }
+        datagram.received(received_packet.getAddress(), received_packet.getPort(), received_packet.getLength());
+        return true;
+    }
+
+    @Override
+    public void send(ByteBuffer data, InetAddress address, int port) throws IOException {
+        DatagramPacket packet = send_packet.get();
+        if (data.hasArray()) {
+            packet.setData(data.array(), data.arrayOffset() + data.position(), data.remaining());
+        } else {
+            byte[] bytes = send_copy.get();
+            if (bytes.length < data.remaining()) {
+                bytes = new byte[data.remaining()];
+                send_copy.set(bytes);
+            }
+            data.duplicate().get(bytes, 0, data.remaining());
+            packet.setData(bytes, 0, data.remaining());
+        }
+        packet.setAddress(address);
+        packet.setPort(port);
+        try {
+            socket.send(packet);
+        } finally {
+            // Non trattiene il buffer del chiamante oltre l'invio
+            packet.setData(send_copy.get(), 0, 0);
+        }
+        data.position(data.limit());
+    }
+
+    @Override
+    @SuppressWarnings("deprecation")
+    public void joinGroup(InetAddress group) throws IOException {
+        socket.joinGroup(group);
+    }
+
+    @Override
+    @SuppressWarnings("deprecation")
+    public void setInterface(InetAddress address) throws IOException {
+        socket.setInterface(address);
+    }
+
+    @Override
+    public boolean usesDirectBuffers() {
+        return false;
+    }
+
+    @Override
+    public int getLocalPort() {
+        return socket.getLocalPort();
+    }
+
+    @Override
+    public boolean isClosed() {
+        return socket.isClosed();
+    }
+
+    @Override
+    public void close() {
+        socket.close();
+    }
+}
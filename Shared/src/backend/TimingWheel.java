@@ -0,0 +1,115 @@
+package backend;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.Consumer;
+
+/**
+ * Hashed timing wheel: scadenzario con costo costante per inserimento e per tick, indipendente dal numero
+ * di elementi in attesa.
+ * <p>
+ * Il tempo è diviso in tick di durata fissa e ogni elemento viene inserito nella casella corrispondente al tick
+ * della sua scadenza, modulo il numero di caselle. A ogni tick viene esaminata solo la casella corrente:
+ * gli elementi scaduti vengono passati al chiamante, quelli con scadenza in un giro successivo restano al loro posto.
+ * <p>
+ * schedule può essere chiamato da qualunque thread, mentre advance deve essere chiamato sempre dallo stesso thread:
+ * gli inserimenti passano da una coda concorrente e vengono spostati nelle caselle solo da advance.
+ * Non è prevista la cancellazione: chi riceve un elemento scaduto controlla se è ancora valido.
+ *
+ * @param <T> Il tipo degli elementi in attesa
+ */
+public class TimingWheel<T> {
+
+    private static final class Node<T> {
+        final T item;
+        final long deadline_tick;
+        Node<T> next;
+
+        Node(T item, long deadline_tick) {
+            this.item = item;
+            this.deadline_tick = deadline_tick;
+        }
+    }
+
+    private final long tick_nanos;
+    private final long start_time;
+    private final Node<T>[] slots;
+    private final int mask;
+    private final ConcurrentLinkedQueue<Node<T>> pending = new ConcurrentLinkedQueue<>();
+    private long current_tick = 0;
+
+    /**
+     * @param tick_nanos Durata di un tick in nanosecondi, cioè la precisione delle scadenze
+     * @param slot_count Numero di caselle, arrotondato alla potenza di due successiva
+     */
+    @SuppressWarnings("unchecked")
+    public TimingWheel(long tick_nanos, int slot_count) {
+        if (tick_nanos <= 0)
+            throw new IllegalArgumentException("Durata del tick non valida: " + tick_nanos);
+        int size = Integer.highestOneBit(Math.max(1, slot_count - 1)) << 1;
+        this.tick_nanos = tick_nanos;
+        this.start_time = System.nanoTime();
+        this.slots = (Node<T>[]) new Node<?>[size];
+        this.mask = size - 1;
+    }
+
+    /**
+     * Programma la scadenza di un elemento. La scadenza effettiva è arrotondata al tick successivo.
+     *
+     * @param item        L'elemento
+     * @param delay_nanos Tempo in nanosecondi dopo cui l'elemento scade
+     */
+    public void schedule(T item, long delay_nanos) {
+        long deadline = System.nanoTime() + Math.max(0, delay_nanos) - start_time;
+        pending.offer(new Node<>(item, (deadline + tick_nanos - 1) / tick_nanos));
+    }
+
+    /**
+     * Porta avanti la ruota fino all'istante specificato, passando gli elementi scaduti al consumer.
+     * Il consumer può riprogrammare l'elemento con schedule: verrà considerato dal tick successivo.
+     *
+     * @param now     Istante attuale, come System.nanoTime
+     * @param expired Riceve ogni elemento scaduto
+     */
+    public void advance(long now, Consumer<T> expired) {
+        long target_tick = (now - start_time) / tick_nanos;
+        while (current_tick <= target_tick) {
+            transferPending();
+            expireSlot(expired);
+            current_tick++;
+        }
+    }
+
+    /**
+     * Sposta gli elementi appena programmati nelle loro caselle
+     */
+    private void transferPending() {
+        Node<T> node;
+        while ((node = pending.poll()) != null) {
+            int index = (int) (Math.max(node.deadline_tick, current_tick) & mask);
+            node.next = slots[index];
+            slots[index] = node;
+        }
+    }
+
+    /**
+     * Rimuove dalla casella corrente gli elementi scaduti, lasciando quelli dei giri successivi
+     */
+    private void expireSlot(Consumer<T> expired) {
+        int index = (int) (current_tick & mask);
+        Node<T> node = slots[index];
+        Node<T> remaining = null;
+        slots[index] = null;
+        while (node != null) {
+            Node<T> next = node.next;
+            if (node.deadline_tick <= current_tick) {
+                expired.accept(node.item);
+            } else {
+                node.next = remaining;
+                remaining = node;
+            }
+            node = next;
+        }
+        // Gli elementi riprogrammati dal consumer sono in pending, quindi la casella contiene solo i rimasti
+        slots[index] = remaining;
+    }
+}
@@ -0,0 +1,94 @@
+package backend;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+
+/**
+ * Trasporto dei datagram usato da ChatHost per ricevere e inviare pacchetti.
+ * L'implementazione viene scelta con la proprietà chat.transport: "socket" (default) usa un MulticastSocket,
+ * "nio" usa un DatagramChannel con buffer diretti.
+ */
+public interface Transport extends Closeable {
+
+    /**
+     * Apre il trasporto configurato sulla porta specificata
+     *
+     * @param port La porta locale, 0 per una qualunque porta disponibile
+     * @return Il trasporto aperto
+     * @throws IOException In caso di errore durante l'apertura
+     */
+    static Transport open(int port) throws IOException {
+        String type = Config.getString("transport", "socket");
+        switch (type) {
+            case "nio":
+                return new ChannelTransport(port);
+            case "socket":
+                return new SocketTransport(port);
+            default:
+                throw new IllegalArgumentException("Trasporto sconosciuto: " + type);
+        }
+    }
+
+    /**
+     * Riceve un datagram nel buffer del Datagram specificato.
+     * In modalità bloccante resta in attesa fin quando non riceve un pacchetto.
+     *
+     * @param datagram Il datagram in cui scrivere il pacchetto ricevuto e il mittente
+     * @return true se è stato ricevuto un pacchetto, false se il trasporto è non bloccante e non ci sono pacchetti
+     * @throws IOException In caso di errore o di trasporto chiuso
+     */
+    boolean receive(Datagram datagram) throws IOException;
+
+    /**
+     * Invia i byte tra posizione e limite del buffer
+     *
+     * @param data    I dati da inviare
+     * @param address Indirizzo destinatario
+     * @param port    Porta destinatario
+     * @throws IOException In caso di errore durante l'invio
+     */
+    void send(ByteBuffer data, InetAddress address, int port) throws IOException;
+
+    /**
+     * Collega il trasporto ai contatori dell'host, ad esempio per contare i datagram scartati in invio
+     *
+     * @param metrics I contatori del ChatHost che usa il trasporto
+     */
+    default void setMetrics(Metrics metrics) {
+    }
+
+    /**
+     * @param group Il gruppo multicast a cui unirsi
+     * @throws IOException In caso di errore durante l'adesione al gruppo
+     */
+    void joinGroup(InetAddress group) throws IOException;
+
+    /**
+     * @param address Indirizzo dell'interfaccia di rete da usare per il multicast
+     * @throws IOException In caso di indirizzo non associato a nessuna interfaccia
+     */
+    void setInterface(InetAddress address) throws IOException;
+
+    /**
+     * @return true se i buffer di ricezione dovrebbero essere allocati fuori dallo heap
+     */
+    boolean usesDirectBuffers();
+
+    /**
+     * @return La porta locale a cui è associato il trasporto
+     */
+    int getLocalPort();
+
+    /**
+     * @return true se il trasporto è stato chiuso
+     */
+    boolean isClosed();
+
+    /**
+     * Chiude il trasporto; un receive in corso viene interrotto con una IOException
+     */
+    @Override
+    void close();
+}
@@ -6,10 +6,32 @@ import java.net.InetAddress;
  * Utente della chatroom
  */
 public class User {
+    public int id;
     public String username;
     public InetAddress address;
     public int port;
 
+    /**
+     * Nonce del REGISTRATION_REQUEST con cui l'utente si è registrato, per riconoscere le richieste ripetute
+     */
+    public int registration_nonce;
+
+    /**
+     * Istante dell'ultimo pacchetto ricevuto dall'utente, come System.nanoTime
+     */
+    public volatile long last_seen = System.nanoTime();
+
+    /**
+     * Storico inviato all'utente alla registrazione, per ripeterne l'invio se il client ne perde una parte:
+     * numero del primo messaggio, numero successivo all'ultimo e ultimo numero di sequenza inviato al gruppo.
+     * history_end è 0 se non è stato chiesto lo storico, e viene scritto per ultimo.
+     */
+    public volatile long history_start;
+    public volatile long history_cutoff;
+    public volatile long history_end;
+
+    private volatile byte[] message_prefix;
+
     /**
      * @param username L'username dell'utente
      * @param address  L'indirizzo dell'utente
@@ -21,4 +43,46 @@ public class User {
         this.port = port;
     }
 
+    /**
+     * @param id       L'id assegnato all'utente
+     * @param username L'username dell'utente
+     * @param address  L'indirizzo dell'utente
+     * @param port     La porta dell'utente
+     */
+    public User(int id, String username, InetAddress address, int port) {
+        this(username, address, port);
+        this.id = id;
+    }
+
+    /**
+     * Codifica l'inizio del corpo dei MESSAGE inviati dall'utente (tipo, id e username), che viene poi copiato
+     * in ogni messaggio inoltrato senza ricodificare l'username. Chiamato dal server all'accettazione della
+     * registrazione, quando id e username sono definitivi.
+     */
+    public void encodeMessagePrefix() {
+        message_prefix = PacketCodec.encodeMessagePrefix(id, username);
+    }
+
+    /**
+     * Libera l'inizio del corpo codificato, alla disconnessione dell'utente
+     */
+    public void releaseMessagePrefix() {
+        message_prefix = null;
+    }
+
+    /**
+     * Restituisce l'inizio del corpo dei MESSAGE inviati dall'utente, codificato da encodeMessagePrefix.
+     * Se non è ancora stato codificato (es. utente non ancora accettato) viene codificato e conservato ora.
+     *
+     * @return I byte codificati, condivisi tra tutti i messaggi dell'utente: non vanno modificati
+     */
+    public byte[] getMessagePrefix() {
+        byte[] prefix = message_prefix;
+        if (prefix == null) {
+            prefix = PacketCodec.encodeMessagePrefix(id, username);
+            message_prefix = prefix;
+        }
+        return prefix;
+    }
+
 }
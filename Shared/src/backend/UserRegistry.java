@@ -0,0 +1,155 @@
+package backend;
+
+import java.net.InetAddress;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Elenco concorrente degli utenti registrati a una chatroom.
+ * Gli utenti sono indicizzati sia per id sia per username (senza distinzione tra maiuscole e minuscole),
+ * quindi registrazione, ricerca e rimozione costano O(1) indipendentemente dal numero di utenti.
+ * Tutti i metodi possono essere chiamati da più thread contemporaneamente.
+ */
+public class UserRegistry {
+    private final ConcurrentHashMap<Integer, User> users_by_id;
+    private final ConcurrentHashMap<String, User> users_by_name;
+    private final AtomicInteger next_id;
+    private final int id_step;
+
+    public UserRegistry() {
+        this(16);
+    }
+
+    /**
+     * @param expected_users Numero di utenti previsto, usato per dimensionare gli indici
+     */
+    public UserRegistry(int expected_users) {
+        this(expected_users, 1, 1);
+    }
+
+    /**
+     * Istanzia un elenco che assegna gli id first_id, first_id + id_step, first_id + 2 * id_step...
+     * Più elenchi con lo stesso id_step e first_id diversi (es. i server di un cluster) assegnano id distinti
+     * senza coordinarsi.
+     *
+     * @param expected_users Numero di utenti previsto, usato per dimensionare gli indici
+     * @param first_id       Primo id assegnato, maggiore di 0
+     * @param id_step        Differenza tra due id assegnati consecutivamente
+     */
+    public UserRegistry(int expected_users, int first_id, int id_step) {
+        if (first_id < 1 || id_step < 1)
+            throw new IllegalArgumentException("Primo id e passo devono essere positivi");
+        users_by_id = new ConcurrentHashMap<>(expected_users);
+        users_by_name = new ConcurrentHashMap<>(expected_users);
+        next_id = new AtomicInteger(first_id);
+        this.id_step = id_step;
+    }
+
+    /**
+     * Registra un utente assegnandogli un nuovo id, a meno che l'username sia già in uso.
+     * Il controllo dell'username e l'inserimento avvengono in modo atomico.
+     *
+     * @param username L'username dell'utente
+     * @param address  L'indirizzo dell'utente
+     * @param port     La porta dell'utente
+     * @return L'utente registrato, o null se l'username è già in uso
+     */
+    public User register(String username, InetAddress address, int port) {
+        String key = fold(username);
+        if (users_by_name.containsKey(key))
+            return null;
+        User user = new User(next_id.getAndAdd(id_step), username, address, port);
+        if (users_by_name.putIfAbsent(key, user) != null)
+            return null;
+        users_by_id.put(user.id, user);
+        return user;
+    }
+
+    /**
+     * Inserisce un utente a cui l'id è già stato assegnato altrove (es. da un altro server del cluster).
+     * Un utente già presente con lo stesso id ma un altro username viene sostituito.
+     *
+     * @param user L'utente da inserire
+     * @return true se l'utente è stato inserito o era già presente con lo stesso id,
+     * false se l'username è in uso da un altro utente
+     */
+    public boolean add(User user) {
+        User existing = users_by_name.putIfAbsent(fold(user.username), user);
+        if (existing != null)
+            return existing.id == user.id;
+        User replaced = users_by_id.put(user.id, user);
+        if (replaced != null)
+            users_by_name.remove(fold(replaced.username), replaced);
+        return true;
+    }
+
+    /**
+     * @param id L'id dell'utente
+     * @return L'utente con l'id specificato, o null se non è registrato
+     */
+    public User get(int id) {
+        return users_by_id.get(id);
+    }
+
+    /**
+     * @param username L'username dell'utente
+     * @return L'utente con l'username specificato, senza distinzione tra maiuscole e minuscole, o null se non è registrato
+     */
+    public User get(String username) {
+        return users_by_name.get(fold(username));
+    }
+
+    /**
+     * @param id L'id dell'utente
+     * @return true se esiste un utente registrato con l'id specificato
+     */
+    public boolean contains(int id) {
+        return users_by_id.containsKey(id);
+    }
+
+    /**
+     * Rimuove un utente, liberando il suo username
+     *
+     * @param id L'id dell'utente
+     * @return L'utente rimosso, o null se non era registrato
+     */
+    public User remove(int id) {
+        User user = users_by_id.remove(id);
+        if (user != null)
+            users_by_name.remove(fold(user.username), user);
+        return user;
+    }
+
+    /**
+     * @param username L'username da controllare
+     * @return true se l'username è già in uso, senza distinzione tra maiuscole e minuscole
+     */
+    public boolean nameExists(String username) {
+        return users_by_name.containsKey(fold(username));
+    }
+
+    /**
+     * @return Il numero di utenti registrati
+     */
+    public int size() {
+        return users_by_id.size();
+    }
+
+    /**
+     * @return Vista non modificabile degli utenti registrati
+     */
+    public Collection<User> users() {
+        return Collections.unmodifiableCollection(users_by_id.values());
+    }
+
+    /**
+     * Normalizza un username in modo che due nomi uguali a meno di maiuscole e minuscole abbiano la stessa chiave,
+     * come in String.equalsIgnoreCase
+     */
+    private static String fold(String username) {
+        return username.toUpperCase(Locale.ROOT).toLowerCase(Locale.ROOT);
+    }
+}